@@ -37,10 +37,15 @@ import javax.persistence.PersistenceException;
 import javax.sql.DataSource;
 import java.net.ConnectException;
 import java.sql.Connection;
+import java.sql.Driver;
 import java.sql.SQLException;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.Arrays;
 import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ConnectionPool extends ResourceDistributor.SingletonResource {
 
@@ -48,6 +53,14 @@ public class ConnectionPool extends ResourceDistributor.SingletonResource {
     private static SessionFactory sessionFactory = null;
     private static HikariDataSource dataSource = null;
 
+    // The number of sessions (and so pooled connections) that the current thread has open. A thread that opens a
+    // second one while it holds the first can deadlock the pool: once every connection is held by a thread that is
+    // waiting for another, none is ever returned. Use the session / connection that you already have instead.
+    private static final ThreadLocal<Integer> openSessionsOfThread = ThreadLocal.withInitial(() -> 0);
+
+    // places that opened a nested session, so that we warn about each of them only once
+    private static final Set<String> reportedNestedSessions = ConcurrentHashMap.newKeySet();
+
     private ConnectionPool(Start start) {
         if (!start.enabled) {
             throw new RuntimeException(new ConnectException("Connection to refused")); // emulates exception thrown by
@@ -218,6 +231,33 @@ public class ConnectionPool extends ResourceDistributor.SingletonResource {
         ConnectionPool.dataSource = null;
     }
 
+    // A connection of its own, not taken from the pool, for things that hold on to one for as long as the core runs
+    // (like LISTEN). It is opened through the driver directly, the same way Hikari does it.
+    static Connection openUnpooledConnection(Start start) throws SQLException {
+        if (!start.enabled) {
+            throw new SQLException("Storage layer disabled");
+        }
+        DatabaseConfig config = Config.getConfig(start);
+        Properties properties = new Properties();
+        if (config.getUser() != null) {
+            properties.setProperty("user", config.getUser());
+        }
+        if (config.getPassword() != null && !config.getPassword().equals("")) {
+            properties.setProperty("password", config.getPassword());
+        }
+        Driver driver;
+        try {
+            driver = (Driver) Class.forName(config.getDriverClassName()).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new SQLException(e);
+        }
+        Connection con = driver.connect(getJdbcUrl(config), properties);
+        if (con == null) {
+            throw new SQLException("The driver does not accept the connection URL");
+        }
+        return con;
+    }
+
     private static boolean hibernateFailedToConnect(Exception e) {
         return Utils.isExceptionCause(ConnectException.class, e);
     }
@@ -250,9 +290,12 @@ public class ConnectionPool extends ResourceDistributor.SingletonResource {
         } else {
             // for SELECT queries
             SessionFactory sessionFactory = ConnectionPool.sessionFactory;
+            enterSession(start);
             try (CustomSessionWrapper session = new CustomSessionWrapper(sessionFactory.openSession())) {
                 Connection con = session.getSessionImpl().connection();
                 return func.op(session, con);
+            } finally {
+                exitSession();
             }
         }
     }
@@ -268,6 +311,7 @@ public class ConnectionPool extends ResourceDistributor.SingletonResource {
         }
 
         SessionFactory sessionFactory = ConnectionPool.sessionFactory;
+        enterSession(start);
         try (CustomSessionWrapper session = new CustomSessionWrapper(sessionFactory.openSession())) {
             // we assume that these queries will always have a non-SELECT part in them
             // so that's why we always begin a transaction.
@@ -295,6 +339,34 @@ public class ConnectionPool extends ResourceDistributor.SingletonResource {
                 }
                 throw e;
             }
+        } finally {
+            exitSession();
+        }
+    }
+
+    private static void enterSession(Start start) {
+        int openSessions = openSessionsOfThread.get();
+        if (openSessions > 0) {
+            StackTraceElement[] stackTrace = new Exception().getStackTrace();
+            String caller = Arrays.toString(Arrays.copyOfRange(stackTrace, 1, Math.min(stackTrace.length, 8)));
+            String message = "A session was opened while this thread already holds one, which can deadlock the "
+                    + "connection pool under load: " + caller;
+            if (Start.isTesting) {
+                throw new IllegalStateException(message);
+            }
+            if (reportedNestedSessions.add(caller)) {
+                Logging.warn(start, message);
+            }
+        }
+        openSessionsOfThread.set(openSessions + 1);
+    }
+
+    private static void exitSession() {
+        int openSessions = openSessionsOfThread.get() - 1;
+        if (openSessions == 0) {
+            openSessionsOfThread.remove();
+        } else {
+            openSessionsOfThread.set(openSessions);
         }
     }
 
@@ -0,0 +1,189 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql;
+
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.sql.output.Logging;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static io.supertokens.storage.sql.ProcessState.PROCESS_STATE.LISTENING_FOR_DATABASE_CHANGES;
+
+/**
+ * One thread, with a connection of its own (not from the pool), that LISTENs on the channels that our triggers
+ * NOTIFY, so that the node local caches hear about changes that other cores make.
+ * <p>
+ * Postgres doesn't keep notifications for a listener that is not connected, so whenever the listener (re)connects,
+ * each subscriber is told to drop or rebuild what it got from earlier notifications.
+ */
+public class DatabaseListener extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.sql.DatabaseListener";
+
+    // how long we wait for a notification before checking that the connection is still alive
+    private static final int POLL_INTERVAL_MS = 10000;
+    private static final int RECONNECT_INTERVAL_MS = 5000;
+
+    public interface Subscriber {
+        /**
+         * Called on the listener thread every time it starts listening, after the LISTEN. Anything that was sent
+         * before this may have been missed.
+         */
+        void listening() throws SQLException, StorageQueryException;
+
+        void notified(String payload);
+
+        /**
+         * Called on the listener thread when it has lost its connection, until listening is called again.
+         */
+        default void stoppedListening() {
+        }
+
+        /**
+         * Called on the listener thread at least every POLL_INTERVAL_MS while it is listening, for periodic work.
+         */
+        default void poll() throws SQLException, StorageQueryException {
+        }
+    }
+
+    private final Start start;
+    private final Map<String, Subscriber> subscribers = new LinkedHashMap<>();
+    private final Thread thread;
+    private volatile Connection connection = null;
+    private volatile boolean closed = false;
+
+    private DatabaseListener(Start start) {
+        this.start = start;
+        this.thread = new Thread(this::listen, "SuperTokens database listener");
+        this.thread.setDaemon(true);
+    }
+
+    private static DatabaseListener getInstance(Start start) {
+        return (DatabaseListener) start.getResourceDistributor().getResource(RESOURCE_KEY);
+    }
+
+    /**
+     * Must be called before {@link #start(Start)}, from Start.initStorage.
+     */
+    static void subscribe(Start start, String channel, Subscriber subscriber) {
+        DatabaseListener listener = getInstance(start);
+        if (listener == null) {
+            listener = (DatabaseListener) start.getResourceDistributor().setResource(RESOURCE_KEY,
+                    new DatabaseListener(start));
+        }
+        if (listener.thread.isAlive()) {
+            throw new IllegalStateException("Subscribed after the listener was started");
+        }
+        listener.subscribers.put(channel, subscriber);
+    }
+
+    static void start(Start start) {
+        DatabaseListener listener = getInstance(start);
+        if (listener == null || listener.thread.isAlive() || listener.closed) {
+            return;
+        }
+        listener.thread.start();
+    }
+
+    static void close(Start start) {
+        DatabaseListener listener = getInstance(start);
+        if (listener == null) {
+            return;
+        }
+        listener.closed = true;
+        listener.thread.interrupt();
+        // this wakes the thread up if it is waiting for a notification
+        Connection con = listener.connection;
+        if (con != null) {
+            try {
+                con.close();
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+
+    private void listen() {
+        boolean lostConnection = false;
+        while (!closed) {
+            boolean listening = false;
+            try (Connection con = ConnectionPool.openUnpooledConnection(start)) {
+                connection = con;
+                try (Statement statement = con.createStatement()) {
+                    for (String channel : subscribers.keySet()) {
+                        statement.execute("LISTEN " + channel);
+                    }
+                }
+                listening = true;
+                for (Subscriber subscriber : subscribers.values()) {
+                    subscriber.listening();
+                }
+                ProcessState.getInstance(start).addState(LISTENING_FOR_DATABASE_CHANGES, null);
+                if (lostConnection) {
+                    lostConnection = false;
+                    Logging.info(start, "Listening for changes made by other cores again.", false);
+                }
+
+                PGConnection pgConnection = con.unwrap(PGConnection.class);
+                while (!closed) {
+                    PGNotification[] notifications = pgConnection.getNotifications(POLL_INTERVAL_MS);
+                    if (notifications != null && notifications.length > 0) {
+                        for (PGNotification notification : notifications) {
+                            Subscriber subscriber = subscribers.get(notification.getName());
+                            if (subscriber != null) {
+                                subscriber.notified(notification.getParameter());
+                            }
+                        }
+                    } else if (!con.isValid(RECONNECT_INTERVAL_MS / 1000)) {
+                        throw new SQLException("The connection to the database was lost");
+                    }
+                    for (Subscriber subscriber : subscribers.values()) {
+                        subscriber.poll();
+                    }
+                }
+            } catch (SQLException | StorageQueryException | RuntimeException e) {
+                // a RuntimeException is most often a PersistenceException from a subscriber that read through the
+                // pool, so we handle it like a lost connection, instead of letting it end the thread
+                if (closed) {
+                    return;
+                }
+                if (listening) {
+                    for (Subscriber subscriber : subscribers.values()) {
+                        subscriber.stoppedListening();
+                    }
+                }
+                if (listening || !lostConnection) {
+                    // we log this once, and not on every failed attempt to reconnect
+                    lostConnection = true;
+                    Logging.warn(start, "Not listening for changes made by other cores, retrying: " + e.getMessage());
+                }
+                try {
+                    Thread.sleep(RECONNECT_INTERVAL_MS);
+                } catch (InterruptedException ignored) {
+                    return;
+                }
+            } finally {
+                connection = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.sql.config.Config;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A node local cache of whether a user's email is verified, which the core checks on every session verification when
+ * email verification claims are used.
+ * <p>
+ * Verified pairs are kept for postgresql_email_verification_cache_ttl_ms, and unverified ones (the common case for
+ * new users, who may verify at any moment) for only postgresql_email_verification_cache_negative_ttl_ms. Changes made
+ * through this core are written to the cache right away. The verified emails table has a trigger that NOTIFYs
+ * {@link #CHANNEL} with every pair that is verified or unverified, so other cores drop it as soon as the change is
+ * committed, and the TTLs bound how stale an entry gets if a notification is missed.
+ * <p>
+ * At most postgresql_email_verification_cache_size pairs are kept, dropping the least recently used.
+ */
+public class EmailVerificationCache extends ResourceDistributor.SingletonResource
+        implements DatabaseListener.Subscriber {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.sql.EmailVerificationCache";
+
+    // The same for every schema and table prefix, see SigningKeyCache.CHANNEL
+    public static final String CHANNEL = "supertokens_verified_emails";
+
+    private final int size;
+    private final long ttl;
+    private final long negativeTtl;
+
+    // everything below is guarded by lock
+    private final Object lock = new Object();
+    private final Map<String, Entry> entries;
+    // bumped whenever entries are removed, so that a read that raced with that doesn't put back what was removed
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private EmailVerificationCache(Start start) {
+        this.size = Config.getConfig(start).getEmailVerificationCacheSize();
+        this.ttl = Config.getConfig(start).getEmailVerificationCacheTtlMs();
+        this.negativeTtl = Config.getConfig(start).getEmailVerificationCacheNegativeTtlMs();
+        this.entries = new LruMap(size);
+    }
+
+    public static EmailVerificationCache getInstance(Start start) {
+        return (EmailVerificationCache) start.getResourceDistributor().getResource(RESOURCE_KEY);
+    }
+
+    static void init(Start start) {
+        if (getInstance(start) != null) {
+            return;
+        }
+        EmailVerificationCache cache = new EmailVerificationCache(start);
+        start.getResourceDistributor().setResource(RESOURCE_KEY, cache);
+        if (cache.size > 0) {
+            DatabaseListener.subscribe(start, CHANNEL, cache);
+        }
+    }
+
+    public interface Loader {
+        boolean load() throws SQLException, StorageQueryException;
+    }
+
+    public boolean isEmailVerified(String userId, String email, Loader loader)
+            throws SQLException, StorageQueryException {
+        if (size == 0) {
+            return loader.load();
+        }
+        String key = getKey(userId, email);
+        long generationBeforeLoad;
+        synchronized (lock) {
+            Entry entry = entries.get(key);
+            if (entry != null && System.currentTimeMillis() < entry.expiresAt) {
+                hits.incrementAndGet();
+                return entry.verified;
+            }
+            generationBeforeLoad = generation;
+        }
+
+        misses.incrementAndGet();
+        long loadedAt = System.currentTimeMillis();
+        boolean verified = loader.load();
+        synchronized (lock) {
+            if (generation == generationBeforeLoad) {
+                put(key, userId, verified, loadedAt);
+            }
+        }
+        return verified;
+    }
+
+    /**
+     * For a change that has been committed.
+     */
+    public void setEmailVerified(String userId, String email, boolean verified) {
+        if (size == 0) {
+            return;
+        }
+        synchronized (lock) {
+            generation++;
+            put(getKey(userId, email), userId, verified, System.currentTimeMillis());
+        }
+    }
+
+    public void invalidate(String userId, String email) {
+        synchronized (lock) {
+            entries.remove(getKey(userId, email));
+            generation++;
+        }
+    }
+
+    public void invalidateUser(String userId) {
+        synchronized (lock) {
+            entries.values().removeIf(entry -> entry.userId.equals(userId));
+            generation++;
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (lock) {
+            entries.clear();
+            generation++;
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * The share of lookups, from 0 to 1, that were answered from the cache since the core started.
+     */
+    public double getHitRatio() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public void listening() {
+        // we may have missed changes while we were not listening
+        invalidateAll();
+    }
+
+    @Override
+    public void notified(String payload) {
+        JsonArray pair = new JsonParser().parse(payload).getAsJsonArray();
+        invalidate(pair.get(0).getAsString(), pair.get(1).getAsString());
+    }
+
+    private void put(String key, String userId, boolean verified, long loadedAt) {
+        entries.put(key, new Entry(userId, verified, loadedAt + (verified ? ttl : negativeTtl)));
+    }
+
+    private static String getKey(String userId, String email) {
+        // neither a user ID nor an email contains a line break
+        return userId + "\n" + email;
+    }
+
+    private static class LruMap extends LinkedHashMap<String, Entry> {
+        private final int maxSize;
+
+        LruMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    private static class Entry {
+        final String userId;
+        final boolean verified;
+        final long expiresAt;
+
+        Entry(String userId, boolean verified, long expiresAt) {
+            this.userId = userId;
+            this.verified = verified;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -55,9 +55,11 @@ public class ProcessState extends ResourceDistributor.SingletonResource {
     /**
      * CREATING_NEW_TABLE: When the program is attempting to create new tables.
      * DEADLOCK_FOUND: In case of a deadlock situation, we put this event
+     * APPLYING_SCHEMA_MIGRATION: When a schema migration that is not yet recorded as applied is being run
+     * LISTENING_FOR_DATABASE_CHANGES: When the DatabaseListener has (re)started listening for changes by other cores
      */
     public enum PROCESS_STATE {
-        CREATING_NEW_TABLE, DEADLOCK_FOUND
+        CREATING_NEW_TABLE, DEADLOCK_FOUND, APPLYING_SCHEMA_MIGRATION, LISTENING_FOR_DATABASE_CHANGES
     }
 
     public static class EventAndException {
@@ -0,0 +1,185 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql;
+
+import com.google.gson.JsonParser;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.pluginInterface.session.SessionInfo;
+import io.supertokens.storage.sql.config.Config;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A node local cache of sessions by session handle, for the session reads that the core does while verifying
+ * sessions. It is off unless postgresql_session_cache_ttl_ms is set.
+ * <p>
+ * Changes made through this core drop the session from the cache right away. The session info table has a trigger
+ * that NOTIFYs {@link #CHANNEL} with the handle of every session that is updated or deleted (apart from sessions that
+ * have already expired), so every other core drops it as soon as the change is committed. Entries also expire after
+ * postgresql_session_cache_ttl_ms, whether or not a notification arrives, so a revoked session is never served for
+ * longer than that.
+ * <p>
+ * Entries keep the JSON of a session as text, and each read gets its own SessionInfo, so callers may change what
+ * they get. At most postgresql_session_cache_size sessions are kept, dropping the least recently used.
+ */
+public class SessionCache extends ResourceDistributor.SingletonResource implements DatabaseListener.Subscriber {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.sql.SessionCache";
+
+    // The same for every schema and table prefix, see SigningKeyCache.CHANNEL
+    public static final String CHANNEL = "supertokens_sessions";
+
+    private final long ttl;
+
+    // everything below is guarded by lock
+    private final Object lock = new Object();
+    private final Map<String, Entry> entries;
+    // bumped by every invalidation, so that a read that raced with one doesn't put back what it just removed
+    private long generation = 0;
+
+    private SessionCache(Start start) {
+        this.ttl = Config.getConfig(start).getSessionCacheTtlMs();
+        this.entries = new LruMap(Config.getConfig(start).getSessionCacheSize());
+    }
+
+    public static SessionCache getInstance(Start start) {
+        return (SessionCache) start.getResourceDistributor().getResource(RESOURCE_KEY);
+    }
+
+    static void init(Start start) {
+        if (getInstance(start) != null) {
+            return;
+        }
+        SessionCache cache = new SessionCache(start);
+        start.getResourceDistributor().setResource(RESOURCE_KEY, cache);
+        if (cache.ttl > 0) {
+            DatabaseListener.subscribe(start, CHANNEL, cache);
+        }
+    }
+
+    public interface Loader {
+        SessionInfo load() throws SQLException, StorageQueryException;
+    }
+
+    /**
+     * Returns the cached session, or the one that loader reads from the database if there is none. Sessions that
+     * don't exist are not cached.
+     */
+    public SessionInfo get(String sessionHandle, Loader loader) throws SQLException, StorageQueryException {
+        if (ttl == 0) {
+            return loader.load();
+        }
+        long generationBeforeLoad;
+        synchronized (lock) {
+            Entry entry = entries.get(sessionHandle);
+            if (entry != null && System.currentTimeMillis() < entry.expiresAt) {
+                return entry.toSessionInfo();
+            }
+            generationBeforeLoad = generation;
+        }
+
+        long loadedAt = System.currentTimeMillis();
+        SessionInfo sessionInfo = loader.load();
+        if (sessionInfo != null) {
+            synchronized (lock) {
+                if (generation == generationBeforeLoad) {
+                    entries.put(sessionHandle, new Entry(sessionInfo, loadedAt + ttl));
+                }
+            }
+        }
+        return sessionInfo;
+    }
+
+    public void invalidate(String... sessionHandles) {
+        synchronized (lock) {
+            for (String sessionHandle : sessionHandles) {
+                entries.remove(sessionHandle);
+            }
+            generation++;
+        }
+    }
+
+    public void invalidateSessionsOfUser(String userId) {
+        synchronized (lock) {
+            entries.values().removeIf(entry -> entry.userId.equals(userId));
+            generation++;
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (lock) {
+            entries.clear();
+            generation++;
+        }
+    }
+
+    @Override
+    public void listening() {
+        // we may have missed changes while we were not listening
+        invalidateAll();
+    }
+
+    @Override
+    public void notified(String payload) {
+        invalidate(payload);
+    }
+
+    private static class LruMap extends LinkedHashMap<String, Entry> {
+        private final int maxSize;
+
+        LruMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    private static class Entry {
+        final String handle;
+        final String userId;
+        final String refreshTokenHash2;
+        final String userDataInDatabase;
+        final long expiry;
+        final String userDataInJWT;
+        final long timeCreated;
+        final long expiresAt;
+
+        Entry(SessionInfo sessionInfo, long expiresAt) {
+            this.handle = sessionInfo.handle;
+            this.userId = sessionInfo.userId;
+            this.refreshTokenHash2 = sessionInfo.refreshTokenHash2;
+            this.userDataInDatabase = sessionInfo.userDataInDatabase.toString();
+            this.expiry = sessionInfo.expiry;
+            this.userDataInJWT = sessionInfo.userDataInJWT.toString();
+            this.timeCreated = sessionInfo.timeCreated;
+            this.expiresAt = expiresAt;
+        }
+
+        SessionInfo toSessionInfo() {
+            JsonParser jsonParser = new JsonParser();
+            return new SessionInfo(handle, userId, refreshTokenHash2,
+                    jsonParser.parse(userDataInDatabase).getAsJsonObject(), expiry,
+                    jsonParser.parse(userDataInJWT).getAsJsonObject(), timeCreated);
+        }
+    }
+}
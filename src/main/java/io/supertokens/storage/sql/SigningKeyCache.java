@@ -0,0 +1,160 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql;
+
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.sql.config.Config;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A node local cache of the access token, JWT and refresh token signing keys, which the core reads for every token it
+ * creates.
+ * <p>
+ * The key tables have triggers that NOTIFY {@link #CHANNEL} when they change, and the {@link DatabaseListener} empties
+ * the cache when it hears that, so a key that another core adds is used here as soon as it is committed. Entries also
+ * expire after postgresql_signing_keys_cache_ttl_ms. That bounds how stale they get if a notification is missed, and
+ * for how long they are still served while the listener has lost its connection.
+ * <p>
+ * Only keys that exist are cached. When the core finds none, it creates them in the same transaction, and that read
+ * has to go to the database (and take its lock) every time. A cache hit does skip the locking read, so two cores
+ * that both decide to add a new key before either has heard of the other's may both add one. The core already
+ * verifies tokens against all the access token and JWT signing keys, so that only means one more key.
+ */
+public class SigningKeyCache extends ResourceDistributor.SingletonResource implements DatabaseListener.Subscriber {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.sql.SigningKeyCache";
+
+    // The same for every schema and table prefix, so another core that uses different tables in this database causes
+    // a reload here at worst.
+    public static final String CHANNEL = "supertokens_signing_keys";
+
+    public static final String ACCESS_TOKEN_SIGNING_KEYS = "access_token_signing_keys";
+    public static final String JWT_SIGNING_KEYS = "jwt_signing_keys";
+    public static final String REFRESH_TOKEN_SIGNING_KEY = "refresh_token_signing_key";
+
+    private final long ttl;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // bumped by every invalidation, so that a read that raced with one doesn't put back what it just removed
+    private final AtomicLong generation = new AtomicLong();
+    private volatile boolean closed = false;
+
+    private SigningKeyCache(Start start) {
+        this.ttl = Config.getConfig(start).getSigningKeysCacheTtlMs();
+    }
+
+    public static SigningKeyCache getInstance(Start start) {
+        return (SigningKeyCache) start.getResourceDistributor().getResource(RESOURCE_KEY);
+    }
+
+    static void init(Start start) {
+        if (getInstance(start) != null) {
+            return;
+        }
+        SigningKeyCache cache = new SigningKeyCache(start);
+        start.getResourceDistributor().setResource(RESOURCE_KEY, cache);
+        if (cache.ttl > 0) {
+            DatabaseListener.subscribe(start, CHANNEL, cache);
+        }
+    }
+
+    static void close(Start start) {
+        SigningKeyCache cache = getInstance(start);
+        if (cache == null) {
+            return;
+        }
+        cache.closed = true;
+        cache.invalidate();
+    }
+
+    public interface Loader<T> {
+        T load() throws SQLException, StorageQueryException;
+    }
+
+    /**
+     * Returns the cached value of name, or the one that loader reads from the database if there is none. Arrays and
+     * lists are copied, so callers may change what they get.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String name, Loader<T> loader) throws SQLException, StorageQueryException {
+        if (ttl == 0 || closed) {
+            return loader.load();
+        }
+        Entry entry = entries.get(name);
+        if (entry != null && System.currentTimeMillis() < entry.expiresAt) {
+            return (T) copy(entry.value);
+        }
+
+        long generationBeforeLoad = generation.get();
+        T value = loader.load();
+        if (!isMissing(value)) {
+            entries.put(name, new Entry(copy(value), System.currentTimeMillis() + ttl));
+            if (generation.get() != generationBeforeLoad) {
+                // the keys changed while we were reading them, and we may have read the old ones
+                entries.remove(name);
+            }
+        }
+        return value;
+    }
+
+    public void invalidate() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    @Override
+    public void listening() {
+        // anything we have may have changed while we were not listening
+        invalidate();
+    }
+
+    @Override
+    public void notified(String payload) {
+        invalidate();
+    }
+
+    private static boolean isMissing(Object value) {
+        return value == null || (value instanceof Object[] && ((Object[]) value).length == 0)
+                || (value instanceof Collection && ((Collection<?>) value).isEmpty());
+    }
+
+    private static Object copy(Object value) {
+        if (value instanceof Object[]) {
+            return ((Object[]) value).clone();
+        }
+        if (value instanceof List) {
+            return new ArrayList<>((List<?>) value);
+        }
+        return value;
+    }
+
+    private static class Entry {
+        final Object value;
+        final long expiresAt;
+
+        Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -66,6 +66,7 @@ import io.supertokens.storage.sql.config.Config;
 import io.supertokens.storage.sql.config.PostgreSQLConfig;
 import io.supertokens.storage.sql.exceptions.ForeignKeyConstraintNotMetException;
 import io.supertokens.storage.sql.hibernate.CustomSessionWrapper;
+import io.supertokens.storage.sql.hibernate.UserIdType;
 import io.supertokens.storage.sql.output.Logging;
 import io.supertokens.storage.sql.queries.*;
 import org.hibernate.NonUniqueObjectException;
@@ -87,6 +88,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 public class Start
         implements SessionSQLStorage, EmailPasswordSQLStorage, EmailVerificationSQLStorage, ThirdPartySQLStorage,
@@ -197,7 +199,26 @@ public class Start
     public void initStorage() {
         ConnectionPool.initPool(this);
         try {
+            MigrationQueries.convertUserIdColumnsToUuid(this);
+            MigrationQueries.convertHashColumnsToBinary(this);
+            MigrationQueries.convertUserMetadataToJsonb(this);
             GeneralQueries.createTablesIfNotExists(this);
+            MigrationQueries.runPendingMigrations(this);
+            SigningKeyCache.init(this);
+            UserRolesCache.init(this);
+            UserIdMappingFilter.init(this);
+            SessionCache.init(this);
+            EmailVerificationCache.init(this);
+            DatabaseListener.start(this);
+            if (Config.getConfig(this).isSessionInfoPartitioned()) {
+                if (SessionQueries.isSessionInfoTablePartitioned(this)) {
+                    SessionQueries.maintainSessionInfoPartitions(this);
+                } else {
+                    Logging.warn(this, "'postgresql_session_info_partitioned' is set, but the existing session info"
+                            + " table is not partitioned. Expired sessions will be deleted row by row.");
+                }
+            }
+            SessionQueries.updateSessionNotifications(this);
         } catch (SQLException | StorageQueryException e) {
             throw new QuitProgramFromPluginException(e);
         }
@@ -315,7 +336,8 @@ public class Start
             throws StorageQueryException {
         CustomSessionWrapper session = (CustomSessionWrapper) con.getSession();
         try {
-            return SessionQueries.getAccessTokenSigningKeys_Transaction(session);
+            return SigningKeyCache.getInstance(this).get(SigningKeyCache.ACCESS_TOKEN_SIGNING_KEYS,
+                    () -> SessionQueries.getAccessTokenSigningKeys_Transaction(session));
         } catch (SQLException e) {
             throw new StorageQueryException(e);
         }
@@ -325,6 +347,7 @@ public class Start
     public void addAccessTokenSigningKey_Transaction(TransactionConnection con, KeyValueInfo info)
             throws StorageQueryException {
         CustomSessionWrapper session = (CustomSessionWrapper) con.getSession();
+        SigningKeyCache.getInstance(this).invalidate();
         try {
             SessionQueries.addAccessTokenSigningKey_Transaction(session, info.createdAtTime, info.value);
         } catch (SQLException e) {
@@ -336,21 +359,34 @@ public class Start
     public void removeAccessTokenSigningKeysBefore(long time) throws StorageQueryException {
         try {
             SessionQueries.removeAccessTokenSigningKeysBefore(this, time);
+            SigningKeyCache.getInstance(this).invalidate();
         } catch (SQLException e) {
             throw new StorageQueryException(e);
         }
     }
 
     @Override
-    public KeyValueInfo getRefreshTokenSigningKey_Transaction(TransactionConnection con) {
+    public KeyValueInfo getRefreshTokenSigningKey_Transaction(TransactionConnection con)
+            throws StorageQueryException {
         CustomSessionWrapper session = (CustomSessionWrapper) con.getSession();
-        return GeneralQueries.getKeyValue_Transaction(session, REFRESH_TOKEN_KEY_NAME);
+        try {
+            return SigningKeyCache.getInstance(this).get(SigningKeyCache.REFRESH_TOKEN_SIGNING_KEY,
+                    () -> GeneralQueries.getKeyValue_Transaction(session, REFRESH_TOKEN_KEY_NAME));
+        } catch (SQLException e) {
+            throw new StorageQueryException(e);
+        }
     }
 
     @Override
-    public void setRefreshTokenSigningKey_Transaction(TransactionConnection con, KeyValueInfo info) {
+    public void setRefreshTokenSigningKey_Transaction(TransactionConnection con, KeyValueInfo info)
+            throws StorageQueryException {
         CustomSessionWrapper session = (CustomSessionWrapper) con.getSession();
-        GeneralQueries.setKeyValue_Transaction(session, REFRESH_TOKEN_KEY_NAME, info);
+        SigningKeyCache.getInstance(this).invalidate();
+        try {
+            GeneralQueries.setKeyValue_Transaction(this, session, REFRESH_TOKEN_KEY_NAME, info);
+        } catch (PersistenceException | SQLException e) {
+            throw new StorageQueryException(e);
+        }
     }
 
     @TestOnly
@@ -365,6 +401,8 @@ public class Start
 
     @Override
     public void close() {
+        DatabaseListener.close(this);
+        SigningKeyCache.close(this);
         ConnectionPool.close(this);
     }
 
@@ -384,6 +422,7 @@ public class Start
     public void deleteSessionsOfUser(String userId) throws StorageQueryException {
         try {
             SessionQueries.deleteSessionsOfUser(this, userId);
+            SessionCache.getInstance(this).invalidateSessionsOfUser(userId);
         } catch (SQLException e) {
             throw new StorageQueryException(e);
         }
@@ -401,7 +440,9 @@ public class Start
     @Override
     public int deleteSession(String[] sessionHandles) throws StorageQueryException {
         try {
-            return SessionQueries.deleteSession(this, sessionHandles);
+            int deleted = SessionQueries.deleteSession(this, sessionHandles);
+            SessionCache.getInstance(this).invalidate(sessionHandles);
+            return deleted;
         } catch (SQLException e) {
             throw new StorageQueryException(e);
         }
@@ -451,7 +492,8 @@ public class Start
     @Override
     public SessionInfo getSession(String sessionHandle) throws StorageQueryException {
         try {
-            return SessionQueries.getSession(this, sessionHandle);
+            return SessionCache.getInstance(this).get(sessionHandle,
+                    () -> SessionQueries.getSession(this, sessionHandle));
         } catch (SQLException e) {
             throw new StorageQueryException(e);
         }
@@ -461,7 +503,9 @@ public class Start
     public int updateSession(String sessionHandle, JsonObject sessionData, JsonObject jwtPayload)
             throws StorageQueryException {
         try {
-            return SessionQueries.updateSession(this, sessionHandle, sessionData, jwtPayload);
+            int updated = SessionQueries.updateSession(this, sessionHandle, sessionData, jwtPayload);
+            SessionCache.getInstance(this).invalidate(sessionHandle);
+            return updated;
         } catch (SQLException e) {
             throw new StorageQueryException(e);
         }
@@ -484,15 +528,37 @@ public class Start
         CustomSessionWrapper session = (CustomSessionWrapper) con.getSession();
         try {
             SessionQueries.updateSessionInfo_Transaction(session, sessionHandle, refreshTokenHash2, expiry);
+            // other cores drop it when the trigger's notification arrives, after the commit
+            SessionCache.getInstance(this).invalidate(sessionHandle);
+        } catch (SQLException e) {
+            throw new StorageQueryException(e);
+        }
+    }
+
+    // not a part of the plugin interface (yet). A refresh in one statement, instead of getSessionInfo_Transaction
+    // and updateSessionInfo_Transaction in a SERIALIZABLE transaction. Returns null if the regular refresh has to
+    // be used to find out why it failed
+    public SessionInfo refreshSession(String sessionHandle, String oldRefreshTokenHash2, String newRefreshTokenHash2,
+            long expiry) throws StorageQueryException {
+        try {
+            SessionInfo sessionInfo = SessionQueries.refreshSession(this, sessionHandle, oldRefreshTokenHash2,
+                    newRefreshTokenHash2, expiry);
+            SessionCache.getInstance(this).invalidate(sessionHandle);
+            return sessionInfo;
         } catch (SQLException e) {
             throw new StorageQueryException(e);
         }
     }
 
     @Override
-    public void setKeyValue_Transaction(TransactionConnection con, String key, KeyValueInfo info) {
+    public void setKeyValue_Transaction(TransactionConnection con, String key, KeyValueInfo info)
+            throws StorageQueryException {
         CustomSessionWrapper session = (CustomSessionWrapper) con.getSession();
-        GeneralQueries.setKeyValue_Transaction(session, key, info);
+        try {
+            GeneralQueries.setKeyValue_Transaction(this, session, key, info);
+        } catch (PersistenceException | SQLException e) {
+            throw new StorageQueryException(e);
+        }
     }
 
     @Override
@@ -699,38 +765,12 @@ public class Start
 
         CustomSessionWrapper session = (CustomSessionWrapper) con.getSession();
         try {
-            EmailVerificationQueries.updateUsersIsEmailVerified_Transaction(session, userId, email, isEmailVerified);
-        } catch (PersistenceException e) {
-//            ConstraintViolationException cause = (ConstraintViolationException) e.getCause();
-//            final boolean isPrimaryKeyError = cause.getConstraintName()
-//                    .equalsIgnoreCase("emailverification_verified_emails_pkey");
-//
-//            // We keep the old exception detection logic to ensure backwards compatibility.
-//            // We could get here if the new logic hits a false negative,
-//            // e.g., in case someone renamed constraints/tables
-//            final boolean isDuplicateKeyError = cause.getCause() instanceof PSQLException
-//                    && cause.getCause().getMessage().contains("ERROR: duplicate key")
-//                    && cause.getCause().getMessage().contains("Key (user_id, email)");
-//
-//            if (!isEmailVerified || (!isPrimaryKeyError && !isDuplicateKeyError)) {
-//                throw new StorageQueryException(e);
-//            }
-            final Throwable cause = e.getCause().getCause();
-            boolean isPSQLPrimKeyError = cause instanceof PSQLException
-                    && isPrimaryKeyError(((PSQLException) cause).getServerErrorMessage(),
-                            Config.getConfig(this).getEmailVerificationTable());
-
-            // We keep the old exception detection logic to ensure backwards compatibility.
-            // We could get here if the new logic hits a false negative,
-            // e.g., in case someone renamed constraints/tables
-            boolean isDuplicateKeyError = cause.getMessage().contains("ERROR: duplicate key")
-                    && cause.getMessage().contains("Key (user_id, email)");
-
-            if (!isEmailVerified || (!isPSQLPrimKeyError && !isDuplicateKeyError)) {
-                throw new StorageQueryException(e);
-            }
-            // we do not throw an error since the email is already verified
-        } catch (SQLException e) {
+            EmailVerificationQueries.updateUsersIsEmailVerified_Transaction(this, session, userId, email,
+                    isEmailVerified);
+            // not committed yet, so we only drop it here. The trigger's notification drops it again after the
+            // commit, in case it was read in between
+            EmailVerificationCache.getInstance(this).invalidate(userId, email);
+        } catch (PersistenceException | SQLException e) {
             throw new StorageQueryException(e);
         }
     }
@@ -739,6 +779,7 @@ public class Start
     public void deleteEmailVerificationUserInfo(String userId) throws StorageQueryException {
         try {
             EmailVerificationQueries.deleteUserInfo(this, userId);
+            EmailVerificationCache.getInstance(this).invalidateUser(userId);
         } catch (StorageTransactionLogicException e) {
             throw new StorageQueryException(e.actualException);
         } catch (PersistenceException | SQLException e) {
@@ -795,6 +836,7 @@ public class Start
     public void unverifyEmail(String userId, String email) throws StorageQueryException {
         try {
             EmailVerificationQueries.unverifyEmail(this, userId, email);
+            EmailVerificationCache.getInstance(this).setEmailVerified(userId, email, false);
         } catch (PersistenceException | SQLException e) {
             throw new StorageQueryException(e);
         }
@@ -813,7 +855,8 @@ public class Start
     @Override
     public boolean isEmailVerified(String userId, String email) throws StorageQueryException {
         try {
-            return EmailVerificationQueries.isEmailVerified(this, userId, email);
+            return EmailVerificationCache.getInstance(this).isEmailVerified(userId, email,
+                    () -> EmailVerificationQueries.isEmailVerified(this, userId, email));
         } catch (PersistenceException | SQLException e) {
             throw new StorageQueryException(e);
         }
@@ -1011,7 +1054,8 @@ public class Start
             throws StorageQueryException {
         CustomSessionWrapper session = (CustomSessionWrapper) con.getSession();
         try {
-            return JWTSigningQueries.getJWTSigningKeys_Transaction(session);
+            return SigningKeyCache.getInstance(this).get(SigningKeyCache.JWT_SIGNING_KEYS,
+                    () -> JWTSigningQueries.getJWTSigningKeys_Transaction(session));
         } catch (SQLException e) {
             throw new StorageQueryException(e);
         }
@@ -1021,6 +1065,7 @@ public class Start
     public void setJWTSigningKey_Transaction(TransactionConnection con, JWTSigningKeyInfo info)
             throws StorageQueryException, DuplicateKeyIdException {
         CustomSessionWrapper session = (CustomSessionWrapper) con.getSession();
+        SigningKeyCache.getInstance(this).invalidate();
         try {
             JWTSigningQueries.setJWTSigningKeyInfo_Transaction(session, info);
         } catch (PersistenceException e) {
@@ -1088,7 +1133,7 @@ public class Start
         CustomSessionWrapper session = (CustomSessionWrapper) con.getSession();
         try {
             PasswordlessQueries.incrementDeviceFailedAttemptCount_Transaction(session, deviceIdHash);
-        } catch (SQLException e) {
+        } catch (PersistenceException | SQLException e) {
             throw new StorageQueryException(e);
         }
 
@@ -1110,7 +1155,7 @@ public class Start
         CustomSessionWrapper session = (CustomSessionWrapper) con.getSession();
         try {
             PasswordlessQueries.deleteDevice_Transaction(session, deviceIdHash);
-        } catch (SQLException e) {
+        } catch (PersistenceException | SQLException e) {
             throw new StorageQueryException(e);
         }
 
@@ -1475,7 +1520,7 @@ public class Start
             throws StorageQueryException {
         CustomSessionWrapper session = (CustomSessionWrapper) con.getSession();
         try {
-            return UserMetadataQueries.setUserMetadata_Transaction(session, userId, metadata);
+            return UserMetadataQueries.setUserMetadata_Transaction(this, session, userId, metadata);
         } catch (SQLException e) {
             throw new StorageQueryException(e);
         }
@@ -1490,12 +1535,50 @@ public class Start
         }
     }
 
+    // not a part of the plugin interface (yet). This does what the core's updateUserMetadata does with
+    // getUserMetadata_Transaction and setUserMetadata_Transaction, but in a single query with
+    // postgresql_jsonb_user_metadata
+    public JsonObject mergeUserMetadata(String userId, JsonObject update) throws StorageQueryException {
+        try {
+            return UserMetadataQueries.mergeUserMetadata(this, userId, update);
+        } catch (SQLException e) {
+            throw new StorageQueryException(e);
+        }
+    }
+
+    public JsonObject getUserMetadataKeys(String userId, String... keys) throws StorageQueryException {
+        try {
+            return UserMetadataQueries.getUserMetadataKeys(this, userId, keys);
+        } catch (SQLException e) {
+            throw new StorageQueryException(e);
+        }
+    }
+
+    // not a part of the plugin interface (yet). For moving existing users into SuperTokens, see BulkImportQueries
+    public BulkImportQueries.ImportStatus[] importUsers(List<BulkImportQueries.ImportedUser> users)
+            throws StorageQueryException {
+        UserIdMappingFilter userIdMappingFilter = UserIdMappingFilter.getInstance(this);
+        if (userIdMappingFilter != null) {
+            for (BulkImportQueries.ImportedUser user : users) {
+                if (user.externalUserId != null) {
+                    userIdMappingFilter.added(user.user.id, user.externalUserId);
+                }
+            }
+        }
+        try {
+            return BulkImportQueries.importUsers(this, users);
+        } catch (PersistenceException | SQLException e) {
+            throw new StorageQueryException(e);
+        }
+    }
+
     @Override
     public void addRoleToUser(String userId, String role)
             throws StorageQueryException, UnknownRoleException, DuplicateUserRoleMappingException {
 
         try {
             UserRolesQueries.addRoleToUser(this, userId, role);
+            UserRolesCache.getInstance(this).invalidate();
         } catch (PersistenceException e) {
 //            final ConstraintViolationException eCause = (ConstraintViolationException) e.getCause();
 //            if (eCause.getConstraintName().equals("user_roles_pkey")) {
@@ -1527,7 +1610,8 @@ public class Start
     @Override
     public String[] getRolesForUser(String userId) throws StorageQueryException {
         try {
-            return UserRolesQueries.getRolesForUser(this, userId);
+            return UserRolesCache.getInstance(this).getRolesForUser(userId,
+                    () -> UserRolesQueries.getRolesForUser(this, userId));
         } catch (PersistenceException | SQLException e) {
             throw new StorageQueryException(e);
         }
@@ -1545,7 +1629,8 @@ public class Start
     @Override
     public String[] getPermissionsForRole(String role) throws StorageQueryException {
         try {
-            return UserRolesQueries.getPermissionsForRole(this, role);
+            return UserRolesCache.getInstance(this).getPermissionsForRole(role,
+                    () -> UserRolesQueries.getPermissionsForRole(this, role));
         } catch (PersistenceException | SQLException e) {
             throw new StorageQueryException(e);
         }
@@ -1563,7 +1648,9 @@ public class Start
     @Override
     public boolean deleteRole(String role) throws StorageQueryException {
         try {
-            return UserRolesQueries.deleteRole(this, role);
+            boolean deleted = UserRolesQueries.deleteRole(this, role);
+            UserRolesCache.getInstance(this).invalidate();
+            return deleted;
         } catch (PersistenceException | SQLException e) {
             throw new StorageQueryException(e);
         }
@@ -1590,7 +1677,9 @@ public class Start
     @Override
     public int deleteAllRolesForUser(String userId) throws StorageQueryException {
         try {
-            return UserRolesQueries.deleteAllRolesForUser(this, userId);
+            int deleted = UserRolesQueries.deleteAllRolesForUser(this, userId);
+            UserRolesCache.getInstance(this).invalidate();
+            return deleted;
         } catch (PersistenceException | SQLException e) {
             throw new StorageQueryException(e);
         }
@@ -1600,6 +1689,7 @@ public class Start
     public boolean deleteRoleForUser_Transaction(TransactionConnection con, String userId, String role)
             throws StorageQueryException {
         final CustomSessionWrapper session = (CustomSessionWrapper) con.getSession();
+        UserRolesCache.getInstance(this).invalidate();
         try {
             return UserRolesQueries.deleteRoleForUser_Transaction(session, userId, role);
         } catch (PersistenceException | SQLException e) {
@@ -1611,8 +1701,9 @@ public class Start
     public boolean createNewRoleOrDoNothingIfExists_Transaction(TransactionConnection con, String role)
             throws StorageQueryException {
         CustomSessionWrapper session = (CustomSessionWrapper) con.getSession();
+        UserRolesCache.getInstance(this).invalidate();
         try {
-            return UserRolesQueries.createNewRoleOrDoNothingIfExists_Transaction(session, role);
+            return UserRolesQueries.createNewRoleOrDoNothingIfExists_Transaction(this, session, role);
         } catch (PersistenceException | SQLException e) {
             throw new StorageQueryException(e);
         }
@@ -1622,20 +1713,20 @@ public class Start
     public void addPermissionToRoleOrDoNothingIfExists_Transaction(TransactionConnection con, String role,
             String permission) throws StorageQueryException, UnknownRoleException {
         CustomSessionWrapper session = (CustomSessionWrapper) con.getSession();
+        UserRolesCache.getInstance(this).invalidate();
         try {
-            UserRolesQueries.addPermissionToRoleOrDoNothingIfExists_Transaction(session, role, permission);
-        } catch (PersistenceException e) {
-            final Throwable cause = e.getCause().getCause();
-            if (cause instanceof PSQLException) {
+            UserRolesQueries.addPermissionToRoleOrDoNothingIfExists_Transaction(this, session, role, permission);
+        } catch (SQLException e) {
+            if (e instanceof PSQLException) {
                 PostgreSQLConfig config = Config.getConfig(this);
-                ServerErrorMessage serverErrorMessage = ((PSQLException) cause).getServerErrorMessage();
+                ServerErrorMessage serverErrorMessage = ((PSQLException) e).getServerErrorMessage();
                 if (isForeignKeyConstraintError(serverErrorMessage, config.getUserRolesPermissionsTable(), "role")) {
                     throw new UnknownRoleException();
                 }
             }
 
             throw new StorageQueryException(e);
-        } catch (SQLException e) {
+        } catch (PersistenceException e) {
             throw new StorageQueryException(e);
         }
     }
@@ -1644,6 +1735,7 @@ public class Start
     public boolean deletePermissionForRole_Transaction(TransactionConnection con, String role, String permission)
             throws StorageQueryException {
         CustomSessionWrapper session = (CustomSessionWrapper) con.getSession();
+        UserRolesCache.getInstance(this).invalidate();
         try {
             return UserRolesQueries.deletePermissionForRole_Transaction(session, role, permission);
         } catch (PersistenceException | SQLException e) {
@@ -1656,6 +1748,7 @@ public class Start
             throws StorageQueryException {
 
         CustomSessionWrapper session = (CustomSessionWrapper) con.getSession();
+        UserRolesCache.getInstance(this).invalidate();
         try {
             return UserRolesQueries.deleteAllPermissionsForRole_Transaction(session, role);
         } catch (PersistenceException | SQLException e) {
@@ -1677,6 +1770,15 @@ public class Start
     public void createUserIdMapping(String superTokensUserId, String externalUserId,
             @Nullable String externalUserIdInfo)
             throws StorageQueryException, UnknownSuperTokensUserIdException, UserIdMappingAlreadyExistsException {
+        if (Config.getConfig(this).useUuidUserIds() && !UserIdType.isUuid(superTokensUserId)) {
+            // it can't be in the users table, and binding it to the UUID column would fail with a different error
+            throw new UnknownSuperTokensUserIdException();
+        }
+        UserIdMappingFilter userIdMappingFilter = UserIdMappingFilter.getInstance(this);
+        if (userIdMappingFilter != null) {
+            // before the insert, so that there is no moment when the mapping exists but the filter says it doesn't
+            userIdMappingFilter.added(superTokensUserId, externalUserId);
+        }
         try {
             UserIdMappingQueries.createUserIdMapping(this, superTokensUserId, externalUserId, externalUserIdInfo);
 
@@ -1709,6 +1811,10 @@ public class Start
 
     @Override
     public boolean deleteUserIdMapping(String userId, boolean isSuperTokensUserId) throws StorageQueryException {
+        UserIdMappingFilter userIdMappingFilter = UserIdMappingFilter.getInstance(this);
+        if (userIdMappingFilter != null) {
+            userIdMappingFilter.removed();
+        }
         try {
             if (isSuperTokensUserId) {
                 return UserIdMappingQueries.deleteUserIdMappingWithSuperTokensUserId(this, userId);
@@ -1721,6 +1827,9 @@ public class Start
 
     @Override
     public UserIdMapping getUserIdMapping(String userId, boolean isSuperTokensUserId) throws StorageQueryException {
+        if (!mightHaveUserIdMapping(userId)) {
+            return null;
+        }
         try {
             if (isSuperTokensUserId) {
                 return UserIdMappingQueries.getUserIdMappingWithSuperTokensUserId(this, userId);
@@ -1733,7 +1842,9 @@ public class Start
 
     @Override
     public UserIdMapping[] getUserIdMapping(String userId) throws StorageQueryException {
-
+        if (!mightHaveUserIdMapping(userId)) {
+            return new UserIdMapping[0];
+        }
         try {
             return UserIdMappingQueries.getUserIdMappingWithSuperTokensUserIdOrExternalUserId(this, userId);
         } catch (SQLException e) {
@@ -1759,23 +1870,48 @@ public class Start
     @Override
     public boolean isUserIdBeingUsedInNonAuthRecipe(String className, String userId) throws StorageQueryException {
         // check if the input userId is being used in nonAuthRecipes.
+        int usageBit = getNonAuthRecipeUsageBit(className);
+        if (usageBit == 0) {
+            return false;
+        }
+        try {
+            return (GeneralQueries.getNonAuthRecipeUsage(this, userId) & usageBit) != 0;
+        } catch (SQLException e) {
+            throw new StorageQueryException(e);
+        }
+    }
+
+    // not a part of the plugin interface (yet). The class names of the non auth recipe storages that use the user ID,
+    // found with one query instead of one isUserIdBeingUsedInNonAuthRecipe call for each
+    public List<String> getNonAuthRecipesUsingUserId(String userId) throws StorageQueryException {
+        int usage;
+        try {
+            usage = GeneralQueries.getNonAuthRecipeUsage(this, userId);
+        } catch (SQLException e) {
+            throw new StorageQueryException(e);
+        }
+        List<String> classNames = new ArrayList<>();
+        for (Class<?> storageClass : new Class<?>[] { SessionStorage.class, UserRolesStorage.class,
+                UserMetadataStorage.class, EmailVerificationStorage.class }) {
+            if ((usage & getNonAuthRecipeUsageBit(storageClass.getName())) != 0) {
+                classNames.add(storageClass.getName());
+            }
+        }
+        return classNames;
+    }
+
+    private static int getNonAuthRecipeUsageBit(String className) {
         if (className.equals(SessionStorage.class.getName())) {
-            String[] sessionHandlesForUser = getAllNonExpiredSessionHandlesForUser(userId);
-            return sessionHandlesForUser.length > 0;
+            return GeneralQueries.SESSION_USAGE;
         } else if (className.equals(UserRolesStorage.class.getName())) {
-            String[] roles = getRolesForUser(userId);
-            return roles.length > 0;
+            return GeneralQueries.USER_ROLES_USAGE;
         } else if (className.equals(UserMetadataStorage.class.getName())) {
-            JsonObject userMetadata = getUserMetadata(userId);
-            return userMetadata != null;
+            return GeneralQueries.USER_METADATA_USAGE;
         } else if (className.equals(EmailVerificationStorage.class.getName())) {
-            try {
-                return EmailVerificationQueries.isUserIdBeingUsedForEmailVerification(this, userId);
-            } catch (SQLException e) {
-                throw new StorageQueryException(e);
-            }
+            return GeneralQueries.EMAIL_VERIFICATION_USAGE;
         } else if (className.equals(JWTRecipeStorage.class.getName())) {
-            return false;
+            // the JWT recipe doesn't store anything by user
+            return 0;
         } else {
             throw new IllegalStateException("ClassName: " + className + " is not part of NonAuthRecipeStorage");
         }
@@ -1837,10 +1973,20 @@ public class Start
     @Override
     public HashMap<String, String> getUserIdMappingForSuperTokensIds(ArrayList<String> userIds)
             throws StorageQueryException {
+        UserIdMappingFilter userIdMappingFilter = UserIdMappingFilter.getInstance(this);
+        if (userIdMappingFilter != null) {
+            userIds = userIds.stream().filter(userIdMappingFilter::mightHaveMapping)
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
         try {
             return UserIdMappingQueries.getUserIdMappingWithUserIds(this, userIds);
         } catch (SQLException e) {
             throw new StorageQueryException(e);
         }
     }
+
+    private boolean mightHaveUserIdMapping(String userId) {
+        UserIdMappingFilter userIdMappingFilter = UserIdMappingFilter.getInstance(this);
+        return userIdMappingFilter == null || userIdMappingFilter.mightHaveMapping(userId);
+    }
 }
@@ -0,0 +1,213 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.sql.config.Config;
+import io.supertokens.storage.sql.hibernate.UserIdType;
+import io.supertokens.storage.sql.output.Logging;
+import io.supertokens.storage.sql.queries.UserIdMappingQueries;
+import io.supertokens.storage.sql.utils.BloomFilter;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A node local Bloom filter of both user IDs of every user ID mapping. The core looks a user's mapping up on almost
+ * every request, and almost no users have one, so the filter lets us answer most of those lookups without a query.
+ * <p>
+ * It is built when the {@link DatabaseListener} starts listening, by reading every mapping, and after that a trigger
+ * sends every new mapping to every core on {@link #CHANNEL}. Mappings that this core creates are also added before
+ * they are written, so that it never says "no" to a mapping that might exist. While the listener is not connected,
+ * we can't know about new mappings, so the filter is not used until it is built again.
+ * <p>
+ * A Bloom filter can't forget a removed mapping, so it is rebuilt every
+ * postgresql_user_id_mapping_filter_rebuild_interval_ms, and sooner once it has taken as many changes as it was made
+ * for. A mapping that was added to the old filter may be written after the new one has read every mapping, so the old
+ * filter is still asked until the listener has handled the notifications that were sent while the new one was built.
+ */
+public class UserIdMappingFilter extends ResourceDistributor.SingletonResource implements DatabaseListener.Subscriber {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.sql.UserIdMappingFilter";
+
+    // The same for every schema and table prefix, see SigningKeyCache.CHANNEL
+    public static final String CHANNEL = "supertokens_user_id_mappings";
+
+    private static final long MIN_CAPACITY = 10000;
+
+    private final Start start;
+    private final long rebuildInterval;
+    private final boolean uuidUserIds;
+
+    // null while it may not have every mapping: before it is first built and while we are not listening
+    private volatile Filter filter = null;
+    // the filter being built, which must also get what is added while it is being built
+    private volatile Filter building = null;
+
+    private UserIdMappingFilter(Start start) {
+        this.start = start;
+        this.rebuildInterval = Config.getConfig(start).getUserIdMappingFilterRebuildIntervalMs();
+        this.uuidUserIds = Config.getConfig(start).useUuidUserIds();
+    }
+
+    public static UserIdMappingFilter getInstance(Start start) {
+        return (UserIdMappingFilter) start.getResourceDistributor().getResource(RESOURCE_KEY);
+    }
+
+    static void init(Start start) {
+        if (getInstance(start) != null || Config.getConfig(start).getUserIdMappingFilterRebuildIntervalMs() == 0) {
+            return;
+        }
+        UserIdMappingFilter userIdMappingFilter = new UserIdMappingFilter(start);
+        start.getResourceDistributor().setResource(RESOURCE_KEY, userIdMappingFilter);
+        DatabaseListener.subscribe(start, CHANNEL, userIdMappingFilter);
+    }
+
+    /**
+     * False only if no mapping has userId as its SuperTokens or its external user ID.
+     */
+    public boolean mightHaveMapping(String userId) {
+        Filter current = filter;
+        if (current == null) {
+            return true;
+        }
+        if (mightContain(current, userId)) {
+            return true;
+        }
+        if (current.draining) {
+            // null if there was no filter to add to before, in which case it could be anything
+            Filter previous = current.previous;
+            return previous == null || mightContain(previous, userId);
+        }
+        return false;
+    }
+
+    /**
+     * Must be called before the mapping is written.
+     */
+    public void added(String superTokensUserId, String externalUserId) {
+        // building is read first: if it is already null by then, rebuild has published the new filter
+        Filter currentBuilding = building;
+        for (Filter current : new Filter[] { currentBuilding, filter }) {
+            if (current != null) {
+                current.bloomFilter.add(normaliseSuperTokensUserId(superTokensUserId));
+                current.bloomFilter.add(externalUserId);
+                current.changes.incrementAndGet();
+            }
+        }
+    }
+
+    public void removed() {
+        Filter current = filter;
+        if (current != null) {
+            current.changes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stops using the filter until it has been built again.
+     */
+    public void invalidate() {
+        filter = null;
+    }
+
+    @Override
+    public void listening() throws SQLException, StorageQueryException {
+        rebuild();
+    }
+
+    @Override
+    public void notified(String payload) {
+        JsonArray userIds = new JsonParser().parse(payload).getAsJsonArray();
+        added(userIds.get(0).getAsString(), userIds.get(1).getAsString());
+    }
+
+    @Override
+    public void stoppedListening() {
+        filter = null;
+    }
+
+    @Override
+    public void poll() throws SQLException, StorageQueryException {
+        Filter current = filter;
+        if (current != null && current.draining) {
+            // the listener has been through the notifications that were sent while it was built
+            current.draining = false;
+            current.previous = null;
+        }
+        if (current == null || System.currentTimeMillis() - current.builtAt >= rebuildInterval
+                || current.changes.get() >= current.capacity - current.initialSize) {
+            rebuild();
+        }
+    }
+
+    // only called on the listener thread
+    private void rebuild() throws SQLException, StorageQueryException {
+        long count = UserIdMappingQueries.getUserIdMappingCount(start);
+        long capacity = Math.max(MIN_CAPACITY, 2 * count);
+        Filter newFilter = new Filter(capacity, count, filter);
+        building = newFilter;
+        try {
+            UserIdMappingQueries.forEachUserIdMapping(start, (superTokensUserId, externalUserId) -> {
+                newFilter.bloomFilter.add(normaliseSuperTokensUserId(superTokensUserId));
+                newFilter.bloomFilter.add(externalUserId);
+            });
+            // published before building is cleared, so that added() always reaches newFilter through one of them
+            filter = newFilter;
+        } finally {
+            building = null;
+        }
+        Logging.debug(start, "Built the user ID mapping filter from " + count + " mappings");
+    }
+
+    private boolean mightContain(Filter filter, String userId) {
+        return filter.bloomFilter.mightContain(userId)
+                || filter.bloomFilter.mightContain(normaliseSuperTokensUserId(userId));
+    }
+
+    // The form in which the database compares SuperTokens user IDs: a UUID column doesn't care about case, and a CHAR
+    // column doesn't care about trailing spaces.
+    private String normaliseSuperTokensUserId(String userId) {
+        String normalised = userId.replaceAll(" +$", "");
+        if (uuidUserIds && UserIdType.isUuid(normalised)) {
+            normalised = normalised.toLowerCase();
+        }
+        return normalised;
+    }
+
+    private static class Filter {
+        // each mapping adds two user IDs
+        final BloomFilter bloomFilter;
+        final long capacity;
+        final long initialSize;
+        final long builtAt = System.currentTimeMillis();
+        // mappings added or removed since it was built
+        final AtomicLong changes = new AtomicLong();
+        // the filter that was in use when this one was built, and is asked as well until draining is false
+        volatile Filter previous;
+        volatile boolean draining = true;
+
+        Filter(long capacity, long initialSize, Filter previous) {
+            this.bloomFilter = new BloomFilter(2 * capacity);
+            this.capacity = capacity;
+            this.initialSize = initialSize;
+            this.previous = previous;
+        }
+    }
+}
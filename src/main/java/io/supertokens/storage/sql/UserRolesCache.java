@@ -0,0 +1,169 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql;
+
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.sql.config.Config;
+import io.supertokens.storage.sql.queries.UserRolesQueries;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A node local cache of the roles of users and the permissions of roles, so that an authorisation check (the roles of
+ * a user, and then the permissions of each of them) doesn't go to the database for every role.
+ * <p>
+ * Every statement that changes the roles tables bumps a version in the database (see
+ * {@link UserRolesQueries#getVersion}). We read it at most once every
+ * postgresql_user_roles_cache_version_check_interval_ms, and empty the cache when it has changed, so a change made
+ * by another core is seen here after at most that long. Changes made through this core empty the cache right away.
+ * <p>
+ * Each of the two maps keeps at most postgresql_user_roles_cache_size entries, dropping the least recently used.
+ */
+public class UserRolesCache extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.sql.UserRolesCache";
+
+    private final Start start;
+    private final int size;
+    private final long versionCheckInterval;
+
+    // everything below is guarded by lock
+    private final Object lock = new Object();
+    private final Map<String, String[]> rolesOfUser;
+    private final Map<String, String[]> permissionsOfRole;
+    private long version = -1;
+    // bumped whenever the maps are emptied, so that a read that raced with that doesn't put back what was removed
+    private long generation = 0;
+    private volatile long versionCheckedAt = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private UserRolesCache(Start start) {
+        this.start = start;
+        this.size = Config.getConfig(start).getUserRolesCacheSize();
+        this.versionCheckInterval = Config.getConfig(start).getUserRolesCacheVersionCheckIntervalMs();
+        this.rolesOfUser = new LruMap(size);
+        this.permissionsOfRole = new LruMap(size);
+    }
+
+    public static UserRolesCache getInstance(Start start) {
+        return (UserRolesCache) start.getResourceDistributor().getResource(RESOURCE_KEY);
+    }
+
+    static void init(Start start) {
+        if (getInstance(start) != null) {
+            return;
+        }
+        start.getResourceDistributor().setResource(RESOURCE_KEY, new UserRolesCache(start));
+    }
+
+    public interface Loader {
+        String[] load() throws SQLException, StorageQueryException;
+    }
+
+    public String[] getRolesForUser(String userId, Loader loader) throws SQLException, StorageQueryException {
+        return get(rolesOfUser, userId, loader);
+    }
+
+    public String[] getPermissionsForRole(String role, Loader loader) throws SQLException, StorageQueryException {
+        return get(permissionsOfRole, role, loader);
+    }
+
+    public void invalidate() {
+        synchronized (lock) {
+            clear();
+            // the change may not be committed yet, so we also don't trust what we read until we have checked again
+            versionCheckedAt = 0;
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private String[] get(Map<String, String[]> map, String key, Loader loader)
+            throws SQLException, StorageQueryException {
+        if (size == 0) {
+            return loader.load();
+        }
+        checkVersion();
+
+        String[] value;
+        long generationBeforeLoad;
+        synchronized (lock) {
+            value = map.get(key);
+            generationBeforeLoad = generation;
+        }
+        if (value != null) {
+            hits.incrementAndGet();
+            return value.clone();
+        }
+
+        misses.incrementAndGet();
+        value = loader.load();
+        synchronized (lock) {
+            if (generation == generationBeforeLoad) {
+                map.put(key, value.clone());
+            }
+        }
+        return value;
+    }
+
+    private void checkVersion() throws SQLException, StorageQueryException {
+        long now = System.currentTimeMillis();
+        if (now - versionCheckedAt < versionCheckInterval) {
+            return;
+        }
+        long currentVersion = UserRolesQueries.getVersion(start);
+        synchronized (lock) {
+            if (currentVersion != version) {
+                clear();
+                version = currentVersion;
+            }
+            // the time from before the query, since anything committed after that may not be in currentVersion
+            versionCheckedAt = now;
+        }
+    }
+
+    private void clear() {
+        rolesOfUser.clear();
+        permissionsOfRole.clear();
+        generation++;
+    }
+
+    private static class LruMap extends LinkedHashMap<String, String[]> {
+        private final int maxSize;
+
+        LruMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
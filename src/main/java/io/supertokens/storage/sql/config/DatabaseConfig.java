@@ -64,6 +64,15 @@ public interface DatabaseConfig {
 
     String getJWTSigningKeysTable();
 
+    // if true, the SuperTokens user ID columns are UUID instead of CHAR(36). See UserIdType
+    boolean useUuidUserIds();
+
+    // if true, the hash and token columns are BYTEA instead of text. See HashType
+    boolean useBinaryHashes();
+
+    // if true, the user metadata column is JSONB instead of TEXT. See JsonType
+    boolean useJsonbUserMetadata();
+
     String getUserMetadataTable();
 
     String addSchemaAndPrefixToTableName(String tableName);
@@ -77,11 +77,146 @@ public class PostgreSQLConfig implements DatabaseConfig {
     @JsonProperty
     private String postgresql_connection_uri = null;
 
+    @JsonProperty
+    private boolean postgresql_session_info_partitioned = false;
+
+    // the core's default refresh token validity, 100 days
+    @JsonProperty
+    private long postgresql_session_info_max_session_lifetime_ms = 100L * 24 * 60 * 60 * 1000;
+
+    @JsonProperty
+    private int postgresql_expired_rows_delete_batch_size = 1000;
+
+    @JsonProperty
+    private long postgresql_expired_rows_delete_batch_pause_ms = 100;
+
+    @JsonProperty
+    private boolean postgresql_approximate_counts = false;
+
+    @JsonProperty
+    private boolean postgresql_uuid_user_ids = false;
+
+    @JsonProperty
+    private boolean postgresql_binary_hashes = false;
+
+    @JsonProperty
+    private boolean postgresql_jsonb_user_metadata = false;
+
+    @JsonProperty
+    private long postgresql_signing_keys_cache_ttl_ms = 60000;
+
+    @JsonProperty
+    private int postgresql_user_roles_cache_size = 10000;
+
+    @JsonProperty
+    private long postgresql_user_roles_cache_version_check_interval_ms = 1000;
+
+    @JsonProperty
+    private long postgresql_user_id_mapping_filter_rebuild_interval_ms = 3600000;
+
+    @JsonProperty
+    private long postgresql_session_cache_ttl_ms = 0;
+
+    @JsonProperty
+    private int postgresql_session_cache_size = 10000;
+
+    @JsonProperty
+    private int postgresql_email_verification_cache_size = 10000;
+
+    @JsonProperty
+    private long postgresql_email_verification_cache_ttl_ms = 60000;
+
+    @JsonProperty
+    private long postgresql_email_verification_cache_negative_ttl_ms = 5000;
+
     @Override
     public String getTableSchema() {
         return postgresql_table_schema;
     }
 
+    public boolean isSessionInfoPartitioned() {
+        return postgresql_session_info_partitioned;
+    }
+
+    public long getSessionInfoMaxSessionLifetimeMs() {
+        return postgresql_session_info_max_session_lifetime_ms;
+    }
+
+    public int getExpiredRowsDeleteBatchSize() {
+        return postgresql_expired_rows_delete_batch_size;
+    }
+
+    public long getExpiredRowsDeleteBatchPauseMs() {
+        return postgresql_expired_rows_delete_batch_pause_ms;
+    }
+
+    public boolean useApproximateCounts() {
+        return postgresql_approximate_counts;
+    }
+
+    @Override
+    public boolean useUuidUserIds() {
+        return postgresql_uuid_user_ids;
+    }
+
+    public String getUserIdColumnType() {
+        return postgresql_uuid_user_ids ? "UUID" : "CHAR(36)";
+    }
+
+    @Override
+    public boolean useBinaryHashes() {
+        return postgresql_binary_hashes;
+    }
+
+    public String getHashColumnType(String textType) {
+        return postgresql_binary_hashes ? "BYTEA" : textType;
+    }
+
+    @Override
+    public boolean useJsonbUserMetadata() {
+        return postgresql_jsonb_user_metadata;
+    }
+
+    public String getUserMetadataColumnType() {
+        return postgresql_jsonb_user_metadata ? "JSONB" : "TEXT";
+    }
+
+    public long getSigningKeysCacheTtlMs() {
+        return postgresql_signing_keys_cache_ttl_ms;
+    }
+
+    public int getUserRolesCacheSize() {
+        return postgresql_user_roles_cache_size;
+    }
+
+    public long getUserRolesCacheVersionCheckIntervalMs() {
+        return postgresql_user_roles_cache_version_check_interval_ms;
+    }
+
+    public long getUserIdMappingFilterRebuildIntervalMs() {
+        return postgresql_user_id_mapping_filter_rebuild_interval_ms;
+    }
+
+    public long getSessionCacheTtlMs() {
+        return postgresql_session_cache_ttl_ms;
+    }
+
+    public int getSessionCacheSize() {
+        return postgresql_session_cache_size;
+    }
+
+    public int getEmailVerificationCacheSize() {
+        return postgresql_email_verification_cache_size;
+    }
+
+    public long getEmailVerificationCacheTtlMs() {
+        return postgresql_email_verification_cache_ttl_ms;
+    }
+
+    public long getEmailVerificationCacheNegativeTtlMs() {
+        return postgresql_email_verification_cache_negative_ttl_ms;
+    }
+
     @Override
     public int getConnectionPoolSize() {
         return postgresql_connection_pool_size;
@@ -321,6 +456,34 @@ public class PostgreSQLConfig implements DatabaseConfig {
         return addSchemaAndPrefixToTableName("userid_mapping");
     }
 
+    public String getSchemaVersionsTable() {
+        return addSchemaAndPrefixToTableName("schema_versions");
+    }
+
+    public String getCountersTable() {
+        return addSchemaAndPrefixToTableName("counters");
+    }
+
+    public String getSigningKeysNotifyFunction() {
+        return addSchemaAndPrefixToTableName("signing_keys_notify");
+    }
+
+    public String getUserRolesVersionFunction() {
+        return addSchemaAndPrefixToTableName("user_roles_version");
+    }
+
+    public String getUserIdMappingNotifyFunction() {
+        return addSchemaAndPrefixToTableName("userid_mapping_notify");
+    }
+
+    public String getSessionInfoNotifyFunction() {
+        return addSchemaAndPrefixToTableName("session_info_notify");
+    }
+
+    public String getEmailVerificationNotifyFunction() {
+        return addSchemaAndPrefixToTableName("emailverification_notify");
+    }
+
     @Override
     public String addSchemaAndPrefixToTableName(String tableName) {
         String name = tableName;
@@ -360,6 +523,66 @@ public class PostgreSQLConfig implements DatabaseConfig {
             throw new QuitProgramFromPluginException(
                     "'postgresql_connection_pool_size' in the config.yaml file must be > 0");
         }
+
+        if (getSessionInfoMaxSessionLifetimeMs() <= 0) {
+            throw new QuitProgramFromPluginException(
+                    "'postgresql_session_info_max_session_lifetime_ms' in the config.yaml file must be > 0");
+        }
+
+        if (getExpiredRowsDeleteBatchSize() <= 0) {
+            throw new QuitProgramFromPluginException(
+                    "'postgresql_expired_rows_delete_batch_size' in the config.yaml file must be > 0");
+        }
+
+        if (getExpiredRowsDeleteBatchPauseMs() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'postgresql_expired_rows_delete_batch_pause_ms' in the config.yaml file must be >= 0");
+        }
+
+        if (getSigningKeysCacheTtlMs() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'postgresql_signing_keys_cache_ttl_ms' in the config.yaml file must be >= 0");
+        }
+
+        if (getUserRolesCacheSize() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'postgresql_user_roles_cache_size' in the config.yaml file must be >= 0");
+        }
+
+        if (getUserRolesCacheVersionCheckIntervalMs() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'postgresql_user_roles_cache_version_check_interval_ms' in the config.yaml file must be >= 0");
+        }
+
+        if (getUserIdMappingFilterRebuildIntervalMs() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'postgresql_user_id_mapping_filter_rebuild_interval_ms' in the config.yaml file must be >= 0");
+        }
+
+        if (getSessionCacheTtlMs() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'postgresql_session_cache_ttl_ms' in the config.yaml file must be >= 0");
+        }
+
+        if (getSessionCacheSize() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'postgresql_session_cache_size' in the config.yaml file must be >= 0");
+        }
+
+        if (getEmailVerificationCacheSize() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'postgresql_email_verification_cache_size' in the config.yaml file must be >= 0");
+        }
+
+        if (getEmailVerificationCacheTtlMs() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'postgresql_email_verification_cache_ttl_ms' in the config.yaml file must be >= 0");
+        }
+
+        if (getEmailVerificationCacheNegativeTtlMs() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'postgresql_email_verification_cache_negative_ttl_ms' in the config.yaml file must be >= 0");
+        }
     }
 
     @Override
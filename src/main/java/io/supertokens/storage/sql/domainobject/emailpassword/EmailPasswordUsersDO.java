@@ -17,9 +17,11 @@
 package io.supertokens.storage.sql.domainobject.emailpassword;
 
 import io.supertokens.storage.sql.domainobject.PrimaryKeyFetchable;
+import io.supertokens.storage.sql.hibernate.UserIdType;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.hibernate.annotations.Type;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -46,6 +48,7 @@ public class EmailPasswordUsersDO extends PrimaryKeyFetchable {
 
     @Id
     @Column(length = 36, nullable = false)
+    @Type(type = UserIdType.NAME)
     private String user_id;
 
     @Column(length = 256, nullable = false, unique = true)
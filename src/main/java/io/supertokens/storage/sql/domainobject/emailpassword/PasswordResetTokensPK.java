@@ -16,11 +16,13 @@
 
 package io.supertokens.storage.sql.domainobject.emailpassword;
 
+import io.supertokens.storage.sql.hibernate.HashType;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import org.hibernate.annotations.OnDelete;
 import org.hibernate.annotations.OnDeleteAction;
+import org.hibernate.annotations.Type;
 
 import javax.persistence.*;
 import java.io.Serializable;
@@ -41,6 +43,7 @@ public class PasswordResetTokensPK implements Serializable {
     // we call .getUser_id() function, it returns it correctly.. how?
 
     @Column(length = 128, nullable = false, unique = true)
+    @Type(type = HashType.HEX)
     private String token;
 
     public String getUser_id() {
@@ -16,10 +16,12 @@
 
 package io.supertokens.storage.sql.domainobject.emailverification;
 
+import io.supertokens.storage.sql.hibernate.HashType;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.hibernate.annotations.Type;
 
 import javax.persistence.Column;
 import javax.persistence.Embeddable;
@@ -39,6 +41,7 @@ public class EmailVerificationTokensPK implements Serializable {
     private String email;
 
     @Column(length = 128, nullable = false, unique = true)
+    @Type(type = HashType.HEX)
     private String token;
 
     @Override
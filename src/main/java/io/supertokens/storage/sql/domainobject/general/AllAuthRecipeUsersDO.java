@@ -17,9 +17,11 @@
 package io.supertokens.storage.sql.domainobject.general;
 
 import io.supertokens.storage.sql.domainobject.PrimaryKeyFetchable;
+import io.supertokens.storage.sql.hibernate.UserIdType;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.hibernate.annotations.Type;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -50,6 +52,7 @@ public class AllAuthRecipeUsersDO extends PrimaryKeyFetchable {
 
     @Id
     @Column(length = 36, nullable = false)
+    @Type(type = UserIdType.NAME)
     private String user_id;
 
     @Column(length = 128, nullable = false)
@@ -17,9 +17,11 @@
 package io.supertokens.storage.sql.domainobject.passwordless;
 
 import io.supertokens.storage.sql.domainobject.PrimaryKeyFetchable;
+import io.supertokens.storage.sql.hibernate.HashType;
 import lombok.*;
 import org.hibernate.annotations.OnDelete;
 import org.hibernate.annotations.OnDeleteAction;
+import org.hibernate.annotations.Type;
 
 import javax.persistence.*;
 import java.io.Serializable;
@@ -48,6 +50,7 @@ public class PasswordlessCodesDO extends PrimaryKeyFetchable {
     private PasswordlessDevicesDO passwordlessDevice;
 
     @Column(length = 44, nullable = false, unique = true)
+    @Type(type = HashType.BASE64)
     private String link_code_hash;
 
     @Column(nullable = false)
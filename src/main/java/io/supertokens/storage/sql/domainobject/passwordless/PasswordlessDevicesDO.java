@@ -17,10 +17,12 @@
 package io.supertokens.storage.sql.domainobject.passwordless;
 
 import io.supertokens.storage.sql.domainobject.PrimaryKeyFetchable;
+import io.supertokens.storage.sql.hibernate.HashType;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.hibernate.annotations.Type;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -42,6 +44,7 @@ public class PasswordlessDevicesDO extends PrimaryKeyFetchable {
 
     @Id
     @Column(length = 44)
+    @Type(type = HashType.BASE64)
     private String device_id_hash;
 
     @Column(length = 256)
@@ -51,6 +54,7 @@ public class PasswordlessDevicesDO extends PrimaryKeyFetchable {
     private String phone_number;
 
     @Column(length = 44, nullable = false)
+    @Type(type = HashType.BASE64)
     private String link_code_salt;
 
     @Column(nullable = false)
@@ -17,10 +17,12 @@
 package io.supertokens.storage.sql.domainobject.passwordless;
 
 import io.supertokens.storage.sql.domainobject.PrimaryKeyFetchable;
+import io.supertokens.storage.sql.hibernate.UserIdType;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.hibernate.annotations.Type;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -42,6 +44,7 @@ public class PasswordlessUsersDO extends PrimaryKeyFetchable {
 
     @Id
     @Column(length = 36)
+    @Type(type = UserIdType.NAME)
     private String user_id;
 
     @Column(length = 256, unique = true)
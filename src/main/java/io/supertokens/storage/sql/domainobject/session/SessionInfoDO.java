@@ -17,10 +17,12 @@
 package io.supertokens.storage.sql.domainobject.session;
 
 import io.supertokens.storage.sql.domainobject.PrimaryKeyFetchable;
+import io.supertokens.storage.sql.hibernate.HashType;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.hibernate.annotations.Type;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -49,6 +51,7 @@ public class SessionInfoDO extends PrimaryKeyFetchable {
     private String user_id;
 
     @Column(length = 128, nullable = false)
+    @Type(type = HashType.HEX)
     private String refresh_token_hash_2;
 
     @Column(columnDefinition = "TEXT")
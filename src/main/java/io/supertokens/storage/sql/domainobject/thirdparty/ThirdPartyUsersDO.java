@@ -17,9 +17,11 @@
 package io.supertokens.storage.sql.domainobject.thirdparty;
 
 import io.supertokens.storage.sql.domainobject.PrimaryKeyFetchable;
+import io.supertokens.storage.sql.hibernate.UserIdType;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.hibernate.annotations.Type;
 
 import javax.persistence.Column;
 import javax.persistence.EmbeddedId;
@@ -49,6 +51,7 @@ public class ThirdPartyUsersDO extends PrimaryKeyFetchable {
     private ThirdPartyUsersPK pk;
 
     @Column(length = 36, nullable = false, unique = true)
+    @Type(type = UserIdType.NAME)
     private String user_id;
 
     @Column(length = 256, nullable = false)
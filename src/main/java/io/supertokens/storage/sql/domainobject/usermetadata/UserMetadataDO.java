@@ -17,10 +17,12 @@
 package io.supertokens.storage.sql.domainobject.usermetadata;
 
 import io.supertokens.storage.sql.domainobject.PrimaryKeyFetchable;
+import io.supertokens.storage.sql.hibernate.JsonType;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.hibernate.annotations.Type;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -44,6 +46,7 @@ public class UserMetadataDO extends PrimaryKeyFetchable {
     private String user_id;
 
     @Column(columnDefinition = "TEXT")
+    @Type(type = JsonType.NAME)
     private String user_metadata;
 
     @Override
@@ -21,6 +21,7 @@ import io.supertokens.storage.sql.domainobject.PrimaryKeyFetchable;
 import org.hibernate.*;
 import org.hibernate.graph.RootGraph;
 import org.hibernate.internal.SessionImpl;
+import org.hibernate.persister.entity.EntityPersister;
 import org.hibernate.procedure.ProcedureCall;
 import org.hibernate.query.NativeQuery;
 import org.hibernate.stat.SessionStatistics;
@@ -70,10 +71,11 @@ public class CustomSessionWrapper implements Session {
     }
 
     public <T> void delete(Class<T> theClass, Serializable id, T object) {
-        if (this.contains(object)) {
-            // if it comes here, it means that the entity is already loaded up in our entity memory or
-            // in hibernate's session memory.
-            object = this.get(theClass, id);
+        T loaded = this.getLoaded(theClass, id);
+        if (loaded != null) {
+            // the row is already in hibernate's session memory, so we delete that instance. For any other instance,
+            // hibernate first selects the row to find out if it exists.
+            object = loaded;
         }
         this.session.delete(object);
         this.updateCache(object, theClass.getName(), id);
@@ -202,6 +204,53 @@ public class CustomSessionWrapper implements Session {
         return (SessionImpl) this.session;
     }
 
+    /**
+     * For writes that hibernate can't express, like INSERT ... ON CONFLICT. Pending changes are flushed first so that
+     * they reach the db before the write. Once done, call written or forget for the row that was written.
+     */
+    public Connection getConnectionForNativeWrite() {
+        this.flush();
+        return this.getSessionImpl().connection();
+    }
+
+    /**
+     * Tells this session the state of a row that was written without hibernate, as if it had been loaded. This does
+     * not query the db, so a later get or delete of the row in this session doesn't need to select it either.
+     */
+    public <T> void written(Class<T> entityType, Serializable id, T entity) {
+        this.forget(entityType, id);
+        this.session.buildLockRequest(LockOptions.NONE).lock(entity);
+        this.updateCache(entity, entityType.getName(), id);
+    }
+
+    /**
+     * Drops what this session knows about a row that was written without hibernate (including that it didn't
+     * exist), so that the next get reads it from the db.
+     */
+    public void forget(Class<?> entityType, Serializable id) {
+        Set<Serializable> cacheForNullIds = this.nullEntityCache.get(entityType.getName());
+        if (cacheForNullIds != null) {
+            cacheForNullIds.remove(id);
+        }
+        Object entity = this.getLoaded(entityType, id);
+        if (entity != null) {
+            this.entitySet.remove(entity);
+            this.session.detach(entity);
+        }
+    }
+
+    /**
+     * The instance of the row in hibernate's session memory, if there is one. Unlike get, this never queries the db.
+     */
+    @Nullable
+    private <T> T getLoaded(Class<T> entityType, Serializable id) {
+        SessionImpl sessionImpl = this.getSessionImpl();
+        EntityPersister persister = sessionImpl.getFactory().getMetamodel().entityPersister(entityType);
+        Object entity = sessionImpl.getPersistenceContextInternal()
+                .getEntity(sessionImpl.generateEntityKey(id, persister));
+        return entityType.isInstance(entity) ? entityType.cast(entity) : null;
+    }
+
     private void setIsolationLevel(@Nullable SQLStorage.TransactionIsolationLevel isolationLevel) throws SQLException {
         Connection con = this.getSessionImpl().connection();
 
@@ -0,0 +1,186 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.hibernate;
+
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.usertype.UserType;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Objects;
+
+/**
+ * The type of the columns that hold hashes and tokens (see DatabaseConfig.useBinaryHashes). In the domain objects
+ * they are always the base64 or hex String that the core gives us. In the database they are either text, or, if
+ * postgresql_binary_hashes is set, BYTEA holding the decoded bytes, which makes the unique indexes on them about half
+ * the size.
+ * <p>
+ * The core always generates well formed values, but we can't rely on that for everything that is passed to us (tests
+ * use arbitrary strings, for example). So the first byte of the stored value says how the rest is to be read: the
+ * decoded bytes, or, if the value didn't decode to exactly itself, its UTF-8 bytes. Either way, equal strings are
+ * stored as equal bytes, so lookups and unique constraints behave just like with text columns.
+ */
+public class HashType implements UserType {
+
+    // the names used in @Type(type = ...) on the hash columns of the domain objects
+    public static final String BASE64 = "base64_hash";
+    public static final String HEX = "hex_hash";
+
+    private static final byte DECODED = 0;
+    private static final byte TEXT = 1;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final boolean binary;
+    private final boolean base64;
+
+    public HashType(boolean binary, boolean base64) {
+        this.binary = binary;
+        this.base64 = base64;
+    }
+
+    static byte[] toBytes(String value, boolean base64) {
+        byte[] decoded = base64 ? decodeBase64(value) : decodeHex(value);
+        byte[] result;
+        if (decoded == null) {
+            byte[] text = value.getBytes(StandardCharsets.UTF_8);
+            result = new byte[text.length + 1];
+            result[0] = TEXT;
+            System.arraycopy(text, 0, result, 1, text.length);
+        } else {
+            result = new byte[decoded.length + 1];
+            result[0] = DECODED;
+            System.arraycopy(decoded, 0, result, 1, decoded.length);
+        }
+        return result;
+    }
+
+    static String fromBytes(byte[] bytes, boolean base64) {
+        byte[] payload = Arrays.copyOfRange(bytes, 1, bytes.length);
+        if (bytes[0] == TEXT) {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+        return base64 ? Base64.getEncoder().encodeToString(payload) : encodeHex(payload);
+    }
+
+    // null unless the value is in the exact form that encoding the result gives back
+    private static byte[] decodeBase64(String value) {
+        try {
+            byte[] decoded = Base64.getDecoder().decode(value);
+            return Base64.getEncoder().encodeToString(decoded).equals(value) ? decoded : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static byte[] decodeHex(String value) {
+        if (value.length() % 2 != 0) {
+            return null;
+        }
+        byte[] decoded = new byte[value.length() / 2];
+        for (int i = 0; i < decoded.length; i++) {
+            int high = Arrays.binarySearch(HEX_DIGITS, value.charAt(2 * i));
+            int low = Arrays.binarySearch(HEX_DIGITS, value.charAt(2 * i + 1));
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            decoded[i] = (byte) ((high << 4) | low);
+        }
+        return decoded;
+    }
+
+    private static String encodeHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+        }
+        return result.toString();
+    }
+
+    @Override
+    public int[] sqlTypes() {
+        return new int[] { binary ? Types.BINARY : Types.VARCHAR };
+    }
+
+    @Override
+    public Class<String> returnedClass() {
+        return String.class;
+    }
+
+    @Override
+    public boolean equals(Object x, Object y) {
+        return Objects.equals(x, y);
+    }
+
+    @Override
+    public int hashCode(Object x) {
+        return Objects.hashCode(x);
+    }
+
+    @Override
+    public Object nullSafeGet(ResultSet rs, String[] names, SharedSessionContractImplementor session, Object owner)
+            throws SQLException {
+        if (!binary) {
+            return rs.getString(names[0]);
+        }
+        byte[] bytes = rs.getBytes(names[0]);
+        return bytes == null ? null : fromBytes(bytes, base64);
+    }
+
+    @Override
+    public void nullSafeSet(PreparedStatement st, Object value, int index, SharedSessionContractImplementor session)
+            throws SQLException {
+        if (!binary) {
+            st.setString(index, (String) value);
+        } else if (value == null) {
+            st.setNull(index, Types.BINARY);
+        } else {
+            st.setBytes(index, toBytes((String) value, base64));
+        }
+    }
+
+    @Override
+    public Object deepCopy(Object value) {
+        return value;
+    }
+
+    @Override
+    public boolean isMutable() {
+        return false;
+    }
+
+    @Override
+    public Serializable disassemble(Object value) {
+        return (Serializable) value;
+    }
+
+    @Override
+    public Object assemble(Serializable cached, Object owner) {
+        return cached;
+    }
+
+    @Override
+    public Object replace(Object original, Object target, Object owner) {
+        return original;
+    }
+}
@@ -62,7 +62,11 @@ public class HibernateUtils {
         }
 
         final Metadata metadata = metadataSources.getMetadataBuilder().enableNewIdentifierGeneratorSupport(true)
-                .applyPhysicalNamingStrategy(physicalNamingStrategy(databaseConfig)).build();
+                .applyPhysicalNamingStrategy(physicalNamingStrategy(databaseConfig))
+                .applyBasicType(new UserIdType(databaseConfig.useUuidUserIds()), UserIdType.NAME)
+                .applyBasicType(new HashType(databaseConfig.useBinaryHashes(), true), HashType.BASE64)
+                .applyBasicType(new HashType(databaseConfig.useBinaryHashes(), false), HashType.HEX)
+                .applyBasicType(new JsonType(databaseConfig.useJsonbUserMetadata()), JsonType.NAME).build();
 
         final SessionFactoryBuilder sessionFactoryBuilder = metadata.getSessionFactoryBuilder();
 
@@ -99,6 +103,11 @@ public class HibernateUtils {
             properties.put(Environment.DIALECT, databaseConfig.getDialect());
         }
 
+        // An IN (:list) query is a different SQL string for every length of the list, each of which takes an entry
+        // in the query plan cache and the driver's statement cache. With padding, the list is filled up to the next
+        // power of two by repeating its last value, so there are only a few distinct lengths.
+        properties.put(Environment.IN_CLAUSE_PARAMETER_PADDING, true);
+
         // data source settings
         properties.put(Environment.DATASOURCE, dataSource);
 
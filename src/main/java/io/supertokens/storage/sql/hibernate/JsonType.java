@@ -0,0 +1,107 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.hibernate;
+
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.usertype.UserType;
+
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Objects;
+
+/**
+ * The type of the columns that hold a JSON document (see DatabaseConfig.useJsonbUserMetadata). In the domain objects
+ * the document is always a String. In the database it is either TEXT, or, if postgresql_jsonb_user_metadata is set,
+ * JSONB, which lets us merge into it and read parts of it in SQL.
+ */
+public class JsonType implements UserType {
+
+    // the name used in @Type(type = ...) on the JSON columns of the domain objects
+    public static final String NAME = "json_document";
+
+    private final boolean asJsonb;
+
+    public JsonType(boolean asJsonb) {
+        this.asJsonb = asJsonb;
+    }
+
+    @Override
+    public int[] sqlTypes() {
+        return new int[] { asJsonb ? Types.OTHER : Types.VARCHAR };
+    }
+
+    @Override
+    public Class<String> returnedClass() {
+        return String.class;
+    }
+
+    @Override
+    public boolean equals(Object x, Object y) {
+        return Objects.equals(x, y);
+    }
+
+    @Override
+    public int hashCode(Object x) {
+        return Objects.hashCode(x);
+    }
+
+    @Override
+    public Object nullSafeGet(ResultSet rs, String[] names, SharedSessionContractImplementor session, Object owner)
+            throws SQLException {
+        // the postgres driver returns the text form of a jsonb value
+        return rs.getString(names[0]);
+    }
+
+    @Override
+    public void nullSafeSet(PreparedStatement st, Object value, int index, SharedSessionContractImplementor session)
+            throws SQLException {
+        if (asJsonb) {
+            // sent without a type, so that postgres parses it as the jsonb of the column
+            st.setObject(index, value, Types.OTHER);
+        } else {
+            st.setString(index, (String) value);
+        }
+    }
+
+    @Override
+    public Object deepCopy(Object value) {
+        return value;
+    }
+
+    @Override
+    public boolean isMutable() {
+        return false;
+    }
+
+    @Override
+    public Serializable disassemble(Object value) {
+        return (Serializable) value;
+    }
+
+    @Override
+    public Object assemble(Serializable cached, Object owner) {
+        return cached;
+    }
+
+    @Override
+    public Object replace(Object original, Object target, Object owner) {
+        return original;
+    }
+}
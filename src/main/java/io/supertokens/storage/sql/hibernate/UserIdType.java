@@ -0,0 +1,138 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.hibernate;
+
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.usertype.UserType;
+
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * The type of the SuperTokens user ID columns (see DatabaseConfig.useUuidUserIds). In the domain objects the user ID
+ * is always a String. In the database it is either CHAR(36), or, if postgresql_uuid_user_ids is set, a native UUID.
+ * <p>
+ * With UUID columns, a user ID that isn't a UUID (for example an external user ID that someone looks up as if it
+ * were a SuperTokens one) can't be in the table. Sending it to postgres as a uuid would fail the whole query, so we
+ * bind NULL instead, which matches no row.
+ */
+public class UserIdType implements UserType {
+
+    // the name used in @Type(type = ...) on the user ID columns of the domain objects
+    public static final String NAME = "user_id";
+
+    private final boolean asUuid;
+
+    public UserIdType(boolean asUuid) {
+        this.asUuid = asUuid;
+    }
+
+    /**
+     * For queries that don't go through hibernate.
+     */
+    public static void bind(PreparedStatement pst, int index, String userId, boolean asUuid) throws SQLException {
+        if (!asUuid) {
+            pst.setString(index, userId);
+            return;
+        }
+        UUID uuid = toUuid(userId);
+        if (uuid == null) {
+            pst.setNull(index, Types.OTHER);
+        } else {
+            pst.setObject(index, uuid);
+        }
+    }
+
+    public static boolean isUuid(String userId) {
+        return toUuid(userId) != null;
+    }
+
+    private static UUID toUuid(String userId) {
+        // UUID.fromString also accepts shortened forms like 1-2-3-4-5, which are not valid user IDs
+        if (userId == null || userId.length() != 36) {
+            return null;
+        }
+        try {
+            return UUID.fromString(userId);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int[] sqlTypes() {
+        return new int[] { asUuid ? Types.OTHER : Types.VARCHAR };
+    }
+
+    @Override
+    public Class<String> returnedClass() {
+        return String.class;
+    }
+
+    @Override
+    public boolean equals(Object x, Object y) {
+        return Objects.equals(x, y);
+    }
+
+    @Override
+    public int hashCode(Object x) {
+        return Objects.hashCode(x);
+    }
+
+    @Override
+    public Object nullSafeGet(ResultSet rs, String[] names, SharedSessionContractImplementor session, Object owner)
+            throws SQLException {
+        // the postgres driver returns the text form of a uuid
+        return rs.getString(names[0]);
+    }
+
+    @Override
+    public void nullSafeSet(PreparedStatement st, Object value, int index, SharedSessionContractImplementor session)
+            throws SQLException {
+        bind(st, index, (String) value, asUuid);
+    }
+
+    @Override
+    public Object deepCopy(Object value) {
+        return value;
+    }
+
+    @Override
+    public boolean isMutable() {
+        return false;
+    }
+
+    @Override
+    public Serializable disassemble(Object value) {
+        return (Serializable) value;
+    }
+
+    @Override
+    public Object assemble(Serializable cached, Object owner) {
+        return cached;
+    }
+
+    @Override
+    public Object replace(Object original, Object target, Object owner) {
+        return original;
+    }
+}
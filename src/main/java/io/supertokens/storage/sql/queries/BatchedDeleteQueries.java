@@ -0,0 +1,84 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.queries;
+
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.output.Logging;
+
+import java.sql.SQLException;
+
+import static io.supertokens.storage.sql.PreparedStatementValueSetter.NO_OP_SETTER;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.update;
+import static io.supertokens.storage.sql.config.Config.getConfig;
+
+/**
+ * Used by the cronjobs that clean up expired rows. Instead of one unbounded DELETE that holds row locks for the
+ * whole purge, rows are deleted in small batches, each in its own transaction, with a pause in between. Rows that
+ * are locked by someone else (for example a session that is being refreshed right now) are skipped, and will be
+ * picked up in the next run.
+ */
+public class BatchedDeleteQueries {
+
+    // after deleting at least these many rows, we run ANALYZE so that the planner doesn't keep using stale
+    // statistics until autovacuum gets to the table
+    private static final int ANALYZE_THRESHOLD = 10000;
+
+    /**
+     * @param keyColumn a column that is unique in the table, used to match the rows selected in each batch
+     * @param condition the WHERE clause for the rows to delete, with a single BIGINT parameter
+     * @return the total number of rows deleted
+     */
+    static int deleteInBatches(Start start, String table, String keyColumn, String condition, long conditionValue)
+            throws SQLException, StorageQueryException {
+        int batchSize = getConfig(start).getExpiredRowsDeleteBatchSize();
+        long pause = getConfig(start).getExpiredRowsDeleteBatchPauseMs();
+
+        String QUERY = "DELETE FROM " + table + " WHERE " + keyColumn + " IN (SELECT " + keyColumn + " FROM " + table
+                + " WHERE " + condition + " LIMIT ? FOR UPDATE SKIP LOCKED)";
+
+        long startTime = System.currentTimeMillis();
+        int totalDeleted = 0;
+        while (true) {
+            int deleted = update(start, QUERY, pst -> {
+                pst.setLong(1, conditionValue);
+                pst.setInt(2, batchSize);
+            });
+            totalDeleted += deleted;
+            if (deleted < batchSize) {
+                break;
+            }
+            if (pause > 0) {
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException e) {
+                    // we are being shut down. Whatever is left will be deleted in the next run.
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        Logging.debug(start, "Deleted " + totalDeleted + " expired rows from " + table + " in "
+                + (System.currentTimeMillis() - startTime) + "ms");
+
+        if (totalDeleted >= ANALYZE_THRESHOLD) {
+            update(start, "ANALYZE " + table, NO_OP_SETTER);
+        }
+        return totalDeleted;
+    }
+}
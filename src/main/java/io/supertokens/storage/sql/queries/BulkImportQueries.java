@@ -0,0 +1,264 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.queries;
+
+import com.google.gson.JsonObject;
+import io.supertokens.pluginInterface.RECIPE_ID;
+import io.supertokens.pluginInterface.authRecipe.AuthRecipeUserInfo;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.sql.ConnectionPool;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.config.PostgreSQLConfig;
+import io.supertokens.storage.sql.hibernate.UserIdType;
+import io.supertokens.storage.sql.output.Logging;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.postgresql.PGConnection;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import static io.supertokens.storage.sql.PreparedStatementValueSetter.NO_OP_SETTER;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.execute;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.update;
+import static io.supertokens.storage.sql.config.Config.getConfig;
+
+/**
+ * Imports users from another auth provider in bulk. Calling signUp once per user costs a transaction and a few round
+ * trips per user, which for tens of millions of users takes days.
+ * <p>
+ * Instead, each batch is sent with a single COPY into a temporary staging table. Rows that would violate a unique
+ * constraint (against existing users, or an earlier row of the same import) are marked there, and the rest are
+ * inserted into all the tables with one INSERT ... SELECT per table. Each batch is one transaction, during which
+ * sign ups wait on the table locks, so that nobody can take an email or user ID between the checks and the inserts.
+ */
+public class BulkImportQueries {
+
+    private static final int BATCH_SIZE = 10000;
+
+    public static class ImportedUser {
+        // one of the emailpassword, thirdparty or passwordless UserInfo classes
+        @NotNull
+        public final AuthRecipeUserInfo user;
+
+        @Nullable
+        public final String externalUserId;
+
+        @Nullable
+        public final JsonObject metadata;
+
+        public ImportedUser(@NotNull AuthRecipeUserInfo user, @Nullable String externalUserId,
+                @Nullable JsonObject metadata) {
+            this.user = user;
+            this.externalUserId = externalUserId;
+            this.metadata = metadata;
+        }
+    }
+
+    public enum ImportStatus {
+        IMPORTED, INVALID_USER_ID, DUPLICATE_USER_ID, DUPLICATE_EMAIL, DUPLICATE_THIRD_PARTY_USER,
+        DUPLICATE_PHONE_NUMBER, DUPLICATE_EXTERNAL_USER_ID
+    }
+
+    /**
+     * @return the outcome for each of the given users, in the same order
+     */
+    public static ImportStatus[] importUsers(Start start, List<ImportedUser> users)
+            throws SQLException, StorageQueryException {
+        ImportStatus[] statuses = new ImportStatus[users.size()];
+        long startTime = System.currentTimeMillis();
+        for (int from = 0; from < users.size(); from += BATCH_SIZE) {
+            int batchStart = from;
+            int batchEnd = Math.min(users.size(), from + BATCH_SIZE);
+            ConnectionPool.withSession(start, (session, con) -> {
+                importBatch(start, con, users, batchStart, batchEnd, statuses);
+                return null;
+            }, true);
+        }
+        Logging.debug(start, "Bulk import of " + users.size() + " users took "
+                + (System.currentTimeMillis() - startTime) + "ms");
+        return statuses;
+    }
+
+    private static void importBatch(Start start, Connection con, List<ImportedUser> users, int from, int to,
+            ImportStatus[] statuses) throws SQLException, StorageQueryException {
+        PostgreSQLConfig config = getConfig(start);
+        boolean uuidUserIds = config.useUuidUserIds();
+
+        // @formatter:off
+        update(con, "CREATE TEMPORARY TABLE bulk_import_staging ("
+                + "row_no INT NOT NULL, user_id TEXT NOT NULL, recipe_id TEXT NOT NULL, time_joined BIGINT NOT NULL,"
+                + "email TEXT, password_hash TEXT, third_party_id TEXT, third_party_user_id TEXT, phone_number TEXT,"
+                + "external_user_id TEXT, metadata TEXT, status TEXT) ON COMMIT DROP", NO_OP_SETTER);
+        // @formatter:on
+
+        StringBuilder csv = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            ImportedUser imported = users.get(i);
+            AuthRecipeUserInfo user = imported.user;
+            if (uuidUserIds && !UserIdType.isUuid(user.id)) {
+                statuses[i] = ImportStatus.INVALID_USER_ID;
+                continue;
+            }
+            String email = null;
+            String passwordHash = null;
+            String thirdPartyId = null;
+            String thirdPartyUserId = null;
+            String phoneNumber = null;
+            RECIPE_ID recipeId;
+            if (user instanceof io.supertokens.pluginInterface.emailpassword.UserInfo) {
+                io.supertokens.pluginInterface.emailpassword.UserInfo emailPasswordUser =
+                        (io.supertokens.pluginInterface.emailpassword.UserInfo) user;
+                recipeId = RECIPE_ID.EMAIL_PASSWORD;
+                email = emailPasswordUser.email;
+                passwordHash = emailPasswordUser.passwordHash;
+            } else if (user instanceof io.supertokens.pluginInterface.thirdparty.UserInfo) {
+                io.supertokens.pluginInterface.thirdparty.UserInfo thirdPartyUser =
+                        (io.supertokens.pluginInterface.thirdparty.UserInfo) user;
+                recipeId = RECIPE_ID.THIRD_PARTY;
+                email = thirdPartyUser.email;
+                thirdPartyId = thirdPartyUser.thirdParty.id;
+                thirdPartyUserId = thirdPartyUser.thirdParty.userId;
+            } else if (user instanceof io.supertokens.pluginInterface.passwordless.UserInfo) {
+                io.supertokens.pluginInterface.passwordless.UserInfo passwordlessUser =
+                        (io.supertokens.pluginInterface.passwordless.UserInfo) user;
+                recipeId = RECIPE_ID.PASSWORDLESS;
+                email = passwordlessUser.email;
+                phoneNumber = passwordlessUser.phoneNumber;
+            } else {
+                throw new IllegalArgumentException("Can't import users of type " + user.getClass().getName());
+            }
+            appendCsvRow(csv, String.valueOf(i), user.id, recipeId.toString(), String.valueOf(user.timeJoined), email,
+                    passwordHash, thirdPartyId, thirdPartyUserId, phoneNumber, imported.externalUserId,
+                    imported.metadata == null ? null : imported.metadata.toString());
+        }
+
+        try {
+            con.unwrap(PGConnection.class).getCopyAPI().copyIn(
+                    "COPY bulk_import_staging (row_no, user_id, recipe_id, time_joined, email, password_hash,"
+                            + " third_party_id, third_party_user_id, phone_number, external_user_id, metadata)"
+                            + " FROM STDIN (FORMAT csv)",
+                    new StringReader(csv.toString()));
+        } catch (IOException e) {
+            // we read from a string, so this can't really happen
+            throw new SQLException(e);
+        }
+
+        String usersTable = config.getUsersTable();
+        String emailPasswordUsersTable = config.getEmailPasswordUsersTable();
+        String thirdPartyUsersTable = config.getThirdPartyUsersTable();
+        String passwordlessUsersTable = config.getPasswordlessUsersTable();
+        String userIdMappingTable = config.getUserIdMappingTable();
+        String userMetadataTable = config.getUserMetadataTable();
+        String emailPassword = "'" + RECIPE_ID.EMAIL_PASSWORD + "'";
+        String thirdParty = "'" + RECIPE_ID.THIRD_PARTY + "'";
+        String passwordless = "'" + RECIPE_ID.PASSWORDLESS + "'";
+
+        // blocks inserts (sign ups) until this batch is committed, but not reads
+        update(con, "LOCK TABLE " + usersTable + ", " + emailPasswordUsersTable + ", " + thirdPartyUsersTable + ", "
+                + passwordlessUsersTable + ", " + userIdMappingTable + " IN SHARE ROW EXCLUSIVE MODE", NO_OP_SETTER);
+
+        // Each check only looks at rows that are still fine, so a row is reported with the first problem found.
+        // Within the import, the first row with a value wins.
+        // bpchar (without a length) rather than text, so that the comparison can use the index of a CHAR(36) column
+        String stagedUserId = "s.user_id::" + (uuidUserIds ? "uuid" : "bpchar");
+        markDuplicates(con, ImportStatus.DUPLICATE_USER_ID, "user_id", null,
+                "SELECT 1 FROM " + usersTable + " u WHERE u.user_id = " + stagedUserId);
+        markDuplicates(con, ImportStatus.DUPLICATE_EMAIL, "email", "recipe_id = " + emailPassword,
+                "SELECT 1 FROM " + emailPasswordUsersTable + " u WHERE u.email = s.email");
+        markDuplicates(con, ImportStatus.DUPLICATE_THIRD_PARTY_USER, "third_party_id, third_party_user_id",
+                "recipe_id = " + thirdParty, "SELECT 1 FROM " + thirdPartyUsersTable
+                        + " u WHERE u.third_party_id = s.third_party_id"
+                        + " AND u.third_party_user_id = s.third_party_user_id");
+        markDuplicates(con, ImportStatus.DUPLICATE_EMAIL, "email",
+                "recipe_id = " + passwordless + " AND email IS NOT NULL",
+                "SELECT 1 FROM " + passwordlessUsersTable + " u WHERE u.email = s.email");
+        markDuplicates(con, ImportStatus.DUPLICATE_PHONE_NUMBER, "phone_number",
+                "recipe_id = " + passwordless + " AND phone_number IS NOT NULL",
+                "SELECT 1 FROM " + passwordlessUsersTable + " u WHERE u.phone_number = s.phone_number");
+        markDuplicates(con, ImportStatus.DUPLICATE_EXTERNAL_USER_ID, "external_user_id",
+                "external_user_id IS NOT NULL",
+                "SELECT 1 FROM " + userIdMappingTable + " u WHERE u.external_user_id = s.external_user_id");
+
+        String userId = uuidUserIds ? "user_id::uuid" : "user_id";
+        String imported = " FROM bulk_import_staging WHERE status IS NULL";
+        // @formatter:off
+        update(con, "INSERT INTO " + usersTable + "(user_id, recipe_id, time_joined)"
+                + " SELECT " + userId + ", recipe_id, time_joined" + imported, NO_OP_SETTER);
+        update(con, "INSERT INTO " + emailPasswordUsersTable + "(user_id, email, password_hash, time_joined)"
+                + " SELECT " + userId + ", email, password_hash, time_joined" + imported
+                + " AND recipe_id = " + emailPassword, NO_OP_SETTER);
+        update(con, "INSERT INTO " + thirdPartyUsersTable
+                + "(third_party_id, third_party_user_id, user_id, email, time_joined)"
+                + " SELECT third_party_id, third_party_user_id, " + userId + ", email, time_joined" + imported
+                + " AND recipe_id = " + thirdParty, NO_OP_SETTER);
+        update(con, "INSERT INTO " + passwordlessUsersTable + "(user_id, email, phone_number, time_joined)"
+                + " SELECT " + userId + ", email, phone_number, time_joined" + imported
+                + " AND recipe_id = " + passwordless, NO_OP_SETTER);
+        update(con, "INSERT INTO " + userIdMappingTable + "(supertokens_user_id, external_user_id)"
+                + " SELECT " + userId + ", external_user_id" + imported + " AND external_user_id IS NOT NULL",
+                NO_OP_SETTER);
+        // like the rest of the core, metadata is stored against the external user ID if there is one
+        update(con, "INSERT INTO " + userMetadataTable + "(user_id, user_metadata)"
+                + " SELECT COALESCE(external_user_id, user_id), metadata::" + config.getUserMetadataColumnType()
+                + imported + " AND metadata IS NOT NULL"
+                + " ON CONFLICT (user_id) DO UPDATE SET user_metadata = EXCLUDED.user_metadata", NO_OP_SETTER);
+        // @formatter:on
+
+        execute(con, "SELECT row_no, status FROM bulk_import_staging", NO_OP_SETTER, result -> {
+            while (result.next()) {
+                String status = result.getString("status");
+                statuses[result.getInt("row_no")] = status == null ? ImportStatus.IMPORTED
+                        : ImportStatus.valueOf(status);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Marks the rows (among those matching the condition) that have the same values in the given columns as an
+     * existing row, found by existsQuery, or as an earlier row of the import.
+     */
+    private static void markDuplicates(Connection con, ImportStatus status, String columns,
+            @Nullable String condition, String existsQuery) throws SQLException, StorageQueryException {
+        String candidates = "status IS NULL" + (condition == null ? "" : " AND " + condition);
+        // @formatter:off
+        update(con, "UPDATE bulk_import_staging s SET status = '" + status + "' WHERE " + candidates
+                + " AND EXISTS (" + existsQuery + ")", NO_OP_SETTER);
+        update(con, "UPDATE bulk_import_staging s SET status = '" + status + "' FROM ("
+                + "SELECT row_no, row_number() OVER (PARTITION BY " + columns + " ORDER BY row_no) AS n"
+                + " FROM bulk_import_staging WHERE " + candidates
+                + ") AS d WHERE s.row_no = d.row_no AND d.n > 1", NO_OP_SETTER);
+        // @formatter:on
+    }
+
+    private static void appendCsvRow(StringBuilder csv, String... values) {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                csv.append(',');
+            }
+            // an unquoted empty value is NULL, a quoted one is an empty string
+            if (values[i] != null) {
+                csv.append('"').append(values[i].replace("\"", "\"\"")).append('"');
+            }
+        }
+        csv.append('\n');
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.queries;
+
+import io.supertokens.pluginInterface.RECIPE_ID;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.sql.ConnectionPool;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.config.Config;
+import io.supertokens.storage.sql.utils.Utils;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static io.supertokens.storage.sql.QueryExecutorTemplate.execute;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.update;
+
+/**
+ * Row counts that our dashboards ask for all the time (users per recipe and sessions), kept up to date by triggers
+ * instead of running COUNT(*) over the whole table.
+ * <p>
+ * Each counter is spread over COUNTER_SHARDS rows, and every write adds its delta to a random one of them, so
+ * concurrent sign ups don't all wait on the same row lock. A count is the sum of the shards of that counter. The
+ * triggers are statement level triggers with transition tables, so a batch of deletes updates each counter once.
+ * <p>
+ * Anything that removes rows without firing triggers (dropping a session_info partition, for example) must adjust
+ * the counter itself using {@link #addToCounter}.
+ */
+public class CounterQueries {
+
+    private static final int COUNTER_SHARDS = 16;
+
+    static final String SESSIONS_COUNTER = "sessions";
+
+    // bumped by every statement that changes roles, their permissions or who has them, see UserRolesCache
+    static final String USER_ROLES_VERSION = "user_roles_version";
+
+    static String getUsersCounter(RECIPE_ID recipeId) {
+        return "users:" + recipeId.toString();
+    }
+
+    static String getQueryToCreateCountersTable(Start start) {
+        String schema = Config.getConfig(start).getTableSchema();
+        String countersTable = Config.getConfig(start).getCountersTable();
+        // @formatter:off
+        return "CREATE TABLE IF NOT EXISTS " + countersTable + " ("
+                + "name VARCHAR(64) NOT NULL,"
+                + "shard SMALLINT NOT NULL,"
+                + "value BIGINT NOT NULL,"
+                + "CONSTRAINT " + Utils.getConstraintName(schema, countersTable, null, "pkey") +
+                " PRIMARY KEY (name, shard));";
+        // @formatter:on
+    }
+
+    /**
+     * The queries that (re)create the triggers. From the moment they commit, every write adds its delta to the
+     * counters, and {@link #getQueriesToBackfillCounters} then adds the rows that were there before. Creating a
+     * trigger waits for the writes that are in progress on the table, but doesn't block writes for longer than that.
+     */
+    static String[] getQueriesToInstallCounters(Start start) {
+        String usersTable = Config.getConfig(start).getUsersTable();
+        String sessionInfoTable = Config.getConfig(start).getSessionInfoTable();
+        // @formatter:off
+        return new String[]{
+                getQueryToCreateCounterFunction(start, usersTable, "'users:' || recipe_id"),
+                getQueryToCreateCounterTrigger(usersTable, "INSERT", "NEW TABLE AS new_rows"),
+                getQueryToCreateCounterTrigger(usersTable, "DELETE", "OLD TABLE AS old_rows"),
+                getQueryToCreateCounterFunction(start, sessionInfoTable, "'" + SESSIONS_COUNTER + "'"),
+                getQueryToCreateCounterTrigger(sessionInfoTable, "INSERT", "NEW TABLE AS new_rows"),
+                getQueryToCreateCounterTrigger(sessionInfoTable, "DELETE", "OLD TABLE AS old_rows")
+        };
+        // @formatter:on
+    }
+
+    /**
+     * Once the triggers are installed, brings each counter to the number of rows in its table, without locking the
+     * table against writes. Each query is a single statement, so its COUNT(*) and its read of the counter see the
+     * same snapshot: a write committed before that snapshot is in both, and is taken out again by the difference,
+     * and one committed after it is only in the counter, added by the trigger. So adding "rows in the snapshot minus
+     * counter in the snapshot" to the counter makes it right whatever is written meanwhile. For the same reason they
+     * can be run again, which adds 0.
+     */
+    static String[] getQueriesToBackfillCounters(Start start) {
+        String usersTable = Config.getConfig(start).getUsersTable();
+        String sessionInfoTable = Config.getConfig(start).getSessionInfoTable();
+        return new String[] {
+                getQueryToBackfillCounters(start, "SELECT 'users:' || recipe_id AS name, COUNT(*) AS total FROM "
+                        + usersTable + " GROUP BY recipe_id", "name LIKE 'users:%'"),
+                getQueryToBackfillCounters(start, "SELECT '" + SESSIONS_COUNTER + "' AS name, COUNT(*) AS total FROM "
+                        + sessionInfoTable, "name = '" + SESSIONS_COUNTER + "'") };
+    }
+
+    private static String getQueryToBackfillCounters(Start start, String rowCounts, String counterCondition) {
+        String countersTable = Config.getConfig(start).getCountersTable();
+        // a counter can exist with no rows left in its table, so this is a full join
+        return "INSERT INTO " + countersTable + "(name, shard, value)"
+                + " SELECT COALESCE(row_counts.name, counter_values.name), 0,"
+                + " COALESCE(row_counts.total, 0) - COALESCE(counter_values.total, 0)"
+                + " FROM (" + rowCounts + ") AS row_counts FULL JOIN (SELECT name, SUM(value) AS total FROM "
+                + countersTable + " WHERE " + counterCondition + " GROUP BY name) AS counter_values"
+                + " ON row_counts.name = counter_values.name"
+                + " ON CONFLICT (name, shard) DO UPDATE SET value = " + countersTable + ".value + EXCLUDED.value";
+    }
+
+    private static String getQueryToCreateCounterFunction(Start start, String table, String counterName) {
+        String countersTable = Config.getConfig(start).getCountersTable();
+        String upsert = "INSERT INTO " + countersTable + "(name, shard, value) SELECT " + counterName
+                + ", floor(random() * " + COUNTER_SHARDS + ")::SMALLINT, %s FROM %s GROUP BY 1"
+                + " ON CONFLICT (name, shard) DO UPDATE SET value = " + countersTable + ".value + EXCLUDED.value;";
+        // @formatter:off
+        return "CREATE OR REPLACE FUNCTION " + getCounterFunctionName(table) + "() RETURNS TRIGGER AS $$ "
+                + "BEGIN "
+                + "IF TG_OP = 'INSERT' THEN " + String.format(upsert, "COUNT(*)", "new_rows") + " "
+                + "ELSE " + String.format(upsert, "-COUNT(*)", "old_rows") + " "
+                + "END IF; "
+                + "RETURN NULL; "
+                + "END; $$ LANGUAGE plpgsql";
+        // @formatter:on
+    }
+
+    private static String getQueryToCreateCounterTrigger(String table, String event, String transitionTable) {
+        String triggerName = table.substring(table.lastIndexOf('.') + 1) + "_count_" + event.toLowerCase()
+                + "_trigger";
+        return "DROP TRIGGER IF EXISTS " + triggerName + " ON " + table + "; CREATE TRIGGER " + triggerName
+                + " AFTER " + event + " ON " + table + " REFERENCING " + transitionTable
+                + " FOR EACH STATEMENT EXECUTE PROCEDURE " + getCounterFunctionName(table) + "()";
+    }
+
+    // functions, unlike triggers, live in the schema, so the name is based on the (schema qualified) table name
+    static String getCounterFunctionName(String table) {
+        return table + "_count";
+    }
+
+    // for trigger functions that count changes rather than rows
+    static String getQueryToIncrementCounter(Start start, String name) {
+        String countersTable = Config.getConfig(start).getCountersTable();
+        return "INSERT INTO " + countersTable + "(name, shard, value) VALUES('" + name + "', floor(random() * "
+                + COUNTER_SHARDS + ")::SMALLINT, 1) ON CONFLICT (name, shard) DO UPDATE SET value = " + countersTable
+                + ".value + 1;";
+    }
+
+    static void addToCounter(Start start, Connection con, String name, long delta)
+            throws SQLException, StorageQueryException {
+        String countersTable = Config.getConfig(start).getCountersTable();
+        String QUERY = "INSERT INTO " + countersTable + "(name, shard, value) VALUES(?, floor(random() * "
+                + COUNTER_SHARDS + ")::SMALLINT, ?) ON CONFLICT (name, shard) DO UPDATE SET value = " + countersTable
+                + ".value + EXCLUDED.value";
+        update(con, QUERY, pst -> {
+            pst.setString(1, name);
+            pst.setLong(2, delta);
+        });
+    }
+
+    static long getCount(Start start, String... names) throws SQLException, StorageQueryException {
+        // one array parameter, so that the query is the same however many counters are summed
+        String QUERY = "SELECT COALESCE(SUM(value), 0) AS total FROM " + Config.getConfig(start).getCountersTable()
+                + " WHERE name = ANY(?)";
+        return ConnectionPool.withSession(start, (session, con) -> execute(con, QUERY,
+                pst -> pst.setArray(1, con.createArrayOf("text", names)), result -> {
+                    result.next();
+                    return result.getLong("total");
+                }), false);
+    }
+
+    /**
+     * The number of rows the planner thinks the table has, as of the last (auto) ANALYZE or VACUUM. For a
+     * partitioned table, this is the sum over its partitions.
+     */
+    static long getApproximateRowCount(Start start, String table) throws SQLException, StorageQueryException {
+        String QUERY = "SELECT COALESCE(SUM(GREATEST(c.reltuples, 0)), 0)::BIGINT AS total FROM pg_class c"
+                + " WHERE c.oid = to_regclass(?) OR c.oid IN"
+                + " (SELECT inhrelid FROM pg_inherits WHERE inhparent = to_regclass(?))";
+        return execute(start, QUERY, pst -> {
+            pst.setString(1, table);
+            pst.setString(2, table);
+        }, result -> {
+            result.next();
+            return result.getLong("total");
+        });
+    }
+}
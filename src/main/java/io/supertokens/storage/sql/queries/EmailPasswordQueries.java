@@ -39,6 +39,7 @@ import java.util.Collections;
 import java.util.List;
 
 import static io.supertokens.pluginInterface.RECIPE_ID.EMAIL_PASSWORD;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.execute;
 import static java.lang.System.currentTimeMillis;
 
 public class EmailPasswordQueries {
@@ -48,7 +49,7 @@ public class EmailPasswordQueries {
         String emailPasswordUsersTable = Config.getConfig(start).getEmailPasswordUsersTable();
         // @formatter:off
         return "CREATE TABLE IF NOT EXISTS " + emailPasswordUsersTable + " ("
-                + "user_id CHAR(36) NOT NULL,"
+                + "user_id " + Config.getConfig(start).getUserIdColumnType() + " NOT NULL,"
                 + "email VARCHAR(256) NOT NULL CONSTRAINT " +
                 Utils.getConstraintName(schema, emailPasswordUsersTable, "email", "key") + " UNIQUE,"
                 + "password_hash VARCHAR(256) NOT NULL," + "time_joined BIGINT NOT NULL,"
@@ -62,8 +63,8 @@ public class EmailPasswordQueries {
         String passwordResetTokensTable = Config.getConfig(start).getPasswordResetTokensTable();
         // @formatter:off
         return "CREATE TABLE IF NOT EXISTS " + passwordResetTokensTable + " ("
-                + "user_id CHAR(36) NOT NULL,"
-                + "token VARCHAR(128) NOT NULL CONSTRAINT " +
+                + "user_id " + Config.getConfig(start).getUserIdColumnType() + " NOT NULL,"
+                + "token " + Config.getConfig(start).getHashColumnType("VARCHAR(128)") + " NOT NULL CONSTRAINT " +
                 Utils.getConstraintName(schema, passwordResetTokensTable, "token", "key") + " UNIQUE,"
                 + "token_expiry BIGINT NOT NULL,"
                 + "CONSTRAINT " + Utils.getConstraintName(schema, passwordResetTokensTable, null, "pkey") +
@@ -81,13 +82,8 @@ public class EmailPasswordQueries {
     }
 
     public static void deleteExpiredPasswordResetTokens(Start start) throws SQLException, StorageQueryException {
-        ConnectionPool.withSession(start, (session, con) -> {
-            String QUERY = "DELETE FROM PasswordResetTokensDO where token_expiry < :expiry";
-            CustomQueryWrapper q = session.createQuery(QUERY);
-            q.setParameter("expiry", currentTimeMillis());
-            q.executeUpdate();
-            return null;
-        }, true);
+        BatchedDeleteQueries.deleteInBatches(start, Config.getConfig(start).getPasswordResetTokensTable(), "token",
+                "token_expiry < ?", currentTimeMillis());
     }
 
     public static void updateUsersPassword_Transaction(CustomSessionWrapper session, String userId,
@@ -177,35 +173,29 @@ public class EmailPasswordQueries {
     @Deprecated
     public static UserInfo[] getUsersInfo(Start start, String userId, Long timeJoined, Integer limit,
             String timeJoinedOrder) throws SQLException, StorageQueryException {
-        return ConnectionPool.withSession(start, (session, con) -> {
-            String timeJoinedOrderSymbol = timeJoinedOrder.equals("ASC") ? ">" : "<";
-            String QUERY = "SELECT entity FROM EmailPasswordUsersDO entity WHERE entity.time_joined "
-                    + timeJoinedOrderSymbol
-                    + " :tj1 OR (entity.time_joined = :tj2 AND entity.user_id <= :userid) ORDER BY entity"
-                    + ".time_joined " + timeJoinedOrder + ", user_id DESC";
-            CustomQueryWrapper<EmailPasswordUsersDO> q = session.createQuery(QUERY, EmailPasswordUsersDO.class);
-            q.setMaxResults(limit);
-            q.setParameter("tj1", timeJoined);
-            q.setParameter("tj2", timeJoined);
-            q.setParameter("userid", userId);
-            List<EmailPasswordUsersDO> result = q.list();
-            UserInfo[] finalResult = new UserInfo[result.size()];
-            for (int i = 0; i < result.size(); i++) {
-                EmailPasswordUsersDO curr = result.get(i);
-                finalResult[i] = new UserInfo(curr.getUser_id(), curr.getEmail(), curr.getPassword_hash(),
-                        curr.getTime_joined());
+        String QUERY = "SELECT user_id, email, password_hash, time_joined FROM "
+                + Config.getConfig(start).getEmailPasswordUsersTable() + " WHERE "
+                + GeneralQueries.getPaginationCondition(timeJoinedOrder) + " ORDER BY time_joined " + timeJoinedOrder
+                + ", user_id DESC LIMIT ?";
+        return execute(start, QUERY, pst -> {
+            int index = GeneralQueries.setPaginationParameters(start, pst, 1, timeJoinedOrder, timeJoined, userId);
+            pst.setInt(index, limit);
+        }, result -> {
+            List<UserInfo> finalResult = new ArrayList<>();
+            while (result.next()) {
+                finalResult.add(new UserInfo(result.getString("user_id"), result.getString("email"),
+                        result.getString("password_hash"), result.getLong("time_joined")));
             }
-            return finalResult;
-        }, false);
+            return finalResult.toArray(new UserInfo[0]);
+        });
     }
 
     @Deprecated
     public static long getUsersCount(Start start) throws SQLException, StorageQueryException {
-        return ConnectionPool.withSession(start, (session, con) -> {
-            CustomQueryWrapper<Long> q = session.createQuery("SELECT COUNT(*) FROM EmailPasswordUsersDO", Long.class);
-            List<Long> result = q.list();
-            return result.get(0);
-        }, false);
+        if (Config.getConfig(start).useApproximateCounts()) {
+            return CounterQueries.getApproximateRowCount(start, Config.getConfig(start).getEmailPasswordUsersTable());
+        }
+        return CounterQueries.getCount(start, CounterQueries.getUsersCounter(EMAIL_PASSWORD));
     }
 
     public static PasswordResetTokenInfo getPasswordResetTokenInfo(Start start, String token)
@@ -288,9 +278,12 @@ public class EmailPasswordQueries {
         if (ids.size() > 0) {
             return ConnectionPool.withSession(start, (session, con) -> {
                 String QUERY = "SELECT entity FROM EmailPasswordUsersDO entity WHERE entity.user_id IN (:useridlist)";
-                CustomQueryWrapper<EmailPasswordUsersDO> q = session.createQuery(QUERY, EmailPasswordUsersDO.class);
-                q.setParameterList("useridlist", ids);
-                List<EmailPasswordUsersDO> result = q.list();
+                List<EmailPasswordUsersDO> result = new ArrayList<>();
+                for (List<String> chunk : Utils.getInListChunks(ids)) {
+                    CustomQueryWrapper<EmailPasswordUsersDO> q = session.createQuery(QUERY, EmailPasswordUsersDO.class);
+                    q.setParameterList("useridlist", chunk);
+                    result.addAll(q.list());
+                }
                 List<UserInfo> finalResult = new ArrayList<>();
                 for (EmailPasswordUsersDO user : result) {
                     finalResult.add(new UserInfo(user.getUser_id(), user.getEmail(), user.getPassword_hash(),
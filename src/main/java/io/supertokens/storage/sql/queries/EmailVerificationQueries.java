@@ -20,6 +20,7 @@ import io.supertokens.pluginInterface.emailverification.EmailVerificationTokenIn
 import io.supertokens.pluginInterface.exceptions.StorageQueryException;
 import io.supertokens.pluginInterface.exceptions.StorageTransactionLogicException;
 import io.supertokens.storage.sql.ConnectionPool;
+import io.supertokens.storage.sql.EmailVerificationCache;
 import io.supertokens.storage.sql.Start;
 import io.supertokens.storage.sql.config.Config;
 import io.supertokens.storage.sql.domainobject.emailverification.EmailVerificationDO;
@@ -34,6 +35,7 @@ import javax.persistence.LockModeType;
 import java.sql.SQLException;
 import java.util.List;
 
+import static io.supertokens.storage.sql.QueryExecutorTemplate.update;
 import static java.lang.System.currentTimeMillis;
 
 public class EmailVerificationQueries {
@@ -57,7 +59,7 @@ public class EmailVerificationQueries {
         return "CREATE TABLE IF NOT EXISTS " + emailVerificationTokensTable + " ("
                 + "user_id VARCHAR(128) NOT NULL,"
                 + "email VARCHAR(256) NOT NULL,"
-                + "token VARCHAR(128) NOT NULL CONSTRAINT " +
+                + "token " + Config.getConfig(start).getHashColumnType("VARCHAR(128)") + " NOT NULL CONSTRAINT " +
                 Utils.getConstraintName(schema, emailVerificationTokensTable, "token", "key") + " UNIQUE,"
                 + "token_expiry BIGINT NOT NULL,"
                 + "CONSTRAINT " + Utils.getConstraintName(schema, emailVerificationTokensTable, null, "pkey") +
@@ -70,37 +72,47 @@ public class EmailVerificationQueries {
                 + Config.getConfig(start).getEmailVerificationTokensTable() + "(token_expiry);";
     }
 
-    public static boolean isUserIdBeingUsedForEmailVerification(Start start, String userId)
-            throws SQLException, StorageQueryException {
-
-        return ConnectionPool.withSession(start, (session, con) -> {
-            String QUERY = "SELECT entity FROM EmailVerificationTokensDO entity WHERE entity.pk.user_id = :userId";
-            CustomQueryWrapper<EmailVerificationTokensDO> q = session.createQuery(QUERY,
-                    EmailVerificationTokensDO.class);
-            q.setParameter("userId", userId);
-            List<EmailVerificationTokensDO> result = q.list();
-            return result.size() > 0;
-        }, false);
+    /**
+     * A trigger that NOTIFYs {@link EmailVerificationCache#CHANNEL} with the user ID and email of every email that
+     * is verified or unverified, so that every core drops it from its cache once the change is committed.
+     */
+    static String[] getQueriesToInstallEmailVerificationNotifications(Start start) {
+        String table = Config.getConfig(start).getEmailVerificationTable();
+        String function = Config.getConfig(start).getEmailVerificationNotifyFunction();
+        String triggerName = table.substring(table.lastIndexOf('.') + 1) + "_notify_trigger";
+        // @formatter:off
+        return new String[]{
+                "CREATE OR REPLACE FUNCTION " + function + "() RETURNS TRIGGER AS $$ "
+                        + "DECLARE changed RECORD; "
+                        + "BEGIN "
+                        + "IF TG_OP = 'DELETE' THEN changed := OLD; ELSE changed := NEW; END IF; "
+                        + "PERFORM pg_notify('" + EmailVerificationCache.CHANNEL + "', "
+                        + "json_build_array(changed.user_id, changed.email)::TEXT); "
+                        + "RETURN NULL; "
+                        + "END; $$ LANGUAGE plpgsql",
+                "DROP TRIGGER IF EXISTS " + triggerName + " ON " + table + "; CREATE TRIGGER " + triggerName
+                        + " AFTER INSERT OR DELETE ON " + table + " FOR EACH ROW EXECUTE PROCEDURE " + function + "()"
+        };
+        // @formatter:on
     }
 
     public static void deleteExpiredEmailVerificationTokens(Start start) throws SQLException, StorageQueryException {
-        ConnectionPool.withSession(start, (session, con) -> {
-            String QUERY = "DELETE FROM EmailVerificationTokensDO where token_expiry < :expiry";
-            CustomQueryWrapper q = session.createQuery(QUERY);
-            q.setParameter("expiry", currentTimeMillis());
-            q.executeUpdate();
-            return null;
-        }, true);
+        BatchedDeleteQueries.deleteInBatches(start, Config.getConfig(start).getEmailVerificationTokensTable(), "token",
+                "token_expiry < ?", currentTimeMillis());
     }
 
-    public static void updateUsersIsEmailVerified_Transaction(CustomSessionWrapper session, String userId, String email,
-            boolean isEmailVerified) throws SQLException {
+    public static void updateUsersIsEmailVerified_Transaction(Start start, CustomSessionWrapper session, String userId,
+            String email, boolean isEmailVerified) throws SQLException, StorageQueryException {
         if (isEmailVerified) {
-            final EmailVerificationUsersPK pk = new EmailVerificationUsersPK(userId, email);
-            final EmailVerificationDO toInsert = new EmailVerificationDO(pk);
-
-            session.save(EmailVerificationDO.class, pk, toInsert);
-            session.flush();
+            // if the email is already verified, there is nothing to do
+            String QUERY = "INSERT INTO " + Config.getConfig(start).getEmailVerificationTable()
+                    + "(user_id, email) VALUES(?, ?) ON CONFLICT DO NOTHING";
+            update(session.getConnectionForNativeWrite(), QUERY, pst -> {
+                pst.setString(1, userId);
+                pst.setString(2, email);
+            });
+            EmailVerificationUsersPK pk = new EmailVerificationUsersPK(userId, email);
+            session.written(EmailVerificationDO.class, pk, new EmailVerificationDO(pk));
         } else {
             String QUERY = "DELETE FROM EmailVerificationDO entity "
                     + "WHERE entity.pk.user_id = :user_id AND entity.pk.email = :email";
@@ -22,24 +22,34 @@ import io.supertokens.pluginInterface.authRecipe.AuthRecipeUserInfo;
 import io.supertokens.pluginInterface.exceptions.StorageQueryException;
 import io.supertokens.pluginInterface.useridmapping.UserIdMapping;
 import io.supertokens.storage.sql.ConnectionPool;
+import io.supertokens.storage.sql.EmailVerificationCache;
+import io.supertokens.storage.sql.PreparedStatementValueSetter;
+import io.supertokens.storage.sql.SessionCache;
+import io.supertokens.storage.sql.SigningKeyCache;
 import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.UserIdMappingFilter;
+import io.supertokens.storage.sql.UserRolesCache;
 import io.supertokens.storage.sql.config.Config;
 import io.supertokens.storage.sql.domainobject.general.AllAuthRecipeUsersDO;
 import io.supertokens.storage.sql.domainobject.general.KeyValueDO;
 import io.supertokens.storage.sql.domainobject.useridmapping.UserIdMappingDO;
-import io.supertokens.storage.sql.hibernate.CustomQueryWrapper;
 import io.supertokens.storage.sql.hibernate.CustomSessionWrapper;
+import io.supertokens.storage.sql.hibernate.UserIdType;
 import io.supertokens.storage.sql.utils.Utils;
 import org.hibernate.LockMode;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 import static io.supertokens.storage.sql.PreparedStatementValueSetter.NO_OP_SETTER;
 import static io.supertokens.storage.sql.ProcessState.PROCESS_STATE.CREATING_NEW_TABLE;
@@ -52,28 +62,17 @@ import static io.supertokens.storage.sql.queries.EmailPasswordQueries.getQueryTo
 import static io.supertokens.storage.sql.queries.EmailVerificationQueries.*;
 import static io.supertokens.storage.sql.queries.JWTSigningQueries.getQueryToCreateJWTSigningTable;
 import static io.supertokens.storage.sql.queries.PasswordlessQueries.*;
-import static io.supertokens.storage.sql.queries.SessionQueries.getQueryToCreateAccessTokenSigningKeysTable;
-import static io.supertokens.storage.sql.queries.SessionQueries.getQueryToCreateSessionInfoTable;
+import static io.supertokens.storage.sql.queries.SessionQueries.*;
 import static io.supertokens.storage.sql.queries.UserMetadataQueries.getQueryToCreateUserMetadataTable;
 
 public class GeneralQueries {
 
-    private static boolean doesTableExists(Start start, String tableName) {
-        try {
-            String QUERY = "SELECT 1 FROM " + tableName + " LIMIT 1";
-            execute(start, QUERY, NO_OP_SETTER, result -> null);
-            return true;
-        } catch (SQLException | StorageQueryException e) {
-            return false;
-        }
-    }
-
     static String getQueryToCreateUsersTable(Start start) {
         String schema = Config.getConfig(start).getTableSchema();
         String usersTable = Config.getConfig(start).getUsersTable();
         // @formatter:off
         return "CREATE TABLE IF NOT EXISTS " + usersTable + " ("
-                + "user_id CHAR(36) NOT NULL,"
+                + "user_id " + Config.getConfig(start).getUserIdColumnType() + " NOT NULL,"
                 + "recipe_id VARCHAR(128) NOT NULL,"
                 + "time_joined BIGINT NOT NULL,"
                 + "CONSTRAINT " + Utils.getConstraintName(schema, usersTable, null, "pkey") +
@@ -86,6 +85,14 @@ public class GeneralQueries {
                 + "(time_joined DESC, user_id " + "DESC);";
     }
 
+    // used when the users are filtered by recipe. The recipe_id comes first so that a page of users of one recipe,
+    // and the number of users of a recipe, is a range scan of this index
+    static String getQueryToCreateUserRecipePaginationIndex(Start start, boolean concurrently) {
+        return "CREATE INDEX " + (concurrently ? "CONCURRENTLY IF NOT EXISTS " : "")
+                + "all_auth_recipe_users_recipe_id_pagination_index ON " + Config.getConfig(start).getUsersTable()
+                + "(recipe_id, time_joined DESC, user_id DESC);";
+    }
+
     private static String getQueryToCreateKeyValueTable(Start start) {
         String schema = Config.getConfig(start).getTableSchema();
         String keyValueTable = Config.getConfig(start).getKeyValueTable();
@@ -99,138 +106,186 @@ public class GeneralQueries {
         // @formatter:on
     }
 
+    /**
+     * Triggers that NOTIFY {@link SigningKeyCache#CHANNEL} whenever the key value, access token signing key or JWT
+     * signing key tables change, so that every core drops the keys it has cached. Postgres only delivers the
+     * notification when the transaction commits, and sends one per transaction however many rows it changed.
+     */
+    static String[] getQueriesToInstallSigningKeyNotifications(Start start) {
+        String function = getConfig(start).getSigningKeysNotifyFunction();
+        List<String> queries = new ArrayList<>();
+        queries.add("CREATE OR REPLACE FUNCTION " + function + "() RETURNS TRIGGER AS $$ "
+                + "BEGIN PERFORM pg_notify('" + SigningKeyCache.CHANNEL + "', ''); RETURN NULL; END; "
+                + "$$ LANGUAGE plpgsql");
+        for (String table : new String[] { getConfig(start).getKeyValueTable(),
+                getConfig(start).getAccessTokenSigningKeysTable(), getConfig(start).getJWTSigningKeysTable() }) {
+            String triggerName = table.substring(table.lastIndexOf('.') + 1) + "_notify_trigger";
+            queries.add("DROP TRIGGER IF EXISTS " + triggerName + " ON " + table + "; CREATE TRIGGER " + triggerName
+                    + " AFTER INSERT OR UPDATE OR DELETE ON " + table + " FOR EACH ROW EXECUTE PROCEDURE " + function
+                    + "()");
+        }
+        return queries.toArray(new String[0]);
+    }
+
     public static void createTablesIfNotExists(Start start) throws SQLException, StorageQueryException {
-        int numberOfRetries = 0;
-        boolean retry = true;
-        while (retry) {
-            retry = false;
-            try {
-                if (!doesTableExists(start, Config.getConfig(start).getKeyValueTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, getQueryToCreateKeyValueTable(start), NO_OP_SETTER);
-                }
+        // We find out which tables and indexes exist using one catalog query, and then send all the missing DDL
+        // in one go, instead of checking each table separately. This matters when the database is far away.
+        Set<String> existingRelations = getExistingRelations(start);
+        List<String> queries = new ArrayList<>();
 
-                if (!doesTableExists(start, Config.getConfig(start).getUsersTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, getQueryToCreateUsersTable(start), NO_OP_SETTER);
+        if (isMissing(existingRelations, Config.getConfig(start).getSchemaVersionsTable())) {
+            queries.add(MigrationQueries.getQueryToCreateSchemaVersionsTable(start));
+        }
 
-                    // index
-                    update(start, getQueryToCreateUserPaginationIndex(start), NO_OP_SETTER);
-                }
+        if (isMissing(existingRelations, Config.getConfig(start).getCountersTable())) {
+            queries.add(CounterQueries.getQueryToCreateCountersTable(start));
+        }
 
-                if (!doesTableExists(start, Config.getConfig(start).getAccessTokenSigningKeysTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, getQueryToCreateAccessTokenSigningKeysTable(start), NO_OP_SETTER);
-                }
+        if (isMissing(existingRelations, Config.getConfig(start).getKeyValueTable())) {
+            queries.add(getQueryToCreateKeyValueTable(start));
+        }
 
-                if (!doesTableExists(start, Config.getConfig(start).getSessionInfoTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, getQueryToCreateSessionInfoTable(start), NO_OP_SETTER);
-                }
+        if (isMissing(existingRelations, Config.getConfig(start).getUsersTable())) {
+            queries.add(getQueryToCreateUsersTable(start));
+            // index
+            queries.add(getQueryToCreateUserPaginationIndex(start));
+            queries.add(getQueryToCreateUserRecipePaginationIndex(start, false));
+        }
 
-                if (!doesTableExists(start, Config.getConfig(start).getEmailPasswordUsersTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, EmailPasswordQueries.getQueryToCreateUsersTable(start), NO_OP_SETTER);
-                }
+        if (isMissing(existingRelations, Config.getConfig(start).getAccessTokenSigningKeysTable())) {
+            queries.add(getQueryToCreateAccessTokenSigningKeysTable(start));
+        }
 
-                if (!doesTableExists(start, Config.getConfig(start).getPasswordResetTokensTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, getQueryToCreatePasswordResetTokensTable(start), NO_OP_SETTER);
-                    // index
-                    update(start, getQueryToCreatePasswordResetTokenExpiryIndex(start), NO_OP_SETTER);
-                }
+        if (isMissing(existingRelations, Config.getConfig(start).getSessionInfoTable())) {
+            queries.add(getQueryToCreateSessionInfoTable(start));
+            // index
+            queries.add(getQueryToCreateSessionInfoUserIdIndex(start, false));
+            queries.add(getQueryToCreateSessionInfoExpiresAtIndex(start, false));
+        }
 
-                if (!doesTableExists(start, Config.getConfig(start).getEmailVerificationTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, getQueryToCreateEmailVerificationTable(start), NO_OP_SETTER);
-                }
+        if (isMissing(existingRelations, Config.getConfig(start).getEmailPasswordUsersTable())) {
+            queries.add(EmailPasswordQueries.getQueryToCreateUsersTable(start));
+        }
 
-                if (!doesTableExists(start, Config.getConfig(start).getEmailVerificationTokensTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, getQueryToCreateEmailVerificationTokensTable(start), NO_OP_SETTER);
-                    // index
-                    update(start, getQueryToCreateEmailVerificationTokenExpiryIndex(start), NO_OP_SETTER);
-                }
+        if (isMissing(existingRelations, Config.getConfig(start).getPasswordResetTokensTable())) {
+            queries.add(getQueryToCreatePasswordResetTokensTable(start));
+            // index
+            queries.add(getQueryToCreatePasswordResetTokenExpiryIndex(start));
+        }
 
-                if (!doesTableExists(start, Config.getConfig(start).getThirdPartyUsersTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, ThirdPartyQueries.getQueryToCreateUsersTable(start), NO_OP_SETTER);
-                }
+        if (isMissing(existingRelations, Config.getConfig(start).getEmailVerificationTable())) {
+            queries.add(getQueryToCreateEmailVerificationTable(start));
+        }
 
-                if (!doesTableExists(start, Config.getConfig(start).getJWTSigningKeysTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, getQueryToCreateJWTSigningTable(start), NO_OP_SETTER);
-                }
+        if (isMissing(existingRelations, Config.getConfig(start).getEmailVerificationTokensTable())) {
+            queries.add(getQueryToCreateEmailVerificationTokensTable(start));
+            // index
+            queries.add(getQueryToCreateEmailVerificationTokenExpiryIndex(start));
+        }
 
-                if (!doesTableExists(start, Config.getConfig(start).getPasswordlessUsersTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, PasswordlessQueries.getQueryToCreateUsersTable(start), NO_OP_SETTER);
-                }
+        if (isMissing(existingRelations, Config.getConfig(start).getThirdPartyUsersTable())) {
+            queries.add(ThirdPartyQueries.getQueryToCreateUsersTable(start));
+            // index
+            queries.add(ThirdPartyQueries.getQueryToCreateThirdPartyUserEmailIndex(start, false));
+        }
 
-                if (!doesTableExists(start, Config.getConfig(start).getPasswordlessDevicesTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, getQueryToCreateDevicesTable(start), NO_OP_SETTER);
-                    // index
-                    update(start, getQueryToCreateDeviceEmailIndex(start), NO_OP_SETTER);
-                    update(start, getQueryToCreateDevicePhoneNumberIndex(start), NO_OP_SETTER);
-                }
+        if (isMissing(existingRelations, Config.getConfig(start).getJWTSigningKeysTable())) {
+            queries.add(getQueryToCreateJWTSigningTable(start));
+        }
 
-                if (!doesTableExists(start, Config.getConfig(start).getPasswordlessCodesTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, getQueryToCreateCodesTable(start), NO_OP_SETTER);
-                    // index
-                    update(start, getQueryToCreateCodeCreatedAtIndex(start), NO_OP_SETTER);
-                }
+        if (isMissing(existingRelations, Config.getConfig(start).getPasswordlessUsersTable())) {
+            queries.add(PasswordlessQueries.getQueryToCreateUsersTable(start));
+        }
 
-                // This PostgreSQL specific, because it's created automatically in MySQL and it doesn't support "create
-                // index if not exists"
-                // We missed creating this earlier for the codes table, so it may be missing even if the table exists
-                update(start, getQueryToCreateCodeDeviceIdHashIndex(start), NO_OP_SETTER);
+        if (isMissing(existingRelations, Config.getConfig(start).getPasswordlessDevicesTable())) {
+            queries.add(getQueryToCreateDevicesTable(start));
+            // index
+            queries.add(getQueryToCreateDeviceEmailIndex(start, false));
+            queries.add(getQueryToCreateDevicePhoneNumberIndex(start, false));
+        }
 
-                if (!doesTableExists(start, Config.getConfig(start).getUserMetadataTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, getQueryToCreateUserMetadataTable(start), NO_OP_SETTER);
-                }
+        if (isMissing(existingRelations, Config.getConfig(start).getPasswordlessCodesTable())) {
+            queries.add(getQueryToCreateCodesTable(start));
+            // index
+            queries.add(getQueryToCreateCodeCreatedAtIndex(start));
+        }
 
-                if (!doesTableExists(start, Config.getConfig(start).getRolesTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, UserRolesQueries.getQueryToCreateRolesTable(start), NO_OP_SETTER);
-                }
+        // We missed creating this earlier for the codes table, so it may be missing even if the table exists
+        if (!existingRelations.contains("passwordless_codes_device_id_hash_index")) {
+            queries.add(getQueryToCreateCodeDeviceIdHashIndex(start));
+        }
 
-                if (!doesTableExists(start, Config.getConfig(start).getUserRolesPermissionsTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, UserRolesQueries.getQueryToCreateRolePermissionsTable(start), NO_OP_SETTER);
-                    // index
-                    update(start, UserRolesQueries.getQueryToCreateRolePermissionsPermissionIndex(start), NO_OP_SETTER);
-                }
+        if (isMissing(existingRelations, Config.getConfig(start).getUserMetadataTable())) {
+            queries.add(getQueryToCreateUserMetadataTable(start));
+        }
 
-                if (!doesTableExists(start, Config.getConfig(start).getUserRolesTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, UserRolesQueries.getQueryToCreateUserRolesTable(start), NO_OP_SETTER);
-                    // index
-                    update(start, UserRolesQueries.getQueryToCreateUserRolesRoleIndex(start), NO_OP_SETTER);
-                }
+        if (isMissing(existingRelations, Config.getConfig(start).getRolesTable())) {
+            queries.add(UserRolesQueries.getQueryToCreateRolesTable(start));
+        }
 
-                if (!doesTableExists(start, Config.getConfig(start).getUserIdMappingTable())) {
-                    getInstance(start).addState(CREATING_NEW_TABLE, null);
-                    update(start, UserIdMappingQueries.getQueryToCreateUserIdMappingTable(start), NO_OP_SETTER);
-                }
-            } catch (Exception e) {
-                if (e.getMessage().contains("schema") && e.getMessage().contains("does not exist")
-                        && numberOfRetries < 1) {
-                    // we must create the schema and try again.
-                    String schema = Config.getConfig(start).getTableSchema();
-                    if (!schema.equals("public")) {
-                        String query = "CREATE SCHEMA " + schema;
-                        update(start, query, NO_OP_SETTER);
-                        numberOfRetries++;
-                        retry = true;
-                        continue;
-                    }
-                }
-                throw e;
+        if (isMissing(existingRelations, Config.getConfig(start).getUserRolesPermissionsTable())) {
+            queries.add(UserRolesQueries.getQueryToCreateRolePermissionsTable(start));
+            // index
+            queries.add(UserRolesQueries.getQueryToCreateRolePermissionsPermissionIndex(start));
+        }
+
+        if (isMissing(existingRelations, Config.getConfig(start).getUserRolesTable())) {
+            queries.add(UserRolesQueries.getQueryToCreateUserRolesTable(start));
+            // index
+            queries.add(UserRolesQueries.getQueryToCreateUserRolesRoleIndex(start, false));
+        }
+
+        if (isMissing(existingRelations, Config.getConfig(start).getUserIdMappingTable())) {
+            queries.add(UserIdMappingQueries.getQueryToCreateUserIdMappingTable(start));
+        }
+
+        if (queries.isEmpty()) {
+            return;
+        }
+        getInstance(start).addState(CREATING_NEW_TABLE, null);
+
+        if (existingRelations.isEmpty()) {
+            // the schema itself may not exist yet
+            String schema = Config.getConfig(start).getTableSchema().trim();
+            if (!schema.equals("public") && !doesSchemaExist(start, schema)) {
+                queries.add(0, "CREATE SCHEMA " + schema + ";");
             }
         }
+
+        // all the DDL is sent as one multi statement query, in a single transaction
+        StringBuilder QUERY = new StringBuilder();
+        for (String query : queries) {
+            query = query.trim();
+            QUERY.append(query).append(query.endsWith(";") ? "\n" : ";\n");
+        }
+        update(start, QUERY.toString(), NO_OP_SETTER);
+    }
+
+    /**
+     * Returns the names of all the tables and indexes in our schema.
+     */
+    private static Set<String> getExistingRelations(Start start) throws SQLException, StorageQueryException {
+        String QUERY = "SELECT c.relname FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace"
+                + " WHERE n.nspname = ? AND c.relkind IN ('r', 'p', 'i')";
+        return execute(start, QUERY, pst -> pst.setString(1, Config.getConfig(start).getTableSchema().trim()),
+                result -> {
+                    Set<String> relations = new HashSet<>();
+                    while (result.next()) {
+                        relations.add(result.getString("relname"));
+                    }
+                    return relations;
+                });
+    }
+
+    private static boolean doesSchemaExist(Start start, String schema) throws SQLException, StorageQueryException {
+        String QUERY = "SELECT 1 FROM pg_namespace WHERE nspname = ?";
+        return execute(start, QUERY, pst -> pst.setString(1, schema), result -> result.next());
+    }
+
+    private static boolean isMissing(Set<String> existingRelations, String tableName) {
+        // tableName may be qualified with the schema, and unquoted identifiers are stored in lower case
+        String name = tableName.substring(tableName.lastIndexOf('.') + 1).trim().toLowerCase();
+        return !existingRelations.contains(name);
     }
 
     @TestOnly
@@ -247,9 +302,23 @@ public class GeneralQueries {
             String DROP_QUERY = "DROP INDEX IF EXISTS all_auth_recipe_users_pagination_index";
             update(start, DROP_QUERY, NO_OP_SETTER);
         }
+        {
+            String DROP_QUERY = "DROP INDEX IF EXISTS all_auth_recipe_users_recipe_id_pagination_index";
+            update(start, DROP_QUERY, NO_OP_SETTER);
+        }
+        {
+            String DROP_QUERY = "DROP INDEX IF EXISTS session_info_user_id_expires_at_index";
+            update(start, DROP_QUERY, NO_OP_SETTER);
+        }
+        {
+            String DROP_QUERY = "DROP INDEX IF EXISTS session_info_expires_at_index";
+            update(start, DROP_QUERY, NO_OP_SETTER);
+        }
 
         {
-            String DROP_QUERY = "DROP TABLE IF EXISTS " + getConfig(start).getKeyValueTable() + ","
+            String DROP_QUERY = "DROP TABLE IF EXISTS " + getConfig(start).getSchemaVersionsTable() + ","
+                    + getConfig(start).getCountersTable() + ","
+                    + getConfig(start).getKeyValueTable() + ","
                     + getConfig(start).getUserIdMappingTable() + "," + getConfig(start).getUsersTable() + ","
                     + getConfig(start).getAccessTokenSigningKeysTable() + "," + getConfig(start).getSessionInfoTable()
                     + "," + getConfig(start).getEmailPasswordUsersTable() + ","
@@ -264,33 +333,64 @@ public class GeneralQueries {
                     + "," + getConfig(start).getUserRolesTable();
             update(start, DROP_QUERY, NO_OP_SETTER);
         }
+        {
+            // the triggers are dropped along with the tables, but not the functions they call
+            String DROP_QUERY = "DROP FUNCTION IF EXISTS "
+                    + CounterQueries.getCounterFunctionName(getConfig(start).getUsersTable()) + "(), "
+                    + CounterQueries.getCounterFunctionName(getConfig(start).getSessionInfoTable()) + "(), "
+                    + getConfig(start).getSigningKeysNotifyFunction() + "(), "
+                    + getConfig(start).getUserRolesVersionFunction() + "(), "
+                    + getConfig(start).getUserIdMappingNotifyFunction() + "(), "
+                    + getConfig(start).getSessionInfoNotifyFunction() + "(), "
+                    + getConfig(start).getEmailVerificationNotifyFunction() + "()";
+            update(start, DROP_QUERY, NO_OP_SETTER);
+        }
+        // dropping the tables doesn't fire the triggers that would tell the caches
+        SigningKeyCache signingKeyCache = SigningKeyCache.getInstance(start);
+        if (signingKeyCache != null) {
+            signingKeyCache.invalidate();
+        }
+        UserRolesCache userRolesCache = UserRolesCache.getInstance(start);
+        if (userRolesCache != null) {
+            userRolesCache.invalidate();
+        }
+        UserIdMappingFilter userIdMappingFilter = UserIdMappingFilter.getInstance(start);
+        if (userIdMappingFilter != null) {
+            userIdMappingFilter.invalidate();
+        }
+        SessionCache sessionCache = SessionCache.getInstance(start);
+        if (sessionCache != null) {
+            sessionCache.invalidateAll();
+        }
+        EmailVerificationCache emailVerificationCache = EmailVerificationCache.getInstance(start);
+        if (emailVerificationCache != null) {
+            emailVerificationCache.invalidateAll();
+        }
     }
 
-    public static void setKeyValue_Transaction(CustomSessionWrapper session, String key, KeyValueInfo info) {
-        // we want to do an "insert .. on conflict" style query here. There is no
-        // direct way of doing that, we so first get it, and then we save or update.
-        // We do not apply a pessimistic write lock here because if this function
-        // is called twice in a row with the same key, then it will throw an error.
-        // Also we do not call saveOrUpdate since that does an extra select query in case
-        // we are inserting a new value.
-        KeyValueDO toInsertOrUpdate = session.get(KeyValueDO.class, key);
-        if (toInsertOrUpdate == null) {
-            toInsertOrUpdate = new KeyValueDO();
-            toInsertOrUpdate.setName(key);
-            toInsertOrUpdate.setValue(info.value);
-            toInsertOrUpdate.setCreated_at_time(info.createdAtTime);
-            session.save(KeyValueDO.class, key, toInsertOrUpdate);
-        } else {
-            toInsertOrUpdate.setValue(info.value);
-            toInsertOrUpdate.setCreated_at_time(info.createdAtTime);
-            session.update(KeyValueDO.class, key, toInsertOrUpdate);
-        }
+    public static void setKeyValue_Transaction(Start start, CustomSessionWrapper session, String key,
+            KeyValueInfo info) throws SQLException, StorageQueryException {
+        // hibernate has no "insert .. on conflict", so this goes around it. Unlike a get followed by a save or
+        // update, this is one round trip, and two transactions setting the same key don't race on the insert.
+        String QUERY = "INSERT INTO " + getConfig(start).getKeyValueTable() + "(name, value, created_at_time)"
+                + " VALUES(?, ?, ?) ON CONFLICT (name) DO UPDATE SET value = EXCLUDED.value,"
+                + " created_at_time = EXCLUDED.created_at_time";
+        update(session.getConnectionForNativeWrite(), QUERY, pst -> {
+            pst.setString(1, key);
+            pst.setString(2, info.value);
+            pst.setLong(3, info.createdAtTime);
+        });
+        KeyValueDO written = new KeyValueDO();
+        written.setName(key);
+        written.setValue(info.value);
+        written.setCreated_at_time(info.createdAtTime);
+        session.written(KeyValueDO.class, key, written);
     }
 
     public static void setKeyValue(Start start, String key, KeyValueInfo info)
             throws SQLException, StorageQueryException {
         ConnectionPool.withSession(start, (session, con) -> {
-            setKeyValue_Transaction(session, key, info);
+            setKeyValue_Transaction(start, session, key, info);
             return null;
         }, true);
     }
@@ -321,106 +421,196 @@ public class GeneralQueries {
 
     public static long getUsersCount(Start start, RECIPE_ID[] includeRecipeIds)
             throws SQLException, StorageQueryException {
-        return ConnectionPool.withSession(start, (session, con) -> {
-            CustomQueryWrapper<Long> q;
-            if (includeRecipeIds == null || includeRecipeIds.length == 0) {
-                q = session.createQuery("SELECT COUNT(*) FROM AllAuthRecipeUsersDO", Long.class);
-            } else {
-                q = session.createQuery("SELECT COUNT(*) FROM AllAuthRecipeUsersDO WHERE recipe_id IN (:recipe_ids)",
-                        Long.class);
-                String[] includeRecipeIdsStr = new String[includeRecipeIds.length];
-                for (int i = 0; i < includeRecipeIds.length; i++) {
-                    includeRecipeIdsStr[i] = includeRecipeIds[i].toString();
-                }
-                q.setParameterList("recipe_ids", includeRecipeIdsStr);
+        if (includeRecipeIds == null || includeRecipeIds.length == 0) {
+            if (getConfig(start).useApproximateCounts()) {
+                return CounterQueries.getApproximateRowCount(start, getConfig(start).getUsersTable());
             }
-            List<Long> result = q.list();
-            return result.get(0);
-        }, false);
+            includeRecipeIds = RECIPE_ID.values();
+        }
+        Set<String> counters = new LinkedHashSet<>();
+        for (RECIPE_ID recipeId : includeRecipeIds) {
+            counters.add(CounterQueries.getUsersCounter(recipeId));
+        }
+        return CounterQueries.getCount(start, counters.toArray(new String[0]));
     }
 
+    /**
+     * Gets a page of users together with their recipe specific info in one query: the page is selected from
+     * all_auth_recipe_users, and each row is joined with the table of its recipe. The rows come back in page order,
+     * so they are mapped straight into the result.
+     */
     public static AuthRecipeUserInfo[] getUsers(Start start, @NotNull Integer limit, @NotNull String timeJoinedOrder,
             @Nullable RECIPE_ID[] includeRecipeIds, @Nullable String userId, @Nullable Long timeJoined)
             throws SQLException, StorageQueryException {
+        boolean isPaginated = timeJoined != null && userId != null;
+
+        String pageQuery;
+        PreparedStatementValueSetter pageSetter;
+        if (includeRecipeIds != null && includeRecipeIds.length > 0) {
+            Set<RECIPE_ID> recipeIds = new LinkedHashSet<>(Arrays.asList(includeRecipeIds));
+            pageQuery = getQueryForPageOfRecipes(start, timeJoinedOrder, recipeIds.size(), isPaginated);
+            pageSetter = pst -> {
+                int index = 1;
+                for (RECIPE_ID recipeId : recipeIds) {
+                    pst.setString(index++, recipeId.toString());
+                    if (isPaginated) {
+                        index = setPaginationParameters(start, pst, index, timeJoinedOrder, timeJoined, userId);
+                    }
+                    pst.setInt(index++, limit);
+                }
+                pst.setInt(index, limit);
+            };
+        } else {
+            pageQuery = "SELECT user_id, recipe_id, time_joined FROM " + getConfig(start).getUsersTable()
+                    + (isPaginated ? " WHERE " + getPaginationCondition(timeJoinedOrder) : "")
+                    + " ORDER BY time_joined " + timeJoinedOrder + ", user_id DESC LIMIT ?";
+            pageSetter = pst -> {
+                int index = 1;
+                if (isPaginated) {
+                    index = setPaginationParameters(start, pst, index, timeJoinedOrder, timeJoined, userId);
+                }
+                pst.setInt(index, limit);
+            };
+        }
+
+        // all the parameters are in the page query, which comes first
+        // @formatter:off
+        String QUERY = "SELECT page.user_id, page.recipe_id, page.time_joined,"
+                + " ep.user_id AS ep_user_id, ep.email AS ep_email, ep.password_hash,"
+                + " tp.user_id AS tp_user_id, tp.email AS tp_email, tp.third_party_id, tp.third_party_user_id,"
+                + " pl.user_id AS pl_user_id, pl.email AS pl_email, pl.phone_number"
+                + " FROM (" + pageQuery + ") AS page"
+                + " LEFT JOIN " + getConfig(start).getEmailPasswordUsersTable() + " AS ep"
+                + " ON page.recipe_id = '" + RECIPE_ID.EMAIL_PASSWORD + "' AND ep.user_id = page.user_id"
+                + " LEFT JOIN " + getConfig(start).getThirdPartyUsersTable() + " AS tp"
+                + " ON page.recipe_id = '" + RECIPE_ID.THIRD_PARTY + "' AND tp.user_id = page.user_id"
+                + " LEFT JOIN " + getConfig(start).getPasswordlessUsersTable() + " AS pl"
+                + " ON page.recipe_id = '" + RECIPE_ID.PASSWORDLESS + "' AND pl.user_id = page.user_id"
+                + " ORDER BY page.time_joined " + timeJoinedOrder + ", page.user_id DESC";
+        // @formatter:on
 
-        // This list will be used to keep track of the result's order from the db
-        List<AllAuthRecipeUsersDO> usersFromQuery = ConnectionPool.withSession(start, (session, con) -> {
-            CustomQueryWrapper<AllAuthRecipeUsersDO> q;
-            StringBuilder RECIPE_ID_CONDITION = new StringBuilder();
-            if (includeRecipeIds != null && includeRecipeIds.length > 0) {
-                RECIPE_ID_CONDITION.append("recipe_id IN (:recipe_ids)");
+        return execute(start, QUERY, pageSetter, result -> {
+            List<AuthRecipeUserInfo> users = new ArrayList<>();
+            while (result.next()) {
+                users.add(getAuthRecipeUserInfoFromResult(result));
             }
+            return users.toArray(new AuthRecipeUserInfo[0]);
+        });
+    }
 
-            if (timeJoined != null && userId != null) {
-                String recipeIdCondition = RECIPE_ID_CONDITION.toString();
-                if (!recipeIdCondition.equals("")) {
-                    recipeIdCondition = recipeIdCondition + " AND";
-                }
-                String timeJoinedOrderSymbol = timeJoinedOrder.equals("ASC") ? ">" : "<";
-                String QUERY = "SELECT entity FROM AllAuthRecipeUsersDO entity WHERE " + recipeIdCondition
-                        + " (time_joined " + timeJoinedOrderSymbol
-                        + " :time_joined1 OR (time_joined = :time_joined2 AND user_id <= :user_id)) ORDER BY "
-                        + "time_joined " + timeJoinedOrder + ", user_id DESC";
-                q = session.createQuery(QUERY, AllAuthRecipeUsersDO.class);
-                q.setParameter("time_joined1", timeJoined);
-                q.setParameter("time_joined2", timeJoined);
-                q.setParameter("user_id", userId);
-                q.setMaxResults(limit);
-            } else {
-                String recipeIdCondition = RECIPE_ID_CONDITION.toString();
-                if (!recipeIdCondition.equals("")) {
-                    recipeIdCondition = " WHERE " + recipeIdCondition;
-                }
-                String QUERY = "SELECT entity FROM AllAuthRecipeUsersDO entity" + recipeIdCondition
-                        + " ORDER BY time_joined " + timeJoinedOrder + ", user_id DESC";
-                q = session.createQuery(QUERY, AllAuthRecipeUsersDO.class);
-                q.setMaxResults(limit);
+    /**
+     * A single "recipe_id IN (...)" condition can't return the rows in time_joined order straight from the index, so
+     * postgres would read all the matching users and sort them. Instead, we get one page per recipe (each is a range
+     * scan of all_auth_recipe_users_recipe_id_pagination_index) and merge those, all in one query.
+     */
+    private static String getQueryForPageOfRecipes(Start start, @NotNull String timeJoinedOrder, int numberOfRecipes,
+            boolean isPaginated) {
+        String ORDER_BY = " ORDER BY time_joined " + timeJoinedOrder + ", user_id DESC LIMIT ?";
+
+        StringBuilder QUERY = new StringBuilder("SELECT user_id, recipe_id, time_joined FROM (");
+        for (int i = 0; i < numberOfRecipes; i++) {
+            if (i > 0) {
+                QUERY.append(" UNION ALL ");
             }
-            if (includeRecipeIds != null && includeRecipeIds.length > 0) {
-                String[] includeRecipeIdsStr = new String[includeRecipeIds.length];
-                for (int i = 0; i < includeRecipeIds.length; i++) {
-                    includeRecipeIdsStr[i] = includeRecipeIds[i].toString();
-                }
-                q.setParameterList("recipe_ids", includeRecipeIdsStr);
+            QUERY.append("(SELECT user_id, recipe_id, time_joined FROM ").append(getConfig(start).getUsersTable())
+                    .append(" WHERE recipe_id = ?");
+            if (isPaginated) {
+                QUERY.append(" AND (").append(getPaginationCondition(timeJoinedOrder)).append(")");
             }
-            return q.list();
-        }, false);
+            QUERY.append(ORDER_BY).append(")");
+        }
+        return QUERY.append(") AS pages").append(ORDER_BY).toString();
+    }
 
-        // we create a map from recipe ID -> userId[]
-        Map<RECIPE_ID, List<String>> recipeIdToUserIdListMap = new HashMap<>();
-        for (AllAuthRecipeUsersDO user : usersFromQuery) {
-            RECIPE_ID recipeId = RECIPE_ID.getEnumFromString(user.getRecipe_id());
-            if (recipeId == null) {
-                throw new SQLException("Unrecognised recipe ID in database: " + user.getRecipe_id());
+    // null if the user is missing from the table of their recipe, as it was when each recipe was queried separately
+    private static AuthRecipeUserInfo getAuthRecipeUserInfoFromResult(ResultSet result) throws SQLException {
+        String userId = result.getString("user_id");
+        long timeJoined = result.getLong("time_joined");
+        RECIPE_ID recipeId = RECIPE_ID.getEnumFromString(result.getString("recipe_id"));
+        if (recipeId == RECIPE_ID.EMAIL_PASSWORD) {
+            if (result.getString("ep_user_id") == null) {
+                return null;
             }
-            List<String> userIdList = recipeIdToUserIdListMap.get(recipeId);
-            if (userIdList == null) {
-                userIdList = new ArrayList<>();
+            return new io.supertokens.pluginInterface.emailpassword.UserInfo(userId, result.getString("ep_email"),
+                    result.getString("password_hash"), timeJoined);
+        } else if (recipeId == RECIPE_ID.THIRD_PARTY) {
+            if (result.getString("tp_user_id") == null) {
+                return null;
+            }
+            return new io.supertokens.pluginInterface.thirdparty.UserInfo(userId, result.getString("tp_email"),
+                    new io.supertokens.pluginInterface.thirdparty.UserInfo.ThirdParty(
+                            result.getString("third_party_id"), result.getString("third_party_user_id")),
+                    timeJoined);
+        } else if (recipeId == RECIPE_ID.PASSWORDLESS) {
+            if (result.getString("pl_user_id") == null) {
+                return null;
             }
-            userIdList.add(user.getUser_id());
-            recipeIdToUserIdListMap.put(recipeId, userIdList);
+            return new io.supertokens.pluginInterface.passwordless.UserInfo(userId, result.getString("pl_email"),
+                    result.getString("phone_number"), timeJoined);
         }
+        throw new SQLException("Unrecognised recipe ID in database: " + result.getString("recipe_id"));
+    }
 
-        AuthRecipeUserInfo[] finalResult = new AuthRecipeUserInfo[usersFromQuery.size()];
-
-        // we give the userId[] for each recipe to fetch all those user's details
-        for (RECIPE_ID recipeId : recipeIdToUserIdListMap.keySet()) {
-            List<? extends AuthRecipeUserInfo> users = getUserInfoForRecipeIdFromUserIds(start, recipeId,
-                    recipeIdToUserIdListMap.get(recipeId));
+    /**
+     * The condition to continue a listing that is ordered by "time_joined {timeJoinedOrder}, user_id DESC" from the
+     * given user onwards. For DESC, this is a row value comparison, which postgres turns into a single index seek to
+     * that user instead of evaluating an OR for every row. For ASC the two columns are ordered in opposite directions,
+     * so a row value can't express it; there we seek on time_joined and only filter the rows that joined at the same
+     * time as that user.
+     * <p>
+     * The parameters are set using {@link #setPaginationParameters}.
+     */
+    public static String getPaginationCondition(String timeJoinedOrder) {
+        if (timeJoinedOrder.equals("ASC")) {
+            return "time_joined >= ? AND (time_joined > ? OR user_id <= ?)";
+        }
+        return "(time_joined, user_id) <= (?, ?)";
+    }
 
-            // we fill in all the slots in finalResult based on their position in usersFromQuery
-            Map<String, AuthRecipeUserInfo> userIdToInfoMap = new HashMap<>();
-            for (AuthRecipeUserInfo user : users) {
-                userIdToInfoMap.put(user.id, user);
-            }
-            for (int i = 0; i < usersFromQuery.size(); i++) {
-                if (finalResult[i] == null) {
-                    finalResult[i] = userIdToInfoMap.get(usersFromQuery.get(i).getUser_id());
-                }
-            }
+    /**
+     * @return the index of the next parameter
+     */
+    public static int setPaginationParameters(Start start, PreparedStatement pst, int index, String timeJoinedOrder,
+            long timeJoined, String userId) throws SQLException {
+        pst.setLong(index++, timeJoined);
+        if (timeJoinedOrder.equals("ASC")) {
+            pst.setLong(index++, timeJoined);
         }
+        UserIdType.bind(pst, index++, userId, getConfig(start).useUuidUserIds());
+        return index;
+    }
 
-        return finalResult;
+    // the bits of getNonAuthRecipeUsage
+    public static final int SESSION_USAGE = 1;
+    public static final int USER_ROLES_USAGE = 1 << 1;
+    public static final int USER_METADATA_USAGE = 1 << 2;
+    public static final int EMAIL_VERIFICATION_USAGE = 1 << 3;
+
+    /**
+     * Which of the non auth recipes have data for the user, found with one query instead of one per recipe. Each
+     * EXISTS stops at the first row, which the primary key or user_id index of that table finds.
+     *
+     * @return the *_USAGE bits of the recipes that use the user ID
+     */
+    public static int getNonAuthRecipeUsage(Start start, String userId) throws SQLException, StorageQueryException {
+        String QUERY = "SELECT (CASE WHEN EXISTS (SELECT 1 FROM " + getConfig(start).getSessionInfoTable()
+                + " WHERE user_id = ? AND expires_at >= ?) THEN " + SESSION_USAGE + " ELSE 0 END)"
+                + " | (CASE WHEN EXISTS (SELECT 1 FROM " + getConfig(start).getUserRolesTable()
+                + " WHERE user_id = ?) THEN " + USER_ROLES_USAGE + " ELSE 0 END)"
+                + " | (CASE WHEN EXISTS (SELECT 1 FROM " + getConfig(start).getUserMetadataTable()
+                + " WHERE user_id = ?) THEN " + USER_METADATA_USAGE + " ELSE 0 END)"
+                + " | (CASE WHEN EXISTS (SELECT 1 FROM " + getConfig(start).getEmailVerificationTokensTable()
+                + " WHERE user_id = ?) THEN " + EMAIL_VERIFICATION_USAGE + " ELSE 0 END) AS usage";
+        return execute(start, QUERY, pst -> {
+            pst.setString(1, userId);
+            pst.setLong(2, System.currentTimeMillis());
+            pst.setString(3, userId);
+            pst.setString(4, userId);
+            pst.setString(5, userId);
+        }, result -> {
+            result.next();
+            return result.getInt("usage");
+        });
     }
 
     public static boolean doesUserIdExist(Start start, String userId) throws SQLException, StorageQueryException {
@@ -431,17 +621,4 @@ public class GeneralQueries {
         }, false);
 
     }
-
-    private static List<? extends AuthRecipeUserInfo> getUserInfoForRecipeIdFromUserIds(Start start, RECIPE_ID recipeId,
-            List<String> userIds) throws StorageQueryException, SQLException {
-        if (recipeId == RECIPE_ID.EMAIL_PASSWORD) {
-            return EmailPasswordQueries.getUsersInfoUsingIdList(start, userIds);
-        } else if (recipeId == RECIPE_ID.THIRD_PARTY) {
-            return ThirdPartyQueries.getUsersInfoUsingIdList(start, userIds);
-        } else if (recipeId == RECIPE_ID.PASSWORDLESS) {
-            return PasswordlessQueries.getUsersByIdList(start, userIds);
-        } else {
-            throw new IllegalArgumentException("No implementation of get users for recipe: " + recipeId.toString());
-        }
-    }
 }
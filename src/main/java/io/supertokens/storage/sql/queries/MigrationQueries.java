@@ -0,0 +1,413 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.queries;
+
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.sql.ConnectionPool;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.config.Config;
+import io.supertokens.storage.sql.output.Logging;
+import io.supertokens.storage.sql.utils.Utils;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static io.supertokens.storage.sql.PreparedStatementValueSetter.NO_OP_SETTER;
+import static io.supertokens.storage.sql.ProcessState.PROCESS_STATE.APPLYING_SCHEMA_MIGRATION;
+import static io.supertokens.storage.sql.ProcessState.getInstance;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.execute;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.update;
+import static io.supertokens.storage.sql.config.Config.getConfig;
+import static io.supertokens.storage.sql.queries.SessionQueries.getQueryToCreateSessionInfoExpiresAtIndex;
+import static io.supertokens.storage.sql.queries.SessionQueries.getQueryToCreateSessionInfoUserIdIndex;
+
+/**
+ * Schema changes for tables that already exist. New tables (and their indexes) are still created by
+ * {@link GeneralQueries#createTablesIfNotExists(Start)}; anything that has to reach existing deployments is added
+ * here as a new version.
+ * <p>
+ * Rules for adding a migration:
+ * - never edit or reorder a released migration, add a new version instead
+ * - every step must be idempotent, since on a fresh install the tables are created in their final shape and the
+ * migrations still run against them
+ * - prefer online operations (CREATE INDEX CONCURRENTLY, ADD COLUMN without a volatile default, etc) so that we do
+ * not block writes on large tables
+ */
+public class MigrationQueries {
+
+    // Key for pg_advisory_lock so that only one core that is connected to this database migrates at a time. The
+    // value is arbitrary, it just has to be the same across all versions of this plugin.
+    private static final long MIGRATION_LOCK_KEY = 7_318_446_209_371_402L;
+
+    static String getQueryToCreateSchemaVersionsTable(Start start) {
+        String schema = Config.getConfig(start).getTableSchema();
+        String schemaVersionsTable = Config.getConfig(start).getSchemaVersionsTable();
+        // @formatter:off
+        return "CREATE TABLE IF NOT EXISTS " + schemaVersionsTable + " ("
+                + "version INTEGER NOT NULL,"
+                + "description VARCHAR(256) NOT NULL,"
+                + "applied_at BIGINT NOT NULL,"
+                + "CONSTRAINT " + Utils.getConstraintName(schema, schemaVersionsTable, null, "pkey") +
+                " PRIMARY KEY (version));";
+        // @formatter:on
+    }
+
+    private static List<Migration> getMigrations(Start start) {
+        List<Migration> migrations = new ArrayList<>();
+
+        migrations.add(new Migration(1, "Add user_id and expires_at indexes to session_info",
+                createIndexConcurrently("session_info_user_id_expires_at_index",
+                        getQueryToCreateSessionInfoUserIdIndex(start, true)),
+                createIndexConcurrently("session_info_expires_at_index",
+                        getQueryToCreateSessionInfoExpiresAtIndex(start, true))));
+
+        migrations.add(new Migration(2, "Add indexes for thirdparty, user roles and passwordless lookups",
+                createIndexConcurrently("thirdparty_users_email_index",
+                        ThirdPartyQueries.getQueryToCreateThirdPartyUserEmailIndex(start, true)),
+                createIndexConcurrently("user_roles_role_user_id_index",
+                        UserRolesQueries.getQueryToCreateUserRolesRoleIndex(start, true)),
+                dropIndexConcurrently("user_roles_role_index"),
+                createIndexConcurrently("passwordless_devices_email_hash_index",
+                        PasswordlessQueries.getQueryToCreateDeviceEmailIndex(start, true)),
+                dropIndexConcurrently("passwordless_devices_email_index"),
+                createIndexConcurrently("passwordless_devices_phone_number_hash_index",
+                        PasswordlessQueries.getQueryToCreateDevicePhoneNumberIndex(start, true)),
+                dropIndexConcurrently("passwordless_devices_phone_number_index")));
+
+        migrations.add(new Migration(3, "Add recipe_id pagination index to all_auth_recipe_users",
+                createIndexConcurrently("all_auth_recipe_users_recipe_id_pagination_index",
+                        GeneralQueries.getQueryToCreateUserRecipePaginationIndex(start, true))));
+
+        // the backfill queries run in transactions of their own, so that neither holds a snapshot for longer than it
+        // needs, and nothing is locked against writes while the tables are counted
+        String[] counterBackfillQueries = CounterQueries.getQueriesToBackfillCounters(start);
+        migrations.add(new Migration(4, "Add counters for users per recipe and sessions",
+                inTransaction(CounterQueries.getQueriesToInstallCounters(start)),
+                inTransaction(counterBackfillQueries[0]), inTransaction(counterBackfillQueries[1])));
+
+        migrations.add(new Migration(5, "Notify other cores of signing key changes",
+                inTransaction(GeneralQueries.getQueriesToInstallSigningKeyNotifications(start))));
+
+        migrations.add(new Migration(6, "Count changes to user roles and permissions",
+                inTransaction(UserRolesQueries.getQueriesToInstallVersionTriggers(start))));
+
+        migrations.add(new Migration(7, "Notify other cores of new user ID mappings",
+                inTransaction(UserIdMappingQueries.getQueriesToInstallUserIdMappingNotifications(start))));
+
+        migrations.add(new Migration(8, "Notify other cores of changed and deleted sessions",
+                inTransaction(SessionQueries.getQueriesToInstallSessionNotifications(start))));
+
+        migrations.add(new Migration(9, "Notify other cores of verified and unverified emails",
+                inTransaction(EmailVerificationQueries.getQueriesToInstallEmailVerificationNotifications(start))));
+
+        return migrations;
+    }
+
+    public static void runPendingMigrations(Start start) throws SQLException, StorageQueryException {
+        withMigrationLock(start, (ignored, con) -> {
+            // we read this only after getting the lock, since another core may have just finished migrating
+            Set<Integer> appliedVersions = getAppliedVersions(con, start);
+            for (Migration migration : getMigrations(start)) {
+                if (appliedVersions.contains(migration.version)) {
+                    continue;
+                }
+                getInstance(start).addState(APPLYING_SCHEMA_MIGRATION, null);
+                Logging.info(start, "Applying database migration " + migration.version + ": " + migration.description,
+                        true);
+                for (MigrationStep step : migration.steps) {
+                    step.apply(start, con);
+                }
+                String QUERY = "INSERT INTO " + getConfig(start).getSchemaVersionsTable()
+                        + "(version, description, applied_at) VALUES(?, ?, ?)";
+                update(con, QUERY, pst -> {
+                    pst.setInt(1, migration.version);
+                    pst.setString(2, migration.description);
+                    pst.setLong(3, System.currentTimeMillis());
+                });
+            }
+        });
+    }
+
+    /**
+     * When postgresql_uuid_user_ids is turned on for an existing deployment, this converts the SuperTokens user ID
+     * columns from CHAR(36) to UUID. It is not a numbered migration since it depends on the config. This rewrites
+     * the tables and blocks them while it runs, so on a large deployment it should be done in a maintenance window.
+     * <p>
+     * It runs before the missing tables are created, so that a new table with a foreign key to one of these columns
+     * (also created as UUID) matches the type of the column it references.
+     */
+    public static void convertUserIdColumnsToUuid(Start start) throws SQLException, StorageQueryException {
+        if (!getConfig(start).useUuidUserIds()) {
+            return;
+        }
+        String usersTable = getConfig(start).getUsersTable();
+        String emailPasswordUsersTable = getConfig(start).getEmailPasswordUsersTable();
+        String passwordResetTokensTable = getConfig(start).getPasswordResetTokensTable();
+        String userIdMappingTable = getConfig(start).getUserIdMappingTable();
+        String[][] columns = { { usersTable, "user_id" }, { emailPasswordUsersTable, "user_id" },
+                { passwordResetTokensTable, "user_id" }, { getConfig(start).getThirdPartyUsersTable(), "user_id" },
+                { getConfig(start).getPasswordlessUsersTable(), "user_id" },
+                { userIdMappingTable, "supertokens_user_id" } };
+
+        withMigrationLock(start, (ignored, con) -> {
+            List<String> alterQueries = new ArrayList<>();
+            for (String[] column : columns) {
+                String type = getColumnType(con, column[0], column[1]);
+                if (type != null && !type.equals("uuid")) {
+                    alterQueries.add("ALTER TABLE " + column[0] + " ALTER COLUMN " + column[1] + " TYPE UUID USING "
+                            + column[1] + "::uuid");
+                }
+            }
+            if (alterQueries.isEmpty()) {
+                return;
+            }
+
+            // a foreign key can't be kept between a CHAR(36) and a UUID column, so we drop them while converting
+            String schema = getConfig(start).getTableSchema();
+            List<String> queries = new ArrayList<>();
+            List<String> foreignKeyQueries = new ArrayList<>();
+            if (getColumnType(con, passwordResetTokensTable, "user_id") != null) {
+                String constraint = Utils.getConstraintName(schema, passwordResetTokensTable, "user_id", "fkey");
+                queries.add("ALTER TABLE " + passwordResetTokensTable + " DROP CONSTRAINT IF EXISTS " + constraint);
+                foreignKeyQueries.add("ALTER TABLE " + passwordResetTokensTable + " ADD CONSTRAINT " + constraint
+                        + " FOREIGN KEY (user_id) REFERENCES " + emailPasswordUsersTable + "(user_id)"
+                        + " ON DELETE CASCADE ON UPDATE CASCADE");
+            }
+            if (getColumnType(con, userIdMappingTable, "supertokens_user_id") != null) {
+                String constraint = Utils.getConstraintName(schema, userIdMappingTable, "supertokens_user_id",
+                        "fkey");
+                queries.add("ALTER TABLE " + userIdMappingTable + " DROP CONSTRAINT IF EXISTS " + constraint);
+                foreignKeyQueries.add("ALTER TABLE " + userIdMappingTable + " ADD CONSTRAINT " + constraint
+                        + " FOREIGN KEY (supertokens_user_id) REFERENCES " + usersTable + "(user_id)"
+                        + " ON DELETE CASCADE");
+            }
+            queries.addAll(alterQueries);
+            queries.addAll(foreignKeyQueries);
+
+            getInstance(start).addState(APPLYING_SCHEMA_MIGRATION, null);
+            Logging.info(start, "Converting user ID columns to UUID. This can take a while on large tables.", true);
+            inTransaction(queries.toArray(new String[0])).apply(start, con);
+        });
+    }
+
+    /**
+     * When postgresql_binary_hashes is turned on for an existing deployment, this converts the hash and token columns
+     * to BYTEA, in the format that HashType reads. Like convertUserIdColumnsToUuid, it rewrites the tables and blocks
+     * them while it runs.
+     */
+    public static void convertHashColumnsToBinary(Start start) throws SQLException, StorageQueryException {
+        if (!getConfig(start).useBinaryHashes()) {
+            return;
+        }
+        String devicesTable = getConfig(start).getPasswordlessDevicesTable();
+        String codesTable = getConfig(start).getPasswordlessCodesTable();
+        // table, column, and whether the column holds base64 (else hex)
+        Object[][] columns = { { devicesTable, "device_id_hash", true }, { devicesTable, "link_code_salt", true },
+                { codesTable, "device_id_hash", true }, { codesTable, "link_code_hash", true },
+                { getConfig(start).getPasswordResetTokensTable(), "token", false },
+                { getConfig(start).getEmailVerificationTokensTable(), "token", false },
+                { getConfig(start).getSessionInfoTable(), "refresh_token_hash_2", false } };
+
+        withMigrationLock(start, (ignored, con) -> {
+            List<String> alterQueries = new ArrayList<>();
+            for (Object[] column : columns) {
+                String table = (String) column[0];
+                String name = (String) column[1];
+                String type = getColumnType(con, table, name);
+                if (type != null && !type.equals("bytea")) {
+                    alterQueries.add("ALTER TABLE " + table + " ALTER COLUMN " + name + " TYPE BYTEA USING "
+                            + getHashToBytesExpression(name + "::text", (Boolean) column[2]));
+                }
+            }
+            if (alterQueries.isEmpty()) {
+                return;
+            }
+
+            // as with the user IDs, the foreign key between the two passwordless tables has to go while converting
+            List<String> queries = new ArrayList<>();
+            String foreignKeyQuery = null;
+            if (getColumnType(con, codesTable, "device_id_hash") != null) {
+                String constraint = Utils.getConstraintName(getConfig(start).getTableSchema(), codesTable,
+                        "device_id_hash", "fkey");
+                queries.add("ALTER TABLE " + codesTable + " DROP CONSTRAINT IF EXISTS " + constraint);
+                foreignKeyQuery = "ALTER TABLE " + codesTable + " ADD CONSTRAINT " + constraint
+                        + " FOREIGN KEY (device_id_hash) REFERENCES " + devicesTable + "(device_id_hash)"
+                        + " ON DELETE CASCADE ON UPDATE CASCADE";
+            }
+            queries.addAll(alterQueries);
+            if (foreignKeyQuery != null) {
+                queries.add(foreignKeyQuery);
+            }
+
+            getInstance(start).addState(APPLYING_SCHEMA_MIGRATION, null);
+            Logging.info(start, "Converting hash columns to BYTEA. This can take a while on large tables.", true);
+            inTransaction(queries.toArray(new String[0])).apply(start, con);
+        });
+    }
+
+    // The SQL version of HashType.toBytes. The inner CASE makes sure decode() only sees values it accepts, since
+    // postgres doesn't promise to evaluate the conditions of an AND in order.
+    private static String getHashToBytesExpression(String value, boolean base64) {
+        String asText = "'\\x01'::bytea || convert_to(" + value + ", 'UTF8')";
+        if (!base64) {
+            return "CASE WHEN " + value + " ~ '^([0-9a-f]{2})*$' THEN '\\x00'::bytea || decode(" + value
+                    + ", 'hex') ELSE " + asText + " END";
+        }
+        // encode() breaks its output into lines of 76 characters
+        String decoded = "decode(" + value + ", 'base64')";
+        return "CASE WHEN " + value + " ~ '^[A-Za-z0-9+/]*={0,2}$' AND length(" + value + ") % 4 = 0 THEN CASE WHEN"
+                + " translate(encode(" + decoded + ", 'base64'), E'\\n', '') = " + value + " THEN '\\x00'::bytea || "
+                + decoded + " ELSE " + asText + " END ELSE " + asText + " END";
+    }
+
+    /**
+     * When postgresql_jsonb_user_metadata is turned on for an existing deployment, this converts the user metadata
+     * column from TEXT to JSONB. Like convertUserIdColumnsToUuid, it rewrites the table and blocks it while it runs.
+     */
+    public static void convertUserMetadataToJsonb(Start start) throws SQLException, StorageQueryException {
+        if (!getConfig(start).useJsonbUserMetadata()) {
+            return;
+        }
+        String userMetadataTable = getConfig(start).getUserMetadataTable();
+
+        withMigrationLock(start, (ignored, con) -> {
+            String type = getColumnType(con, userMetadataTable, "user_metadata");
+            if (type == null || type.equals("jsonb")) {
+                return;
+            }
+            getInstance(start).addState(APPLYING_SCHEMA_MIGRATION, null);
+            Logging.info(start, "Converting user metadata to JSONB. This can take a while on large tables.", true);
+            inTransaction("ALTER TABLE " + userMetadataTable
+                    + " ALTER COLUMN user_metadata TYPE JSONB USING user_metadata::jsonb").apply(start, con);
+        });
+    }
+
+    private static void withMigrationLock(Start start, MigrationStep step) throws SQLException, StorageQueryException {
+        // We use a non transactional session here: CREATE INDEX CONCURRENTLY can't run inside a transaction, and
+        // the advisory lock is held at the session level, so all the steps must run on this one connection.
+        ConnectionPool.withSession(start, (session, con) -> {
+            execute(con, "SELECT pg_advisory_lock(?)", pst -> pst.setLong(1, MIGRATION_LOCK_KEY), result -> null);
+            try {
+                step.apply(start, con);
+            } finally {
+                execute(con, "SELECT pg_advisory_unlock(?)", pst -> pst.setLong(1, MIGRATION_LOCK_KEY),
+                        result -> null);
+            }
+            return null;
+        }, false);
+    }
+
+    // null if the table (or column) doesn't exist
+    private static String getColumnType(Connection con, String table, String column)
+            throws SQLException, StorageQueryException {
+        String QUERY = "SELECT format_type(atttypid, atttypmod) AS type FROM pg_attribute"
+                + " WHERE attrelid = to_regclass(?) AND attname = ? AND NOT attisdropped";
+        return execute(con, QUERY, pst -> {
+            pst.setString(1, table);
+            pst.setString(2, column);
+        }, result -> result.next() ? result.getString("type") : null);
+    }
+
+    private static Set<Integer> getAppliedVersions(Connection con, Start start)
+            throws SQLException, StorageQueryException {
+        String QUERY = "SELECT version FROM " + getConfig(start).getSchemaVersionsTable();
+        return execute(con, QUERY, NO_OP_SETTER, result -> {
+            Set<Integer> versions = new HashSet<>();
+            while (result.next()) {
+                versions.add(result.getInt("version"));
+            }
+            return versions;
+        });
+    }
+
+    /**
+     * Runs a CREATE INDEX CONCURRENTLY IF NOT EXISTS query, unless the index already exists. We check that
+     * ourselves since postgres refuses the CONCURRENTLY query on a partitioned table even if the index exists.
+     * If a previous attempt to build this index failed half way (for example, the core was killed), Postgres leaves
+     * behind an INVALID index with the same name, which IF NOT EXISTS would then silently accept. So we drop such a
+     * leftover first.
+     */
+    static MigrationStep createIndexConcurrently(String indexName, String createQuery) {
+        return (start, con) -> {
+            String schema = getConfig(start).getTableSchema().trim();
+            String QUERY = "SELECT i.indisvalid FROM pg_index i JOIN pg_class c ON c.oid = i.indexrelid"
+                    + " JOIN pg_namespace n ON n.oid = c.relnamespace WHERE c.relname = ? AND n.nspname = ?";
+            Boolean isValid = execute(con, QUERY, pst -> {
+                pst.setString(1, indexName);
+                pst.setString(2, schema);
+            }, result -> result.next() ? result.getBoolean("indisvalid") : null);
+            if (Boolean.TRUE.equals(isValid)) {
+                return;
+            }
+            if (isValid != null) {
+                dropIndexConcurrently(indexName).apply(start, con);
+            }
+            update(con, createQuery, NO_OP_SETTER);
+        };
+    }
+
+    /**
+     * For indexes that have been replaced by a better one.
+     */
+    static MigrationStep dropIndexConcurrently(String indexName) {
+        return (start, con) -> {
+            String schema = getConfig(start).getTableSchema().trim();
+            String qualifiedName = schema.equals("public") ? indexName : schema + "." + indexName;
+            update(con, "DROP INDEX CONCURRENTLY IF EXISTS " + qualifiedName, NO_OP_SETTER);
+        };
+    }
+
+    /**
+     * For changes that can't be done online, or that must be applied all together.
+     */
+    static MigrationStep inTransaction(String... queries) {
+        return (start, con) -> {
+            con.setAutoCommit(false);
+            try {
+                for (String query : queries) {
+                    update(con, query, NO_OP_SETTER);
+                }
+                con.commit();
+            } catch (SQLException | StorageQueryException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        };
+    }
+
+    interface MigrationStep {
+        void apply(Start start, Connection con) throws SQLException, StorageQueryException;
+    }
+
+    private static class Migration {
+        final int version;
+        final String description;
+        final MigrationStep[] steps;
+
+        Migration(int version, String description, MigrationStep... steps) {
+            this.version = version;
+            this.description = description;
+            this.steps = steps;
+        }
+    }
+}
@@ -42,7 +42,6 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import static io.supertokens.pluginInterface.RECIPE_ID.PASSWORDLESS;
 
@@ -51,7 +50,8 @@ public class PasswordlessQueries {
         String schema = Config.getConfig(start).getTableSchema();
         String usersTable = Config.getConfig(start).getPasswordlessUsersTable();
 
-        return "CREATE TABLE IF NOT EXISTS " + usersTable + " (" + "user_id CHAR(36) NOT NULL,"
+        return "CREATE TABLE IF NOT EXISTS " + usersTable + " (" + "user_id "
+                + Config.getConfig(start).getUserIdColumnType() + " NOT NULL,"
                 + "email VARCHAR(256) CONSTRAINT " + Utils.getConstraintName(schema, usersTable, "email", "key")
                 + " UNIQUE," + "phone_number VARCHAR(256) CONSTRAINT "
                 + Utils.getConstraintName(schema, usersTable, "phone_number", "key") + " UNIQUE,"
@@ -62,9 +62,10 @@ public class PasswordlessQueries {
     public static String getQueryToCreateDevicesTable(Start start) {
         String schema = Config.getConfig(start).getTableSchema();
         String devicesTable = Config.getConfig(start).getPasswordlessDevicesTable();
+        String hashType = Config.getConfig(start).getHashColumnType("CHAR(44)");
 
-        return "CREATE TABLE IF NOT EXISTS " + devicesTable + " (" + "device_id_hash CHAR(44) NOT NULL,"
-                + "email VARCHAR(256), " + "phone_number VARCHAR(256)," + "link_code_salt CHAR(44) NOT NULL,"
+        return "CREATE TABLE IF NOT EXISTS " + devicesTable + " (" + "device_id_hash " + hashType + " NOT NULL,"
+                + "email VARCHAR(256), " + "phone_number VARCHAR(256)," + "link_code_salt " + hashType + " NOT NULL,"
                 + "failed_attempts INT NOT NULL," + "CONSTRAINT "
                 + Utils.getConstraintName(schema, devicesTable, null, "pkey") + " PRIMARY KEY (device_id_hash));";
     }
@@ -72,9 +73,10 @@ public class PasswordlessQueries {
     public static String getQueryToCreateCodesTable(Start start) {
         String schema = Config.getConfig(start).getTableSchema();
         String codesTable = Config.getConfig(start).getPasswordlessCodesTable();
+        String hashType = Config.getConfig(start).getHashColumnType("CHAR(44)");
 
         return "CREATE TABLE IF NOT EXISTS " + codesTable + " (" + "code_id CHAR(36) NOT NULL,"
-                + "device_id_hash CHAR(44) NOT NULL," + "link_code_hash CHAR(44) NOT NULL CONSTRAINT "
+                + "device_id_hash " + hashType + " NOT NULL," + "link_code_hash " + hashType + " NOT NULL CONSTRAINT "
                 + Utils.getConstraintName(schema, codesTable, "link_code_hash", "key") + " UNIQUE,"
                 + "created_at BIGINT NOT NULL," + "CONSTRAINT "
                 + Utils.getConstraintName(schema, codesTable, null, "pkey") + " PRIMARY KEY (code_id)," + "CONSTRAINT "
@@ -84,14 +86,18 @@ public class PasswordlessQueries {
                 + "(device_id_hash) ON DELETE CASCADE ON UPDATE CASCADE);";
     }
 
-    public static String getQueryToCreateDeviceEmailIndex(Start start) {
-        return "CREATE INDEX passwordless_devices_email_index ON "
-                + Config.getConfig(start).getPasswordlessDevicesTable() + " (email);"; // USING hash
+    // devices are only ever looked up by exact email / phone number, so a hash index is enough, and it stays small
+    // no matter how long the values are
+    public static String getQueryToCreateDeviceEmailIndex(Start start, boolean concurrently) {
+        return "CREATE INDEX " + (concurrently ? "CONCURRENTLY IF NOT EXISTS " : "")
+                + "passwordless_devices_email_hash_index ON " + Config.getConfig(start).getPasswordlessDevicesTable()
+                + " USING hash (email);";
     }
 
-    public static String getQueryToCreateDevicePhoneNumberIndex(Start start) {
-        return "CREATE INDEX passwordless_devices_phone_number_index ON "
-                + Config.getConfig(start).getPasswordlessDevicesTable() + " (phone_number);"; // USING hash
+    public static String getQueryToCreateDevicePhoneNumberIndex(Start start, boolean concurrently) {
+        return "CREATE INDEX " + (concurrently ? "CONCURRENTLY IF NOT EXISTS " : "")
+                + "passwordless_devices_phone_number_hash_index ON "
+                + Config.getConfig(start).getPasswordlessDevicesTable() + " USING hash (phone_number);";
     }
 
     public static String getQueryToCreateCodeDeviceIdHashIndex(Start start) {
@@ -122,13 +128,16 @@ public class PasswordlessQueries {
 
     public static void incrementDeviceFailedAttemptCount_Transaction(CustomSessionWrapper session, String deviceIdHash)
             throws SQLException {
-        final PasswordlessDevicesDO passwordlessDevicesDO = session.get(PasswordlessDevicesDO.class, deviceIdHash);
-        if (passwordlessDevicesDO == null) {
-            return;
-        }
-        passwordlessDevicesDO.setFailed_attempts(passwordlessDevicesDO.getFailed_attempts() + 1);
+        // incremented in the db, rather than loading the device and saving it back
+        String QUERY = "UPDATE PasswordlessDevicesDO entity SET entity.failed_attempts = entity.failed_attempts + 1"
+                + " WHERE entity.device_id_hash = :device_id_hash";
 
-        session.update(PasswordlessDevicesDO.class, deviceIdHash, passwordlessDevicesDO);
+        final CustomQueryWrapper query = session.createQuery(QUERY);
+        query.setParameter("device_id_hash", deviceIdHash);
+        query.executeUpdate();
+
+        // a device loaded earlier in this transaction still has the old count
+        session.forget(PasswordlessDevicesDO.class, deviceIdHash);
     }
 
     public static PasswordlessDevice getDevice_Transaction(CustomSessionWrapper session, String deviceIdHash)
@@ -143,11 +152,14 @@ public class PasswordlessQueries {
     }
 
     public static void deleteDevice_Transaction(CustomSessionWrapper session, String deviceIdHash) throws SQLException {
-        final PasswordlessDevicesDO passwordlessDevicesDO = session.get(PasswordlessDevicesDO.class, deviceIdHash);
-        if (passwordlessDevicesDO == null) {
-            return;
-        }
-        session.delete(PasswordlessDevicesDO.class, deviceIdHash, passwordlessDevicesDO);
+        // the codes of the device are deleted by the db (ON DELETE CASCADE)
+        String QUERY = "DELETE FROM PasswordlessDevicesDO entity WHERE entity.device_id_hash = :device_id_hash";
+
+        final CustomQueryWrapper query = session.createQuery(QUERY);
+        query.setParameter("device_id_hash", deviceIdHash);
+        query.executeUpdate();
+
+        session.forget(PasswordlessDevicesDO.class, deviceIdHash);
     }
 
     public static void deleteDevicesByPhoneNumber_Transaction(CustomSessionWrapper session, @Nonnull String phoneNumber)
@@ -253,7 +265,9 @@ public class PasswordlessQueries {
 
             // Even if the user is changed after we read it here (which is unlikely),
             // we'd only leave devices that will be cleaned up later automatically when they expire.
-            UserInfo user = getUserById(start, userId);
+            // This uses the session we already have, since getting another connection from the pool while holding
+            // this one can deadlock the pool.
+            PasswordlessUsersDO user = session.get(PasswordlessUsersDO.class, userId);
             {
                 String QUERY = "DELETE FROM PasswordlessUsersDO entity WHERE entity.user_id = :user_id";
                 final CustomQueryWrapper query = session.createQuery(QUERY);
@@ -264,11 +278,11 @@ public class PasswordlessQueries {
             }
 
             if (user != null) {
-                if (user.email != null) {
-                    deleteDevicesByEmail_Transaction(session, user.email);
+                if (user.getEmail() != null) {
+                    deleteDevicesByEmail_Transaction(session, user.getEmail());
                 }
-                if (user.phoneNumber != null) {
-                    deleteDevicesByPhoneNumber_Transaction(session, user.phoneNumber);
+                if (user.getPhone_number() != null) {
+                    deleteDevicesByPhoneNumber_Transaction(session, user.getPhone_number());
                 }
             }
 
@@ -400,12 +414,15 @@ public class PasswordlessQueries {
         }
         return ConnectionPool.withSession(start, (session, con) -> {
             String QUERY = "SELECT entity FROM PasswordlessUsersDO entity WHERE entity.user_id in (:user_ids)";
-            final CustomQueryWrapper<PasswordlessUsersDO> query = session.createQuery(QUERY, PasswordlessUsersDO.class);
-
-            query.setParameterList("user_ids", ids);
-
-            return query.list().stream().map(result -> new UserInfo(result.getUser_id(), result.getEmail(),
-                    result.getPhone_number(), result.getTime_joined())).collect(Collectors.toList());
+            List<UserInfo> users = new ArrayList<>();
+            for (List<String> chunk : Utils.getInListChunks(ids)) {
+                final CustomQueryWrapper<PasswordlessUsersDO> query = session.createQuery(QUERY,
+                        PasswordlessUsersDO.class);
+                query.setParameterList("user_ids", chunk);
+                query.list().stream().map(result -> new UserInfo(result.getUser_id(), result.getEmail(),
+                        result.getPhone_number(), result.getTime_joined())).forEach(users::add);
+            }
+            return users;
 
         }, false);
     }
@@ -22,31 +22,74 @@ import io.supertokens.pluginInterface.KeyValueInfo;
 import io.supertokens.pluginInterface.exceptions.StorageQueryException;
 import io.supertokens.pluginInterface.session.SessionInfo;
 import io.supertokens.storage.sql.ConnectionPool;
+import io.supertokens.storage.sql.SessionCache;
 import io.supertokens.storage.sql.Start;
 import io.supertokens.storage.sql.config.Config;
 import io.supertokens.storage.sql.domainobject.session.SessionAccessTokenSigningKeysDO;
 import io.supertokens.storage.sql.domainobject.session.SessionInfoDO;
 import io.supertokens.storage.sql.hibernate.CustomQueryWrapper;
 import io.supertokens.storage.sql.hibernate.CustomSessionWrapper;
+import io.supertokens.storage.sql.hibernate.HashType;
 import io.supertokens.storage.sql.utils.Utils;
 
 import javax.annotation.Nullable;
 import javax.persistence.LockModeType;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import static io.supertokens.storage.sql.PreparedStatementValueSetter.NO_OP_SETTER;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.execute;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.update;
 import static java.lang.System.currentTimeMillis;
 
 public class SessionQueries {
 
+    // Used only if the session info table is partitioned. Each partition holds the sessions that expire in one 7 day
+    // window, and we keep partitions created for every window up to postgresql_session_info_max_session_lifetime_ms
+    // from now, so that new sessions have a partition to go to. Sessions that expire later than that go into the
+    // default partition, and are moved out of it (under lock) once their partition is created. Lookups by
+    // session_handle have to check every partition, which is why we don't make the partitions any smaller.
+    private static final long SESSION_INFO_PARTITION_WIDTH = 7L * 24 * 60 * 60 * 1000;
+
+    // Key for pg_advisory_xact_lock, so that two cores don't try to create or drop the same partition
+    private static final long SESSION_INFO_PARTITIONS_LOCK_KEY = 7_318_446_209_371_403L;
+
+    // https://www.postgresql.org/docs/current/errcodes-appendix.html
+    private static final String SERIALIZATION_FAILURE = "40001";
+
     public static String getQueryToCreateSessionInfoTable(Start start) {
         String schema = Config.getConfig(start).getTableSchema();
         String sessionInfoTable = Config.getConfig(start).getSessionInfoTable();
+        String hashType = Config.getConfig(start).getHashColumnType("VARCHAR(128)");
+        if (Config.getConfig(start).isSessionInfoPartitioned()) {
+            // the partition key has to be a part of the primary key. session_handle is still unique, since it's
+            // generated by the core.
+            // @formatter:off
+            return "CREATE TABLE IF NOT EXISTS " + sessionInfoTable + " ("
+                    + "session_handle VARCHAR(255) NOT NULL,"
+                    + "user_id VARCHAR(128) NOT NULL,"
+                    + "refresh_token_hash_2 " + hashType + " NOT NULL,"
+                    + "session_data TEXT,"
+                    + "expires_at BIGINT NOT NULL,"
+                    + "created_at_time BIGINT NOT NULL,"
+                    + "jwt_user_payload TEXT,"
+                    + "CONSTRAINT " + Utils.getConstraintName(schema, sessionInfoTable, null, "pkey") +
+                    " PRIMARY KEY(session_handle, expires_at)" + " ) PARTITION BY RANGE (expires_at);"
+                    + "CREATE TABLE IF NOT EXISTS " + sessionInfoTable + "_default PARTITION OF " + sessionInfoTable
+                    + " DEFAULT;";
+            // @formatter:on
+        }
         // @formatter:off
         return "CREATE TABLE IF NOT EXISTS " + sessionInfoTable + " ("
                 + "session_handle VARCHAR(255) NOT NULL,"
                 + "user_id VARCHAR(128) NOT NULL,"
-                + "refresh_token_hash_2 VARCHAR(128) NOT NULL,"
+                + "refresh_token_hash_2 " + hashType + " NOT NULL,"
                 + "session_data TEXT,"
                 + "expires_at BIGINT NOT NULL,"
                 + "created_at_time BIGINT NOT NULL,"
@@ -57,6 +100,233 @@ public class SessionQueries {
 
     }
 
+    public static boolean isSessionInfoTablePartitioned(Start start) throws SQLException, StorageQueryException {
+        String QUERY = "SELECT relkind FROM pg_class WHERE oid = to_regclass(?)";
+        return execute(start, QUERY, pst -> pst.setString(1, Config.getConfig(start).getSessionInfoTable()),
+                result -> result.next() && "p".equals(result.getString("relkind")));
+    }
+
+    /**
+     * Drops the partitions in which all sessions have expired, and creates the partitions for the upcoming
+     * windows. Does nothing if the session info table is not partitioned.
+     */
+    public static void maintainSessionInfoPartitions(Start start) throws SQLException, StorageQueryException {
+        if (!isSessionInfoTablePartitioned(start)) {
+            return;
+        }
+        String sessionInfoTable = Config.getConfig(start).getSessionInfoTable();
+        // partitions are named <session info table>_p<start of the window in millis>
+        String partitionPrefix = sessionInfoTable.substring(sessionInfoTable.lastIndexOf('.') + 1).toLowerCase()
+                + "_p";
+
+        // Detaching and attaching a partition lock the table until they are committed, so each partition is
+        // detached, dropped or created in a short transaction of its own, which checks again under the advisory lock
+        // that another core hasn't done it in the meantime.
+        Map<Long, Boolean> partitions = ConnectionPool.withSession(start,
+                (session, con) -> getSessionInfoPartitions(con, sessionInfoTable, partitionPrefix), false);
+
+        long now = currentTimeMillis();
+        for (Map.Entry<Long, Boolean> partition : partitions.entrySet()) {
+            long partitionStart = partition.getKey();
+            if (partition.getValue() && partitionStart + SESSION_INFO_PARTITION_WIDTH <= now) {
+                detachSessionInfoPartition(start, sessionInfoTable, sessionInfoTable + "_p" + partitionStart);
+            }
+        }
+        // Nothing can be written to a detached partition, so once the detach is committed its count is exact. Those
+        // that were not attached to begin with were detached by a core that stopped before it could drop them.
+        for (Map.Entry<Long, Boolean> partition : partitions.entrySet()) {
+            long partitionStart = partition.getKey();
+            if (!partition.getValue() || partitionStart + SESSION_INFO_PARTITION_WIDTH <= now) {
+                dropDetachedSessionInfoPartition(start, sessionInfoTable + "_p" + partitionStart);
+            }
+        }
+
+        long currentPartitionStart = now - (now % SESSION_INFO_PARTITION_WIDTH);
+        long partitionsAhead = getSessionInfoPartitionsAhead(start);
+        for (int i = 0; i <= partitionsAhead; i++) {
+            long partitionStart = currentPartitionStart + i * SESSION_INFO_PARTITION_WIDTH;
+            if (!partitions.containsKey(partitionStart)) {
+                createSessionInfoPartition(start, sessionInfoTable, partitionStart,
+                        partitionStart + SESSION_INFO_PARTITION_WIDTH);
+            }
+        }
+        // new partitions may not have the trigger of the table in the same state
+        updateSessionNotifications(start);
+    }
+
+    // start of the window of each partition of the session info table, and whether it is still attached to the table
+    private static Map<Long, Boolean> getSessionInfoPartitions(Connection con, String sessionInfoTable,
+            String partitionPrefix) throws SQLException, StorageQueryException {
+        String QUERY = "SELECT relname, relispartition FROM pg_class WHERE relkind = 'r' AND relname LIKE ?"
+                + " AND relnamespace = (SELECT relnamespace FROM pg_class WHERE oid = to_regclass(?))";
+        return execute(con, QUERY, pst -> {
+            pst.setString(1, partitionPrefix + "%");
+            pst.setString(2, sessionInfoTable);
+        }, result -> {
+            Map<Long, Boolean> partitions = new HashMap<>();
+            while (result.next()) {
+                // LIKE also takes the underscores of the prefix as wildcards
+                String name = result.getString("relname");
+                if (name.startsWith(partitionPrefix) && name.substring(partitionPrefix.length()).matches("[0-9]+")) {
+                    partitions.put(Long.parseLong(name.substring(partitionPrefix.length())),
+                            result.getBoolean("relispartition"));
+                }
+            }
+            return partitions;
+        });
+    }
+
+    private static void detachSessionInfoPartition(Start start, String sessionInfoTable, String partition)
+            throws SQLException, StorageQueryException {
+        ConnectionPool.withSession(start, (session, con) -> {
+            lockSessionInfoPartitions(con);
+            if (Boolean.TRUE.equals(isSessionInfoPartitionAttached(con, partition))) {
+                update(con, "ALTER TABLE " + sessionInfoTable + " DETACH PARTITION " + partition, NO_OP_SETTER);
+            }
+            return null;
+        }, true);
+    }
+
+    private static void dropDetachedSessionInfoPartition(Start start, String partition)
+            throws SQLException, StorageQueryException {
+        ConnectionPool.withSession(start, (session, con) -> {
+            lockSessionInfoPartitions(con);
+            // another core may have dropped it in the meantime
+            if (!Boolean.FALSE.equals(isSessionInfoPartitionAttached(con, partition))) {
+                return null;
+            }
+            // dropping the partition doesn't fire the delete trigger, so we adjust the counter ourselves
+            long count = execute(con, "SELECT COUNT(*) AS num FROM " + partition, NO_OP_SETTER, result -> {
+                result.next();
+                return result.getLong("num");
+            });
+            CounterQueries.addToCounter(start, con, CounterQueries.SESSIONS_COUNTER, -count);
+            update(con, "DROP TABLE " + partition, NO_OP_SETTER);
+            return null;
+        }, true);
+    }
+
+    // enough windows after the current one to hold a session that is created now with the longest lifetime
+    static long getSessionInfoPartitionsAhead(Start start) {
+        long lifetime = Config.getConfig(start).getSessionInfoMaxSessionLifetimeMs();
+        return (lifetime + SESSION_INFO_PARTITION_WIDTH - 1) / SESSION_INFO_PARTITION_WIDTH;
+    }
+
+    private static void createSessionInfoPartition(Start start, String sessionInfoTable, long from, long to)
+            throws SQLException, StorageQueryException {
+        String partition = sessionInfoTable + "_p" + from;
+        String defaultPartition = sessionInfoTable + "_default";
+        String range = " WHERE expires_at >= " + from + " AND expires_at < " + to;
+        ConnectionPool.withSession(start, (session, con) -> {
+            lockSessionInfoPartitions(con);
+            if (isSessionInfoPartitionAttached(con, partition) != null) {
+                return null;
+            }
+            // attaching a partition fails if the default partition has rows that belong to it, so we move those
+            // first. The matching indexes are created by postgres when the partition is attached.
+            update(con, "CREATE TABLE " + partition + " (LIKE " + sessionInfoTable + " INCLUDING DEFAULTS)",
+                    NO_OP_SETTER);
+            // The advisory lock doesn't keep sessions from being written. This lock does, for the default partition
+            // only (which attaching locks anyway), so that no session is created or refreshed into the range while
+            // we move it, and moving in one statement means that a row is never deleted without being copied.
+            update(con, "LOCK TABLE " + defaultPartition + " IN SHARE ROW EXCLUSIVE MODE", NO_OP_SETTER);
+            update(con, "WITH moved AS (DELETE FROM " + defaultPartition + range + " RETURNING *) INSERT INTO "
+                    + partition + " SELECT * FROM moved", NO_OP_SETTER);
+            update(con, "ALTER TABLE " + sessionInfoTable + " ATTACH PARTITION " + partition + " FOR VALUES FROM ("
+                    + from + ") TO (" + to + ")", NO_OP_SETTER);
+            return null;
+        }, true);
+    }
+
+    // held until the end of the transaction
+    private static void lockSessionInfoPartitions(Connection con) throws SQLException, StorageQueryException {
+        execute(con, "SELECT pg_advisory_xact_lock(?)", pst -> pst.setLong(1, SESSION_INFO_PARTITIONS_LOCK_KEY),
+                result -> null);
+    }
+
+    // null if the partition doesn't exist
+    private static Boolean isSessionInfoPartitionAttached(Connection con, String partition)
+            throws SQLException, StorageQueryException {
+        return execute(con, "SELECT relispartition FROM pg_class WHERE oid = to_regclass(?)",
+                pst -> pst.setString(1, partition), result -> result.next() ? result.getBoolean("relispartition")
+                        : null);
+    }
+
+    // covers getAllNonExpiredSessionHandlesForUser (index only scan) and deleteSessionsOfUser
+    static String getQueryToCreateSessionInfoUserIdIndex(Start start, boolean concurrently) {
+        return "CREATE INDEX " + (concurrently ? "CONCURRENTLY IF NOT EXISTS " : "")
+                + "session_info_user_id_expires_at_index ON " + Config.getConfig(start).getSessionInfoTable()
+                + "(user_id, expires_at) INCLUDE (session_handle);";
+    }
+
+    static String getQueryToCreateSessionInfoExpiresAtIndex(Start start, boolean concurrently) {
+        return "CREATE INDEX " + (concurrently ? "CONCURRENTLY IF NOT EXISTS " : "")
+                + "session_info_expires_at_index ON " + Config.getConfig(start).getSessionInfoTable()
+                + "(expires_at);";
+    }
+
+    /**
+     * A trigger that NOTIFYs {@link SessionCache#CHANNEL} with the handle of every session that is updated or deleted,
+     * so that every core drops it from its cache once the change is committed. Sessions that have already expired are
+     * left out, so that deleting them in bulk doesn't send a notification for each.
+     * <p>
+     * It is created disabled, and only enabled by {@link #updateSessionNotifications} when the session cache is on:
+     * a transaction that has sent a notification takes a lock that is global to the database when it commits, which
+     * would serialise every refresh for nothing.
+     */
+    static String[] getQueriesToInstallSessionNotifications(Start start) {
+        String table = Config.getConfig(start).getSessionInfoTable();
+        String function = Config.getConfig(start).getSessionInfoNotifyFunction();
+        String triggerName = getSessionNotifyTriggerName(start);
+        // @formatter:off
+        return new String[]{
+                "CREATE OR REPLACE FUNCTION " + function + "() RETURNS TRIGGER AS $$ "
+                        + "BEGIN PERFORM pg_notify('" + SessionCache.CHANNEL + "', OLD.session_handle); RETURN NULL; "
+                        + "END; $$ LANGUAGE plpgsql",
+                "DROP TRIGGER IF EXISTS " + triggerName + " ON " + table + "; CREATE TRIGGER " + triggerName
+                        + " AFTER UPDATE OR DELETE ON " + table + " FOR EACH ROW"
+                        + " WHEN (OLD.expires_at >= EXTRACT(EPOCH FROM NOW()) * 1000)"
+                        + " EXECUTE PROCEDURE " + function + "()",
+                "ALTER TABLE " + table + " DISABLE TRIGGER " + triggerName
+        };
+        // @formatter:on
+    }
+
+    /**
+     * Enables the trigger of {@link #getQueriesToInstallSessionNotifications} if the session cache is on, and disables
+     * it otherwise. Every core that uses the database should have the same postgresql_session_cache_ttl_ms, or the
+     * last one to start decides. Does nothing if the trigger already is (on the table and on each of its partitions)
+     * as it should be, since changing it briefly blocks writes to the table.
+     */
+    public static void updateSessionNotifications(Start start) throws SQLException, StorageQueryException {
+        String table = Config.getConfig(start).getSessionInfoTable();
+        String triggerName = getSessionNotifyTriggerName(start);
+        boolean enabled = Config.getConfig(start).getSessionCacheTtlMs() > 0;
+        String QUERY = "SELECT COUNT(*) AS mismatched FROM pg_trigger WHERE tgname = ?"
+                + " AND (tgrelid = to_regclass(?) OR tgrelid IN"
+                + " (SELECT inhrelid FROM pg_inherits WHERE inhparent = to_regclass(?)))"
+                + " AND (tgenabled = 'D') = ?";
+        long mismatched = execute(start, QUERY, pst -> {
+            pst.setString(1, triggerName);
+            pst.setString(2, table);
+            pst.setString(3, table);
+            pst.setBoolean(4, enabled);
+        }, result -> {
+            result.next();
+            return result.getLong("mismatched");
+        });
+        if (mismatched > 0) {
+            // on a partitioned table, this also changes the trigger on each partition
+            update(start, "ALTER TABLE " + table + (enabled ? " ENABLE" : " DISABLE") + " TRIGGER " + triggerName,
+                    NO_OP_SETTER);
+        }
+    }
+
+    private static String getSessionNotifyTriggerName(Start start) {
+        String table = Config.getConfig(start).getSessionInfoTable();
+        return table.substring(table.lastIndexOf('.') + 1) + "_notify_trigger";
+    }
+
     static String getQueryToCreateAccessTokenSigningKeysTable(Start start) {
         String schema = Config.getConfig(start).getTableSchema();
         String accessTokenSigningKeysTable = Config.getConfig(start).getAccessTokenSigningKeysTable();
@@ -128,12 +398,65 @@ public class SessionQueries {
         q.executeUpdate();
     }
 
+    /**
+     * Rotates the refresh token of a session in one statement, if the session exists, hasn't expired, and still has
+     * the given refresh token. This is a compare-and-swap: of several concurrent refreshes with the same token, exactly
+     * one succeeds, and the others see that the token has already changed. So unlike getSessionInfo_Transaction
+     * followed by updateSessionInfo_Transaction, this needs neither a row lock held across round trips nor a
+     * SERIALIZABLE transaction (which fails and is retried under contention). A single statement is atomic on its
+     * own, so it runs without an explicit transaction, in one round trip.
+     * <p>
+     * When the table is partitioned, expires_at is the partition key, so the update can move the row to another
+     * partition. A concurrent refresh of the same session then can't follow the row, and fails with a serialization
+     * failure instead of seeing the new token. We don't retry that here, and return null as for any other refresh
+     * that lost the race.
+     *
+     * @return the session after the update, or null if nothing was updated. The caller should then go through the
+     * regular refresh, which tells an unknown or expired session apart from a reused refresh token.
+     */
+    @Nullable
+    public static SessionInfo refreshSession(Start start, String sessionHandle, String oldRefreshTokenHash2,
+            String newRefreshTokenHash2, long expiry) throws SQLException, StorageQueryException {
+        HashType hashType = new HashType(Config.getConfig(start).useBinaryHashes(), false);
+        String QUERY = "UPDATE " + Config.getConfig(start).getSessionInfoTable()
+                + " SET refresh_token_hash_2 = ?, expires_at = ?"
+                + " WHERE session_handle = ? AND refresh_token_hash_2 = ? AND expires_at >= ?"
+                + " RETURNING session_handle, user_id, session_data, jwt_user_payload, expires_at, created_at_time";
+        try {
+            return execute(start, QUERY, pst -> {
+                hashType.nullSafeSet(pst, newRefreshTokenHash2, 1, null);
+                pst.setLong(2, expiry);
+                pst.setString(3, sessionHandle);
+                hashType.nullSafeSet(pst, oldRefreshTokenHash2, 4, null);
+                pst.setLong(5, currentTimeMillis());
+            }, result -> {
+                if (!result.next()) {
+                    return null;
+                }
+                JsonParser jsonParser = new JsonParser();
+                return new SessionInfo(result.getString("session_handle"), result.getString("user_id"),
+                        newRefreshTokenHash2, jsonParser.parse(result.getString("session_data")).getAsJsonObject(),
+                        result.getLong("expires_at"),
+                        jsonParser.parse(result.getString("jwt_user_payload")).getAsJsonObject(),
+                        result.getLong("created_at_time"));
+            });
+        } catch (SQLException e) {
+            // "tuple to be locked was already moved to another partition due to concurrent update"
+            if (SERIALIZATION_FAILURE.equals(e.getSQLState())) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
     public static int getNumberOfSessions(Start start) throws SQLException, StorageQueryException {
-        return ConnectionPool.withSession(start, (session, con) -> {
-            CustomQueryWrapper<Long> q = session.createQuery("SELECT COUNT(*) as num FROM SessionInfoDO", Long.class);
-            List<Long> result = q.list();
-            return result.get(0).intValue();
-        }, false);
+        long count;
+        if (Config.getConfig(start).useApproximateCounts()) {
+            count = CounterQueries.getApproximateRowCount(start, Config.getConfig(start).getSessionInfoTable());
+        } else {
+            count = CounterQueries.getCount(start, CounterQueries.SESSIONS_COUNTER);
+        }
+        return (int) count;
     }
 
     public static int deleteSession(Start start, String[] sessionHandles) throws SQLException, StorageQueryException {
@@ -143,10 +466,13 @@ public class SessionQueries {
 
         return ConnectionPool.withSession(start, (session, con) -> {
             String QUERY = "DELETE FROM SessionInfoDO entity where entity.session_handle in (:session_handles)";
-            final CustomQueryWrapper query = session.createQuery(QUERY);
-            query.setParameterList("session_handles", sessionHandles);
-
-            return query.executeUpdate();
+            int deleted = 0;
+            for (List<String> chunk : Utils.getInListChunks(Arrays.asList(sessionHandles))) {
+                final CustomQueryWrapper query = session.createQuery(QUERY);
+                query.setParameterList("session_handles", chunk);
+                deleted += query.executeUpdate();
+            }
+            return deleted;
         }, true);
     }
 
@@ -174,12 +500,13 @@ public class SessionQueries {
     }
 
     public static void deleteAllExpiredSessions(Start start) throws SQLException, StorageQueryException {
-        ConnectionPool.withSession(start, (session, con) -> {
-            CustomQueryWrapper q = session
-                    .createQuery("DELETE  FROM SessionInfoDO entity WHERE entity.expires_at <= :expires_at");
-            q.setParameter("expires_at", currentTimeMillis()).executeUpdate();
-            return null;
-        }, true);
+        if (Config.getConfig(start).isSessionInfoPartitioned()) {
+            // dropping the partitions that have fully expired is much cheaper than deleting their rows. The DELETE
+            // below then only has to go through the current and the default partition.
+            maintainSessionInfoPartitions(start);
+        }
+        BatchedDeleteQueries.deleteInBatches(start, Config.getConfig(start).getSessionInfoTable(), "session_handle",
+                "expires_at <= ?", currentTimeMillis());
     }
 
     public static int updateSession(Start start, String sessionHandle, @Nullable JsonObject sessionData,
@@ -263,14 +590,8 @@ public class SessionQueries {
 
     public static void removeAccessTokenSigningKeysBefore(Start start, long time)
             throws SQLException, StorageQueryException {
-        ConnectionPool.withSession(start, ((session, con) -> {
-            String QUERY = "DELETE FROM SessionAccessTokenSigningKeysDO entity "
-                    + "WHERE entity.created_at_time < :created_at_time";
-
-            final CustomQueryWrapper query = session.createQuery(QUERY);
-            query.setParameter("created_at_time", time).executeUpdate();
-            return null;
-        }), true);
+        BatchedDeleteQueries.deleteInBatches(start, Config.getConfig(start).getAccessTokenSigningKeysTable(),
+                "created_at_time", "created_at_time < ?", time);
     }
 
 }
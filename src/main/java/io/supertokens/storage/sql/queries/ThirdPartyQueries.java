@@ -37,6 +37,7 @@ import java.util.Collections;
 import java.util.List;
 
 import static io.supertokens.pluginInterface.RECIPE_ID.THIRD_PARTY;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.execute;
 
 public class ThirdPartyQueries {
 
@@ -47,7 +48,7 @@ public class ThirdPartyQueries {
         return "CREATE TABLE IF NOT EXISTS " + thirdPartyUsersTable + " ("
                 + "third_party_id VARCHAR(28) NOT NULL,"
                 + "third_party_user_id VARCHAR(256) NOT NULL,"
-                + "user_id CHAR(36) NOT NULL CONSTRAINT " +
+                + "user_id " + Config.getConfig(start).getUserIdColumnType() + " NOT NULL CONSTRAINT " +
                 Utils.getConstraintName(schema, thirdPartyUsersTable, "user_id", "key") + " UNIQUE,"
                 + "email VARCHAR(256) NOT NULL,"
                 + "time_joined BIGINT NOT NULL,"
@@ -56,6 +57,11 @@ public class ThirdPartyQueries {
         // @formatter:on
     }
 
+    static String getQueryToCreateThirdPartyUserEmailIndex(Start start, boolean concurrently) {
+        return "CREATE INDEX " + (concurrently ? "CONCURRENTLY IF NOT EXISTS " : "")
+                + "thirdparty_users_email_index ON " + Config.getConfig(start).getThirdPartyUsersTable() + "(email);";
+    }
+
     public static void signUp(Start start, io.supertokens.pluginInterface.thirdparty.UserInfo userInfo)
             throws StorageQueryException, StorageTransactionLogicException, SQLException {
         ConnectionPool.withSession(start, (session, con) -> {
@@ -109,9 +115,12 @@ public class ThirdPartyQueries {
         if (ids.size() > 0) {
             return ConnectionPool.withSession(start, (session, con) -> {
                 String QUERY = "SELECT entity FROM ThirdPartyUsersDO entity WHERE entity.user_id IN (:useridlist)";
-                CustomQueryWrapper<ThirdPartyUsersDO> q = session.createQuery(QUERY, ThirdPartyUsersDO.class);
-                q.setParameterList("useridlist", ids);
-                List<ThirdPartyUsersDO> result = q.list();
+                List<ThirdPartyUsersDO> result = new ArrayList<>();
+                for (List<String> chunk : Utils.getInListChunks(ids)) {
+                    CustomQueryWrapper<ThirdPartyUsersDO> q = session.createQuery(QUERY, ThirdPartyUsersDO.class);
+                    q.setParameterList("useridlist", chunk);
+                    result.addAll(q.list());
+                }
                 List<UserInfo> finalResult = new ArrayList<>();
                 for (ThirdPartyUsersDO user : result) {
                     finalResult.add(new UserInfo(user.getUser_id(), user.getEmail(),
@@ -191,37 +200,31 @@ public class ThirdPartyQueries {
     @Deprecated
     public static UserInfo[] getThirdPartyUsers(Start start, @NotNull String userId, @NotNull Long timeJoined,
             @NotNull Integer limit, @NotNull String timeJoinedOrder) throws SQLException, StorageQueryException {
-        return ConnectionPool.withSession(start, (session, con) -> {
-            String timeJoinedOrderSymbol = timeJoinedOrder.equals("ASC") ? ">" : "<";
-            String QUERY = "SELECT entity FROM ThirdPartyUsersDO entity WHERE entity.time_joined "
-                    + timeJoinedOrderSymbol
-                    + " :tj1 OR (entity.time_joined = :tj2 AND entity.user_id <= :userid) ORDER BY entity"
-                    + ".time_joined " + timeJoinedOrder + ", user_id DESC";
-            CustomQueryWrapper<ThirdPartyUsersDO> q = session.createQuery(QUERY, ThirdPartyUsersDO.class);
-            q.setMaxResults(limit);
-            q.setParameter("tj1", timeJoined);
-            q.setParameter("tj2", timeJoined);
-            q.setParameter("userid", userId);
-            List<ThirdPartyUsersDO> result = q.list();
-            UserInfo[] finalResult = new UserInfo[result.size()];
-            for (int i = 0; i < result.size(); i++) {
-                ThirdPartyUsersDO curr = result.get(i);
-                finalResult[i] = new UserInfo(curr.getUser_id(), curr.getEmail(),
-                        new UserInfo.ThirdParty(curr.getPk().getThird_party_id(),
-                                curr.getPk().getThird_party_user_id()),
-                        curr.getTime_joined());
+        String QUERY = "SELECT user_id, email, third_party_id, third_party_user_id, time_joined FROM "
+                + Config.getConfig(start).getThirdPartyUsersTable() + " WHERE "
+                + GeneralQueries.getPaginationCondition(timeJoinedOrder) + " ORDER BY time_joined " + timeJoinedOrder
+                + ", user_id DESC LIMIT ?";
+        return execute(start, QUERY, pst -> {
+            int index = GeneralQueries.setPaginationParameters(start, pst, 1, timeJoinedOrder, timeJoined, userId);
+            pst.setInt(index, limit);
+        }, result -> {
+            List<UserInfo> finalResult = new ArrayList<>();
+            while (result.next()) {
+                finalResult.add(new UserInfo(result.getString("user_id"), result.getString("email"),
+                        new UserInfo.ThirdParty(result.getString("third_party_id"),
+                                result.getString("third_party_user_id")),
+                        result.getLong("time_joined")));
             }
-            return finalResult;
-        }, false);
+            return finalResult.toArray(new UserInfo[0]);
+        });
     }
 
     @Deprecated
     public static long getUsersCount(Start start) throws SQLException, StorageQueryException {
-        return ConnectionPool.withSession(start, (session, con) -> {
-            CustomQueryWrapper<Long> q = session.createQuery("SELECT COUNT(*) FROM ThirdPartyUsersDO ", Long.class);
-            List<Long> result = q.list();
-            return result.get(0);
-        }, false);
+        if (Config.getConfig(start).useApproximateCounts()) {
+            return CounterQueries.getApproximateRowCount(start, Config.getConfig(start).getThirdPartyUsersTable());
+        }
+        return CounterQueries.getCount(start, CounterQueries.getUsersCounter(THIRD_PARTY));
     }
 
     public static UserInfo[] getThirdPartyUsersByEmail(Start start, @NotNull String email)
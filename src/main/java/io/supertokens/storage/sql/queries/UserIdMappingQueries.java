@@ -20,6 +20,7 @@ import io.supertokens.pluginInterface.exceptions.StorageQueryException;
 import io.supertokens.pluginInterface.useridmapping.UserIdMapping;
 import io.supertokens.storage.sql.ConnectionPool;
 import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.UserIdMappingFilter;
 import io.supertokens.storage.sql.config.Config;
 import io.supertokens.storage.sql.domainobject.general.AllAuthRecipeUsersDO;
 import io.supertokens.storage.sql.domainobject.useridmapping.UserIdMappingDO;
@@ -32,6 +33,11 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.function.BiConsumer;
+
+import static io.supertokens.storage.sql.PreparedStatementValueSetter.NO_OP_SETTER;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.execute;
+import static io.supertokens.storage.sql.config.Config.getConfig;
 
 public class UserIdMappingQueries {
 
@@ -41,7 +47,7 @@ public class UserIdMappingQueries {
         // @formatter:off
 
         return "CREATE TABLE IF NOT EXISTS " + userIdMappingTable + " ("
-                + "supertokens_user_id CHAR(36) NOT NULL "
+                + "supertokens_user_id " + Config.getConfig(start).getUserIdColumnType() + " NOT NULL "
                 + "CONSTRAINT " + Utils.getConstraintName(schema, userIdMappingTable, "supertokens_user_id", "key") + " UNIQUE,"
                 + "external_user_id VARCHAR(128) NOT NULL"
                 + " CONSTRAINT " + Utils.getConstraintName(schema, userIdMappingTable, "external_user_id", "key") + " UNIQUE,"
@@ -55,6 +61,55 @@ public class UserIdMappingQueries {
         // @formatter:on
     }
 
+    /**
+     * A trigger that NOTIFYs {@link UserIdMappingFilter#CHANNEL} with both user IDs of every new mapping (as a JSON
+     * array), so that every core adds them to its filter. Removed mappings are not sent, the filters are rebuilt
+     * from time to time instead.
+     */
+    static String[] getQueriesToInstallUserIdMappingNotifications(Start start) {
+        String table = getConfig(start).getUserIdMappingTable();
+        String function = getConfig(start).getUserIdMappingNotifyFunction();
+        String triggerName = table.substring(table.lastIndexOf('.') + 1) + "_notify_trigger";
+        // @formatter:off
+        return new String[]{
+                "CREATE OR REPLACE FUNCTION " + function + "() RETURNS TRIGGER AS $$ "
+                        + "BEGIN "
+                        + "PERFORM pg_notify('" + UserIdMappingFilter.CHANNEL + "', json_build_array("
+                        + "RTRIM(NEW.supertokens_user_id::TEXT), NEW.external_user_id)::TEXT); "
+                        + "RETURN NULL; "
+                        + "END; $$ LANGUAGE plpgsql",
+                "DROP TRIGGER IF EXISTS " + triggerName + " ON " + table + "; CREATE TRIGGER " + triggerName
+                        + " AFTER INSERT ON " + table + " FOR EACH ROW EXECUTE PROCEDURE " + function + "()"
+        };
+        // @formatter:on
+    }
+
+    public static long getUserIdMappingCount(Start start) throws SQLException, StorageQueryException {
+        String QUERY = "SELECT COUNT(*) AS total FROM " + getConfig(start).getUserIdMappingTable();
+        return execute(start, QUERY, NO_OP_SETTER, result -> {
+            result.next();
+            return result.getLong("total");
+        });
+    }
+
+    /**
+     * Calls consumer with both user IDs of every mapping. The rows are fetched a few thousand at a time, which
+     * postgres only does inside a transaction.
+     */
+    public static void forEachUserIdMapping(Start start, BiConsumer<String, String> consumer)
+            throws SQLException, StorageQueryException {
+        String QUERY = "SELECT RTRIM(supertokens_user_id::TEXT) AS supertokens_user_id, external_user_id FROM "
+                + getConfig(start).getUserIdMappingTable();
+        ConnectionPool.withSession(start, (session, con) -> execute(con, QUERY, pst -> pst.setFetchSize(10000),
+                result -> {
+                    while (result.next()) {
+                        consumer.accept(result.getString("supertokens_user_id"),
+                                result.getString("external_user_id"));
+                    }
+                    return null;
+                }), true);
+    }
+
     public static void createUserIdMapping(Start start, String superTokensUserId, String externalUserId,
             String externalUserIdInfo) throws SQLException, StorageQueryException {
         ConnectionPool.withSession(start, (session, con) -> {
@@ -109,9 +164,13 @@ public class UserIdMappingQueries {
     public static UserIdMapping[] getUserIdMappingWithSuperTokensUserIdOrExternalUserId(Start start, String userId)
             throws SQLException, StorageQueryException {
         return ConnectionPool.withSession(start, (session, con) -> {
-            String QUERY = "SELECT entity FROM UserIdMappingDO entity WHERE entity.pk.user.user_id = :userId OR entity.pk.external_user_id = :userId";
+            // two separate parameters, since the SuperTokens user ID column may be a UUID while the external one is
+            // always text
+            String QUERY = "SELECT entity FROM UserIdMappingDO entity WHERE entity.pk.user.user_id = :superTokensUserId"
+                    + " OR entity.pk.external_user_id = :externalUserId";
             CustomQueryWrapper<UserIdMappingDO> q = session.createQuery(QUERY, UserIdMappingDO.class);
-            q.setParameter("userId", userId);
+            q.setParameter("superTokensUserId", userId);
+            q.setParameter("externalUserId", userId);
             List<UserIdMappingDO> result = q.list();
             UserIdMapping[] userIdMapping = new UserIdMapping[result.size()];
 
@@ -133,23 +192,15 @@ public class UserIdMappingQueries {
         }
 
         List<UserIdMappingDO> mappingsFromQuery = ConnectionPool.withSession(start, (session, con) -> {
-            CustomQueryWrapper<UserIdMappingDO> q;
-            StringBuilder userIdCondition = new StringBuilder();
-
-            userIdCondition.append("entity.pk.user.user_id IN (:user_ids)");
+            String QUERY = "SELECT entity FROM UserIdMappingDO entity WHERE entity.pk.user.user_id IN (:user_ids)";
 
-            String userIdConditionAsString = userIdCondition.toString();
-
-            String QUERY = "SELECT entity FROM UserIdMappingDO entity WHERE " + userIdConditionAsString;
-
-            String[] userIdsToIncludeStr = new String[userIds.size()];
-            for (int i = 0; i < userIds.size(); i++) {
-                userIdsToIncludeStr[i] = userIds.get(i).toString();
+            List<UserIdMappingDO> mappings = new ArrayList<>();
+            for (List<String> chunk : Utils.getInListChunks(userIds)) {
+                CustomQueryWrapper<UserIdMappingDO> q = session.createQuery(QUERY, UserIdMappingDO.class);
+                q.setParameterList("user_ids", chunk);
+                mappings.addAll(q.list());
             }
-
-            q = session.createQuery(QUERY, UserIdMappingDO.class);
-            q.setParameterList("user_ids", userIdsToIncludeStr);
-            return q.list();
+            return mappings;
         }, false);
 
         HashMap<String, String> userIdMappings = new HashMap<>();
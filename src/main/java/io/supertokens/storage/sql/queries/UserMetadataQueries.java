@@ -16,6 +16,7 @@
 
 package io.supertokens.storage.sql.queries;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import io.supertokens.pluginInterface.exceptions.StorageQueryException;
@@ -28,8 +29,12 @@ import io.supertokens.storage.sql.utils.Utils;
 import org.hibernate.LockMode;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
+import static io.supertokens.storage.sql.QueryExecutorTemplate.execute;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.update;
 import static io.supertokens.storage.sql.config.Config.getConfig;
 
 public class UserMetadataQueries {
@@ -40,7 +45,7 @@ public class UserMetadataQueries {
         // @formatter:off
         return "CREATE TABLE IF NOT EXISTS " + tableName + " ("
                 + "user_id VARCHAR(128) NOT NULL,"
-                + "user_metadata TEXT NOT NULL,"
+                + "user_metadata " + getConfig(start).getUserMetadataColumnType() + " NOT NULL,"
                 + "CONSTRAINT " + Utils.getConstraintName(schema, tableName, null, "pkey") + " PRIMARY KEY(user_id)" +
                 " );";
         // @formatter:on
@@ -55,28 +60,18 @@ public class UserMetadataQueries {
         }, true);
     }
 
-    public static int setUserMetadata_Transaction(CustomSessionWrapper session, String userId, JsonObject metadata)
-            throws SQLException {
-        // we want to do an "insert .. on conflict" style query here. There is no
-        // direct way of doing that, we so first get it, and then we save or update.
-        // We do not apply a pessimistic write lock here because if this function
-        // is called twice in a row with the same key, then it will throw an error.
-        // Also we do not call saveOrUpdate since that does an extra select query in case
-        // we are inserting a new value.
-        final UserMetadataDO existingEntity = session.get(UserMetadataDO.class, userId);
-        if (existingEntity == null) {
-            final UserMetadataDO toInsert = new UserMetadataDO(userId, metadata.toString());
-            session.save(UserMetadataDO.class, userId, toInsert);
-        } else {
-            existingEntity.setUser_metadata(metadata.toString());
-            session.update(UserMetadataDO.class, userId, existingEntity);
-        }
-
-        // sql-plugin todo: should we return a default value?
-        // this is essentially not needed upstream too
-        // in ideal case we should go ahead and modify the plugin interface itself
-        // default value is 1 because we are modifying by primary key
-        return 1;
+    public static int setUserMetadata_Transaction(Start start, CustomSessionWrapper session, String userId,
+            JsonObject metadata) throws SQLException, StorageQueryException {
+        // hibernate has no "insert .. on conflict", so this goes around it (see GeneralQueries.setKeyValue_Transaction)
+        String QUERY = "INSERT INTO " + getConfig(start).getUserMetadataTable() + "(user_id, user_metadata)"
+                + " VALUES(?, ?::" + getConfig(start).getUserMetadataColumnType() + ")"
+                + " ON CONFLICT (user_id) DO UPDATE SET user_metadata = EXCLUDED.user_metadata";
+        int rowsUpdated = update(session.getConnectionForNativeWrite(), QUERY, pst -> {
+            pst.setString(1, userId);
+            pst.setString(2, metadata.toString());
+        });
+        session.written(UserMetadataDO.class, userId, new UserMetadataDO(userId, metadata.toString()));
+        return rowsUpdated;
     }
 
     public static JsonObject getUserMetadata_Transaction(CustomSessionWrapper session, String userId)
@@ -105,4 +100,89 @@ public class UserMetadataQueries {
             return jp.parse(result.get(0).getUser_metadata()).getAsJsonObject();
         }, true);
     }
-}
\ No newline at end of file
+
+    /**
+     * Applies a metadata update the way the core does: the top level keys of the update replace those in the stored
+     * metadata, and keys that are set to null in the update are removed. Returns the updated metadata.
+     * <p>
+     * With postgresql_jsonb_user_metadata, this is a single upsert that merges in SQL, so the document is neither
+     * read into the core nor locked across round trips. Otherwise it is the usual read, merge and write in one
+     * transaction.
+     */
+    public static JsonObject mergeUserMetadata(Start start, String userId, JsonObject update)
+            throws SQLException, StorageQueryException {
+        if (!getConfig(start).useJsonbUserMetadata()) {
+            return ConnectionPool.withSession(start, (session, con) -> {
+                JsonObject metadata = getUserMetadata_Transaction(session, userId);
+                if (metadata == null) {
+                    metadata = new JsonObject();
+                }
+                for (Map.Entry<String, JsonElement> entry : update.entrySet()) {
+                    if (entry.getValue().isJsonNull()) {
+                        metadata.remove(entry.getKey());
+                    } else {
+                        metadata.add(entry.getKey(), entry.getValue());
+                    }
+                }
+                setUserMetadata_Transaction(start, session, userId, metadata);
+                return metadata;
+            }, true);
+        }
+
+        JsonObject additions = new JsonObject();
+        List<String> removals = new ArrayList<>();
+        for (Map.Entry<String, JsonElement> entry : update.entrySet()) {
+            if (entry.getValue().isJsonNull()) {
+                removals.add(entry.getKey());
+            } else {
+                additions.add(entry.getKey(), entry.getValue());
+            }
+        }
+        String QUERY = "INSERT INTO " + getConfig(start).getUserMetadataTable() + " AS entity (user_id, user_metadata)"
+                + " VALUES (?, ?::jsonb) ON CONFLICT (user_id) DO UPDATE"
+                + " SET user_metadata = (entity.user_metadata - ?::text[]) || EXCLUDED.user_metadata"
+                + " RETURNING user_metadata";
+        return ConnectionPool.withSession(start, (session, con) -> execute(con, QUERY, pst -> {
+            pst.setString(1, userId);
+            pst.setString(2, additions.toString());
+            pst.setArray(3, con.createArrayOf("text", removals.toArray()));
+        }, result -> {
+            result.next();
+            return new JsonParser().parse(result.getString("user_metadata")).getAsJsonObject();
+        }), true);
+    }
+
+    /**
+     * Reads only the given top level keys of the metadata. Keys that aren't set are left out of the result. Returns
+     * null if the user has no metadata.
+     */
+    public static JsonObject getUserMetadataKeys(Start start, String userId, String[] keys)
+            throws SQLException, StorageQueryException {
+        if (!getConfig(start).useJsonbUserMetadata()) {
+            JsonObject metadata = getUserMetadata(start, userId);
+            if (metadata == null) {
+                return null;
+            }
+            JsonObject result = new JsonObject();
+            for (String key : keys) {
+                if (metadata.has(key)) {
+                    result.add(key, metadata.get(key));
+                }
+            }
+            return result;
+        }
+
+        String QUERY = "SELECT COALESCE((SELECT jsonb_object_agg(key, value) FROM jsonb_each(user_metadata)"
+                + " WHERE key = ANY(?)), '{}') AS user_metadata FROM " + getConfig(start).getUserMetadataTable()
+                + " WHERE user_id = ?";
+        return ConnectionPool.withSession(start, (session, con) -> execute(con, QUERY, pst -> {
+            pst.setArray(1, con.createArrayOf("text", keys));
+            pst.setString(2, userId);
+        }, result -> {
+            if (!result.next()) {
+                return null;
+            }
+            return new JsonParser().parse(result.getString("user_metadata")).getAsJsonObject();
+        }), false);
+    }
+}
@@ -26,7 +26,10 @@ import io.supertokens.storage.sql.utils.Utils;
 import org.hibernate.LockMode;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
+import static io.supertokens.storage.sql.QueryExecutorTemplate.update;
 import static io.supertokens.storage.sql.config.Config.getConfig;
 
 public class UserRolesQueries {
@@ -79,35 +82,72 @@ public class UserRolesQueries {
         // @formatter:on
     }
 
-    public static String getQueryToCreateUserRolesRoleIndex(Start start) {
-        return "CREATE INDEX user_roles_role_index ON " + getConfig(start).getUserRolesTable() + "(role);";
+    // includes user_id so that getUsersForRole can be answered from the index alone
+    public static String getQueryToCreateUserRolesRoleIndex(Start start, boolean concurrently) {
+        return "CREATE INDEX " + (concurrently ? "CONCURRENTLY IF NOT EXISTS " : "")
+                + "user_roles_role_user_id_index ON " + getConfig(start).getUserRolesTable()
+                + "(role) INCLUDE (user_id);";
     }
 
-    public static boolean createNewRoleOrDoNothingIfExists_Transaction(CustomSessionWrapper session, String role)
-            throws SQLException {
-
-        RolesDO toInsertOrUpdate = session.get(RolesDO.class, role);
-        if (toInsertOrUpdate == null) {
-            toInsertOrUpdate = new RolesDO(role);
-
-            session.save(RolesDO.class, role, toInsertOrUpdate);
-
-            return true;
+    /**
+     * Triggers that add one to the CounterQueries.USER_ROLES_VERSION counter after every statement that changes the
+     * roles, role permissions or user roles tables, including the rows that deleting a role cascades to. Statements
+     * that change nothing (like an ON CONFLICT DO NOTHING that found the row) don't count.
+     */
+    static String[] getQueriesToInstallVersionTriggers(Start start) {
+        String function = getConfig(start).getUserRolesVersionFunction();
+        String increment = CounterQueries.getQueryToIncrementCounter(start, CounterQueries.USER_ROLES_VERSION);
+        List<String> queries = new ArrayList<>();
+        // @formatter:off
+        queries.add("CREATE OR REPLACE FUNCTION " + function + "() RETURNS TRIGGER AS $$ "
+                + "BEGIN "
+                + "IF TG_OP = 'INSERT' THEN "
+                + "IF EXISTS (SELECT 1 FROM new_rows) THEN " + increment + " END IF; "
+                + "ELSIF EXISTS (SELECT 1 FROM old_rows) THEN " + increment + " "
+                + "END IF; "
+                + "RETURN NULL; "
+                + "END; $$ LANGUAGE plpgsql");
+        // @formatter:on
+        for (String table : new String[] { getConfig(start).getRolesTable(),
+                getConfig(start).getUserRolesPermissionsTable(), getConfig(start).getUserRolesTable() }) {
+            String tableName = table.substring(table.lastIndexOf('.') + 1);
+            queries.add("DROP TRIGGER IF EXISTS " + tableName + "_version_insert_trigger ON " + table
+                    + "; CREATE TRIGGER " + tableName + "_version_insert_trigger AFTER INSERT ON " + table
+                    + " REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE " + function + "()");
+            queries.add("DROP TRIGGER IF EXISTS " + tableName + "_version_delete_trigger ON " + table
+                    + "; CREATE TRIGGER " + tableName + "_version_delete_trigger AFTER DELETE ON " + table
+                    + " REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE " + function + "()");
         }
+        return queries.toArray(new String[0]);
+    }
 
-        return false;
+    /**
+     * Goes up whenever roles, their permissions or the roles of a user change.
+     */
+    public static long getVersion(Start start) throws SQLException, StorageQueryException {
+        return CounterQueries.getCount(start, CounterQueries.USER_ROLES_VERSION);
     }
 
-    public static void addPermissionToRoleOrDoNothingIfExists_Transaction(CustomSessionWrapper session, String role,
-            String permission) throws SQLException {
+    public static boolean createNewRoleOrDoNothingIfExists_Transaction(Start start, CustomSessionWrapper session,
+            String role) throws SQLException, StorageQueryException {
+        String QUERY = "INSERT INTO " + getConfig(start).getRolesTable() + "(role) VALUES(?) ON CONFLICT DO NOTHING";
+        int rowsInserted = update(session.getConnectionForNativeWrite(), QUERY, pst -> pst.setString(1, role));
+        session.written(RolesDO.class, role, new RolesDO(role));
+        return rowsInserted == 1;
+    }
 
-        final UserRolePermissionsPK pk = new UserRolePermissionsPK(new RolesDO(role), permission);
-        UserRolePermissionsDO toInsertOrUpdate = session.get(UserRolePermissionsDO.class, pk);
-        if (toInsertOrUpdate == null) {
-            toInsertOrUpdate = new UserRolePermissionsDO(pk);
-            session.save(UserRolePermissionsDO.class, pk, toInsertOrUpdate);
-            session.flush();
-        }
+    /**
+     * If the role doesn't exist, this throws the foreign key violation (a PSQLException) right away.
+     */
+    public static void addPermissionToRoleOrDoNothingIfExists_Transaction(Start start, CustomSessionWrapper session,
+            String role, String permission) throws SQLException, StorageQueryException {
+        String QUERY = "INSERT INTO " + getConfig(start).getUserRolesPermissionsTable()
+                + "(role, permission) VALUES(?, ?) ON CONFLICT DO NOTHING";
+        update(session.getConnectionForNativeWrite(), QUERY, pst -> {
+            pst.setString(1, role);
+            pst.setString(2, permission);
+        });
+        session.forget(UserRolePermissionsDO.class, new UserRolePermissionsPK(new RolesDO(role), permission));
     }
 
     public static boolean deleteRole(Start start, String role) throws SQLException, StorageQueryException {
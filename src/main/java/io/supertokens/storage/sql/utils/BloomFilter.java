@@ -0,0 +1,87 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of strings that can answer "definitely not in it", or "maybe in it" with a false positive rate of about
+ * 1% as long as it holds at most the capacity it was made for. Strings can't be removed. Safe to use from many
+ * threads.
+ */
+public class BloomFilter {
+
+    // ~1% false positives: -ln(0.01) / ln(2)^2 bits per string, and ln(2) * that many hashes
+    private static final double BITS_PER_STRING = 9.6;
+    private static final int HASHES = 7;
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+
+    public BloomFilter(long capacity) {
+        long words = Math.max(1, (long) Math.ceil(Math.max(capacity, 1) * BITS_PER_STRING / 64));
+        if (words > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Capacity too large: " + capacity);
+        }
+        this.bits = new AtomicLongArray((int) words);
+        this.bitCount = words * 64;
+    }
+
+    public void add(String value) {
+        long hash = hash(value);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = getBit(hash, i);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            do {
+                current = bits.get(word);
+            } while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask));
+        }
+    }
+
+    public boolean mightContain(String value) {
+        long hash = hash(value);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = getBit(hash, i);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the i-th bit of a string, from the two halves of its hash (Kirsch and Mitzenmacher)
+    private long getBit(long hash, int i) {
+        long combined = (hash >>> 32) + i * (hash & 0xffffffffL);
+        return Long.remainderUnsigned(combined, bitCount);
+    }
+
+    // 64 bit FNV-1a over the UTF-8 bytes, with a final mix so that both halves are usable
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
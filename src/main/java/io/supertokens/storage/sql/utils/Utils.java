@@ -19,8 +19,14 @@ package io.supertokens.storage.sql.utils;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Utils {
+    // Hibernate pads IN lists to the next power of two (see HibernateUtils), so a chunk of this size is never padded
+    // beyond it. This keeps the number of distinct query strings (and bind parameters per query) small.
+    public static final int MAX_IN_LIST_SIZE = 1024;
+
     public static String exceptionStacktraceToString(Exception e) {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         PrintStream ps = new PrintStream(baos);
@@ -46,4 +52,15 @@ public class Utils {
     public static boolean isExceptionCause(Class<? extends Throwable> expected, Throwable exc) {
         return expected.isInstance(exc) || (exc != null && isExceptionCause(expected, exc.getCause()));
     }
+
+    /**
+     * Splits values for an IN (:list) query into chunks of at most MAX_IN_LIST_SIZE, to be queried one by one.
+     */
+    public static <T> List<List<T>> getInListChunks(List<T> values) {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int from = 0; from < values.size(); from += MAX_IN_LIST_SIZE) {
+            chunks.add(values.subList(from, Math.min(values.size(), from + MAX_IN_LIST_SIZE)));
+        }
+        return chunks;
+    }
 }
@@ -0,0 +1,161 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.emailpassword.PasswordResetTokenInfo;
+import io.supertokens.pluginInterface.emailpassword.UserInfo;
+import io.supertokens.pluginInterface.emailverification.EmailVerificationTokenInfo;
+import io.supertokens.pluginInterface.passwordless.PasswordlessCode;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.config.Config;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.util.UUID;
+
+import static io.supertokens.storage.sql.PreparedStatementValueSetter.NO_OP_SETTER;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.execute;
+import static org.junit.Assert.*;
+
+public class BinaryHashTest {
+
+    // what the core generates: 32 bytes in base64, and a sha256 in hex
+    private static final String DEVICE_ID_HASH = "q0Vb1Yv7SZ0kQbPq3s0P8mJ2tBkIYx6e3x2lW0cN0hE=";
+    private static final String LINK_CODE_HASH = "ZmFrZUxpbmtDb2RlSGFzaEZvclRlc3RpbmdQdXJwb3M=";
+    private static final String SALT = "c2FsdHNhbHRzYWx0c2FsdHNhbHRzYWx0c2FsdHNhbHQ=";
+    private static final String TOKEN = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void binaryHashesWorkTransparently() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_binary_hashes", "true");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        assertEquals("bytea", getColumnType(start, Config.getConfig(start).getPasswordlessCodesTable(),
+                "link_code_hash"));
+        assertEquals("bytea", getColumnType(start, Config.getConfig(start).getSessionInfoTable(),
+                "refresh_token_hash_2"));
+
+        String userId = createRows(start);
+        assertRowsCanBeRead(start, userId);
+
+        // 32 decoded bytes and the tag byte, instead of 44 characters
+        assertEquals(33, (int) execute(start,
+                "SELECT octet_length(link_code_hash) FROM " + Config.getConfig(start).getPasswordlessCodesTable(),
+                NO_OP_SETTER, result -> result.next() ? result.getInt(1) : null));
+
+        // values that aren't in the form the core generates still round trip
+        start.createNewSession("other", userId, "NotHex", new JsonObject(), System.currentTimeMillis() + 10000,
+                new JsonObject(), System.currentTimeMillis());
+        assertEquals("NotHex", start.getSession("other").refreshTokenHash2);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void existingColumnsAreConvertedWhenEnabled() throws Exception {
+        String[] args = { "../" };
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        String userId = createRows(start);
+        start.createNewSession("other", userId, "NotHex", new JsonObject(), System.currentTimeMillis() + 10000,
+                new JsonObject(), System.currentTimeMillis());
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+        StorageLayer.close();
+
+        Utils.setValueInConfig("postgresql_binary_hashes", "true");
+        process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        assertEquals("bytea", getColumnType(start, Config.getConfig(start).getPasswordlessDevicesTable(),
+                "device_id_hash"));
+        assertEquals("bytea", getColumnType(start, Config.getConfig(start).getPasswordResetTokensTable(), "token"));
+        assertRowsCanBeRead(start, userId);
+        assertEquals("NotHex", start.getSession("other").refreshTokenHash2);
+
+        // the foreign key was put back, so deleting the device deletes its code
+        Start storage = start;
+        storage.startTransaction(con -> {
+            storage.deleteDevice_Transaction(con, DEVICE_ID_HASH);
+            storage.commitTransaction(con);
+            return null;
+        });
+        assertNull(start.getCodeByLinkCodeHash(LINK_CODE_HASH));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    private static String createRows(Start start) throws Exception {
+        UserInfo user = new UserInfo(UUID.randomUUID().toString(), "test@example.com", "hash", 1);
+        start.signUp(user);
+        long expiry = System.currentTimeMillis() + 10000;
+        start.addPasswordResetToken(new PasswordResetTokenInfo(user.id, TOKEN, expiry));
+        start.addEmailVerificationToken(new EmailVerificationTokenInfo(user.id, TOKEN, expiry, user.email));
+        start.createDeviceWithCode(user.email, null, SALT,
+                new PasswordlessCode(UUID.randomUUID().toString(), DEVICE_ID_HASH, LINK_CODE_HASH, 1L));
+        start.createNewSession("handle", user.id, TOKEN, new JsonObject(), expiry, new JsonObject(),
+                System.currentTimeMillis());
+        return user.id;
+    }
+
+    private static void assertRowsCanBeRead(Start start, String userId) throws Exception {
+        assertEquals(userId, start.getPasswordResetTokenInfo(TOKEN).userId);
+        assertEquals(userId, start.getEmailVerificationTokenInfo(TOKEN).userId);
+        assertEquals(SALT, start.getDevice(DEVICE_ID_HASH).linkCodeSalt);
+        assertEquals(DEVICE_ID_HASH, start.getCodeByLinkCodeHash(LINK_CODE_HASH).deviceIdHash);
+        assertEquals(TOKEN, start.getSession("handle").refreshTokenHash2);
+    }
+
+    private static String getColumnType(Start start, String table, String column) throws Exception {
+        String QUERY = "SELECT format_type(atttypid, atttypmod) FROM pg_attribute WHERE attrelid = to_regclass(?)"
+                + " AND attname = ?";
+        return execute(start, QUERY, pst -> {
+            pst.setString(1, table);
+            pst.setString(2, column);
+        }, result -> result.next() ? result.getString(1) : null);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.RECIPE_ID;
+import io.supertokens.pluginInterface.emailpassword.UserInfo;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.queries.BulkImportQueries.ImportStatus;
+import io.supertokens.storage.sql.queries.BulkImportQueries.ImportedUser;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BulkImportTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void importsUsersAndReportsDuplicatesPerRow() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        start.signUp(new UserInfo("existing", "existing@example.com", "hash", 1));
+
+        JsonObject metadata = new JsonObject();
+        metadata.addProperty("plan", "pro, \"annual\"");
+
+        List<ImportedUser> users = new ArrayList<>();
+        users.add(new ImportedUser(new UserInfo("ep1", "ep1@example.com", "hash1", 10), "external1", metadata));
+        users.add(new ImportedUser(new io.supertokens.pluginInterface.thirdparty.UserInfo("tp1", "tp1@example.com",
+                new io.supertokens.pluginInterface.thirdparty.UserInfo.ThirdParty("google", "g1"), 11), null, null));
+        users.add(new ImportedUser(
+                new io.supertokens.pluginInterface.passwordless.UserInfo("pl1", null, "+1234567890", 12), null,
+                null));
+        // an existing user ID, an existing email, and values that an earlier row of this import already has
+        users.add(new ImportedUser(new UserInfo("existing", "other@example.com", "hash", 13), null, null));
+        users.add(new ImportedUser(new UserInfo("ep2", "existing@example.com", "hash", 14), null, null));
+        users.add(new ImportedUser(new UserInfo("ep3", "ep1@example.com", "hash", 15), null, null));
+        users.add(new ImportedUser(new io.supertokens.pluginInterface.thirdparty.UserInfo("tp2", "tp2@example.com",
+                new io.supertokens.pluginInterface.thirdparty.UserInfo.ThirdParty("google", "g1"), 16), null, null));
+        users.add(new ImportedUser(
+                new io.supertokens.pluginInterface.passwordless.UserInfo("pl2", null, "+1234567890", 17), null,
+                null));
+        users.add(new ImportedUser(new UserInfo("ep4", "ep4@example.com", "hash", 18), "external1", null));
+
+        ImportStatus[] statuses = start.importUsers(users);
+        assertArrayEquals(new ImportStatus[] { ImportStatus.IMPORTED, ImportStatus.IMPORTED, ImportStatus.IMPORTED,
+                ImportStatus.DUPLICATE_USER_ID, ImportStatus.DUPLICATE_EMAIL, ImportStatus.DUPLICATE_EMAIL,
+                ImportStatus.DUPLICATE_THIRD_PARTY_USER, ImportStatus.DUPLICATE_PHONE_NUMBER,
+                ImportStatus.DUPLICATE_EXTERNAL_USER_ID }, statuses);
+
+        assertEquals("hash1", start.getUserInfoUsingId("ep1").passwordHash);
+        assertEquals("tp1", start.getThirdPartyUserInfoUsingId("google", "g1").id);
+        assertEquals("pl1", start.getUserByPhoneNumber("+1234567890").id);
+        assertNull(start.getUserInfoUsingId("ep4"));
+        assertEquals("ep1", start.getUserIdMapping("external1", false).superTokensUserId);
+        assertEquals(metadata, start.getUserMetadata("external1"));
+        assertEquals(4, start.getUsersCount(null));
+        assertEquals(2, start.getUsersCount(new RECIPE_ID[] { RECIPE_ID.EMAIL_PASSWORD }));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
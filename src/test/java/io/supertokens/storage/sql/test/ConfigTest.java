@@ -39,6 +39,7 @@ import java.io.File;
 import java.io.IOException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 
 public class ConfigTest {
@@ -107,6 +108,23 @@ public class ConfigTest {
 
     }
 
+    @Test
+    public void testThatInvalidExpiredRowsDeleteBatchSizeThrowsRightError() throws Exception {
+        String[] args = { "../" };
+
+        Utils.setValueInConfig("postgresql_expired_rows_delete_batch_size", "0");
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+
+        ProcessState.EventAndException e = process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.INIT_FAILURE);
+        assertNotNull(e);
+        TestCase.assertEquals(e.exception.getMessage(),
+                "'postgresql_expired_rows_delete_batch_size' in the config.yaml file must be > 0");
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+
+    }
+
     @Test
     public void testThatMissingConfigFileThrowsError() throws Exception {
         String[] args = { "../" };
@@ -524,6 +542,31 @@ public class ConfigTest {
                 "emailpassword_users");
         assertEquals("Config keyValue table does not match default", config.getPasswordResetTokensTable(),
                 "emailpassword_pswd_reset_tokens");
+        assertFalse("Config sessionInfoPartitioned does not match default", config.isSessionInfoPartitioned());
+        assertEquals("Config sessionInfoMaxSessionLifetimeMs does not match default",
+                config.getSessionInfoMaxSessionLifetimeMs(), 8640000000L);
+        assertFalse("Config approximateCounts does not match default", config.useApproximateCounts());
+        assertFalse("Config uuidUserIds does not match default", config.useUuidUserIds());
+        assertFalse("Config binaryHashes does not match default", config.useBinaryHashes());
+        assertFalse("Config jsonbUserMetadata does not match default", config.useJsonbUserMetadata());
+        assertEquals("Config expiredRowsDeleteBatchSize does not match default",
+                config.getExpiredRowsDeleteBatchSize(), 1000);
+        assertEquals("Config expiredRowsDeleteBatchPauseMs does not match default",
+                config.getExpiredRowsDeleteBatchPauseMs(), 100);
+        assertEquals("Config signingKeysCacheTtlMs does not match default", config.getSigningKeysCacheTtlMs(), 60000);
+        assertEquals("Config userRolesCacheSize does not match default", config.getUserRolesCacheSize(), 10000);
+        assertEquals("Config userRolesCacheVersionCheckIntervalMs does not match default",
+                config.getUserRolesCacheVersionCheckIntervalMs(), 1000);
+        assertEquals("Config userIdMappingFilterRebuildIntervalMs does not match default",
+                config.getUserIdMappingFilterRebuildIntervalMs(), 3600000);
+        assertEquals("Config sessionCacheTtlMs does not match default", config.getSessionCacheTtlMs(), 0);
+        assertEquals("Config sessionCacheSize does not match default", config.getSessionCacheSize(), 10000);
+        assertEquals("Config emailVerificationCacheSize does not match default",
+                config.getEmailVerificationCacheSize(), 10000);
+        assertEquals("Config emailVerificationCacheTtlMs does not match default",
+                config.getEmailVerificationCacheTtlMs(), 60000);
+        assertEquals("Config emailVerificationCacheNegativeTtlMs does not match default",
+                config.getEmailVerificationCacheNegativeTtlMs(), 5000);
     }
 
 }
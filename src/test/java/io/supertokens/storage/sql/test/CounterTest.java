@@ -0,0 +1,157 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.RECIPE_ID;
+import io.supertokens.pluginInterface.emailpassword.UserInfo;
+import io.supertokens.storage.sql.ConnectionPool;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.config.Config;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.util.UUID;
+
+import static io.supertokens.storage.sql.PreparedStatementValueSetter.NO_OP_SETTER;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.update;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class CounterTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void countersFollowInsertsAndDeletes() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        String[] userIds = new String[5];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = UUID.randomUUID().toString();
+            start.signUp(new UserInfo(userIds[i], "user" + i + "@example.com", "hash", System.currentTimeMillis()));
+        }
+        io.supertokens.pluginInterface.thirdparty.UserInfo thirdPartyUser =
+                new io.supertokens.pluginInterface.thirdparty.UserInfo(UUID.randomUUID().toString(), "tp@example.com",
+                        new io.supertokens.pluginInterface.thirdparty.UserInfo.ThirdParty("google", "tp"),
+                        System.currentTimeMillis());
+        start.signUp(thirdPartyUser);
+
+        for (int i = 0; i < 3; i++) {
+            start.createNewSession("handle" + i, userIds[0], "hash", new JsonObject(),
+                    System.currentTimeMillis() + 60 * 60 * 1000, new JsonObject(), System.currentTimeMillis());
+        }
+
+        assertEquals(6, start.getUsersCount(null));
+        assertEquals(5, start.getUsersCount(new RECIPE_ID[] { RECIPE_ID.EMAIL_PASSWORD }));
+        assertEquals(6, start.getUsersCount(new RECIPE_ID[] { RECIPE_ID.EMAIL_PASSWORD, RECIPE_ID.THIRD_PARTY }));
+        assertEquals(5, start.getUsersCount());
+        assertEquals(1, start.getThirdPartyUsersCount());
+        assertEquals(3, start.getNumberOfSessions());
+
+        start.deleteEmailPasswordUser(userIds[1]);
+        start.deleteThirdPartyUser(thirdPartyUser.id);
+        start.deleteSession(new String[] { "handle0", "handle1" });
+
+        assertEquals(4, start.getUsersCount(null));
+        assertEquals(0, start.getUsersCount(new RECIPE_ID[] { RECIPE_ID.THIRD_PARTY }));
+        assertEquals(4, start.getUsersCount());
+        assertEquals(1, start.getNumberOfSessions());
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void rowsFromBeforeTheCountersAreBackfilled() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+        String sessionInfoTable = Config.getConfig(start).getSessionInfoTable();
+
+        start.createNewSession("counted", "user", "hash", new JsonObject(), System.currentTimeMillis() + 60 * 60 * 1000,
+                new JsonObject(), System.currentTimeMillis());
+        // sessions that were there before the triggers
+        for (int i = 0; i < 3; i++) {
+            update(start, "ALTER TABLE " + sessionInfoTable + " DISABLE TRIGGER USER; INSERT INTO " + sessionInfoTable
+                    + "(session_handle, user_id, refresh_token_hash_2, session_data, expires_at, created_at_time,"
+                    + " jwt_user_payload) VALUES('uncounted" + i + "', 'user', 'hash', '{}', "
+                    + (System.currentTimeMillis() + 60 * 60 * 1000) + ", 0, '{}'); ALTER TABLE " + sessionInfoTable
+                    + " ENABLE TRIGGER USER", NO_OP_SETTER);
+        }
+        assertEquals(1, start.getNumberOfSessions());
+        // so that the migration that installs the counters runs again when the core restarts
+        update(start, "DELETE FROM " + Config.getConfig(start).getSchemaVersionsTable() + " WHERE version = 4",
+                NO_OP_SETTER);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+        StorageLayer.close();
+
+        process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        start = (Start) StorageLayer.getStorage(process.getProcess());
+        assertEquals(4, start.getNumberOfSessions());
+        start.deleteSession(new String[] { "uncounted0" });
+        assertEquals(3, start.getNumberOfSessions());
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void approximateCountsComeFromPlannerStatistics() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_approximate_counts", "true");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        String table = Config.getConfig(start).getUsersTable();
+        update(start, "INSERT INTO " + table + "(user_id, recipe_id, time_joined) SELECT md5(i::text)::uuid::text,"
+                + " 'emailpassword', i FROM generate_series(1, 1000) i", NO_OP_SETTER);
+        ConnectionPool.withSession(start, (session, con) -> update(con, "ANALYZE " + table, NO_OP_SETTER), false);
+
+        assertEquals(1000, start.getUsersCount(null));
+        // counts for specific recipes still come from the counters
+        assertEquals(1000, start.getUsersCount(new RECIPE_ID[] { RECIPE_ID.EMAIL_PASSWORD }));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
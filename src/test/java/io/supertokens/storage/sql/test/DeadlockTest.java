@@ -24,6 +24,8 @@ import io.supertokens.pluginInterface.Storage;
 import io.supertokens.pluginInterface.exceptions.StorageQueryException;
 import io.supertokens.pluginInterface.exceptions.StorageTransactionLogicException;
 import io.supertokens.pluginInterface.sqlStorage.SQLStorage;
+import io.supertokens.storage.sql.ConnectionPool;
+import io.supertokens.storage.sql.Start;
 import io.supertokens.storageLayer.StorageLayer;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -225,6 +227,36 @@ public class DeadlockTest {
         process.kill();
         assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
     }
+
+    @Test
+    public void nestedSessionsAreDetected() throws Exception {
+        String[] args = { "../" };
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        try {
+            ConnectionPool.withSession(start,
+                    (session, con) -> ConnectionPool.withSession(start, (innerSession, innerCon) -> null, false),
+                    false);
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+
+        // the thread doesn't hold a session anymore
+        ConnectionPool.withSession(start, (session, con) -> null, false);
+
+        // this used to get a second connection to read the user it was deleting
+        io.supertokens.pluginInterface.passwordless.UserInfo user =
+                new io.supertokens.pluginInterface.passwordless.UserInfo("userId", "test@example.com", null, 1);
+        start.createUser(user);
+        start.deletePasswordlessUser(user.id);
+        assertNull(start.getUserById(user.id));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
 }
 
 /*
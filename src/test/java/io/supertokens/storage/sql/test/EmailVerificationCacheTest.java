@@ -0,0 +1,175 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.test;
+
+import io.supertokens.ProcessState;
+import io.supertokens.storage.sql.EmailVerificationCache;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.config.Config;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static io.supertokens.storage.sql.PreparedStatementValueSetter.NO_OP_SETTER;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.update;
+import static org.junit.Assert.*;
+
+public class EmailVerificationCacheTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void lookupsAreCounted() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        // it empties the cache when it starts listening
+        assertNotNull(process.checkOrWaitForEventInPlugin(
+                io.supertokens.storage.sql.ProcessState.PROCESS_STATE.LISTENING_FOR_DATABASE_CHANGES));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+        EmailVerificationCache cache = EmailVerificationCache.getInstance(start);
+
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        assertFalse(start.isEmailVerified("user", "user@example.com"));
+        assertFalse(start.isEmailVerified("user", "user@example.com"));
+        assertFalse(start.isEmailVerified("user", "user@example.com"));
+        assertEquals(hits + 2, cache.getHitCount());
+        assertEquals(misses + 1, cache.getMissCount());
+        assertTrue(cache.getHitRatio() > 0);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void changesMadeThroughThisCoreAreSeenRightAway() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        start.startTransaction(con -> {
+            start.updateIsEmailVerified_Transaction(con, "user", "user@example.com", true);
+            start.commitTransaction(con);
+            return null;
+        });
+
+        assertTrue(start.isEmailVerified("user", "user@example.com"));
+        start.unverifyEmail("user", "user@example.com");
+        assertFalse(start.isEmailVerified("user", "user@example.com"));
+
+        start.startTransaction(con -> {
+            start.updateIsEmailVerified_Transaction(con, "user", "user@example.com", true);
+            start.commitTransaction(con);
+            return null;
+        });
+        assertTrue(start.isEmailVerified("user", "user@example.com"));
+        start.deleteEmailVerificationUserInfo("user");
+        assertFalse(start.isEmailVerified("user", "user@example.com"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void changesByOtherCoresAreSeenOnceCommitted() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        assertNotNull(process.checkOrWaitForEventInPlugin(
+                io.supertokens.storage.sql.ProcessState.PROCESS_STATE.LISTENING_FOR_DATABASE_CHANGES));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        assertFalse(start.isEmailVerified("user", "user@example.com"));
+        insertVerifiedEmail(start, "user", "user@example.com", true);
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (!start.isEmailVerified("user", "user@example.com") && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(50);
+        }
+        assertTrue(start.isEmailVerified("user", "user@example.com"));
+
+        // a change that doesn't notify anyone is not seen
+        String table = Config.getConfig(start).getEmailVerificationTable();
+        update(start, "ALTER TABLE " + table + " DISABLE TRIGGER USER; DELETE FROM " + table + "; ALTER TABLE "
+                + table + " ENABLE TRIGGER USER", NO_OP_SETTER);
+        assertTrue(start.isEmailVerified("user", "user@example.com"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void unverifiedEmailsAreCachedForTheNegativeTtl() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_email_verification_cache_negative_ttl_ms", "500");
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        assertFalse(start.isEmailVerified("user", "user@example.com"));
+        insertVerifiedEmail(start, "user", "user@example.com", false);
+        assertFalse(start.isEmailVerified("user", "user@example.com"));
+        Thread.sleep(600);
+        assertTrue(start.isEmailVerified("user", "user@example.com"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void cacheCanBeDisabled() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_email_verification_cache_size", "0");
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        assertFalse(start.isEmailVerified("user", "user@example.com"));
+        insertVerifiedEmail(start, "user", "user@example.com", false);
+        assertTrue(start.isEmailVerified("user", "user@example.com"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    // verifies an email the way another core would, or, without notify, in a way that the cache doesn't hear of
+    private static void insertVerifiedEmail(Start start, String userId, String email, boolean notify)
+            throws Exception {
+        String table = Config.getConfig(start).getEmailVerificationTable();
+        String QUERY = "INSERT INTO " + table + "(user_id, email) VALUES('" + userId + "', '" + email + "')";
+        if (!notify) {
+            QUERY = "ALTER TABLE " + table + " DISABLE TRIGGER USER; " + QUERY + "; ALTER TABLE " + table
+                    + " ENABLE TRIGGER USER";
+        }
+        update(start, QUERY, NO_OP_SETTER);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class ExpiredRowsDeletionTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void expiredSessionsAreDeletedAcrossMultipleBatches() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_expired_rows_delete_batch_size", "10");
+        Utils.setValueInConfig("postgresql_expired_rows_delete_batch_pause_ms", "0");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 25; i++) {
+            start.createNewSession("expired" + i, "user", "hash", new JsonObject(), now - 1000, new JsonObject(), now);
+        }
+        start.createNewSession("live", "user", "hash", new JsonObject(), now + 60 * 60 * 1000, new JsonObject(), now);
+
+        start.deleteAllExpiredSessions();
+
+        assertEquals(1, start.getNumberOfSessions());
+        assertNotNull(start.getSession("live"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
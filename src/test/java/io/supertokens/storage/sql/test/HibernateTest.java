@@ -16,6 +16,7 @@
 
 package io.supertokens.storage.sql.test;
 
+import com.google.gson.JsonObject;
 import io.supertokens.ProcessState;
 import io.supertokens.emailpassword.EmailPassword;
 import io.supertokens.pluginInterface.KeyValueInfo;
@@ -26,8 +27,10 @@ import io.supertokens.pluginInterface.emailpassword.UserInfo;
 import io.supertokens.pluginInterface.emailpassword.sqlStorage.EmailPasswordSQLStorage;
 import io.supertokens.pluginInterface.exceptions.StorageQueryException;
 import io.supertokens.pluginInterface.exceptions.StorageTransactionLogicException;
+import io.supertokens.pluginInterface.passwordless.PasswordlessCode;
 import io.supertokens.pluginInterface.session.sqlStorage.SessionSQLStorage;
 import io.supertokens.pluginInterface.sqlStorage.SQLStorage;
+import io.supertokens.pluginInterface.userroles.exception.UnknownRoleException;
 import io.supertokens.storage.sql.Start;
 import io.supertokens.storage.sql.domainobject.emailpassword.EmailPasswordUsersDO;
 import io.supertokens.storage.sql.domainobject.emailpassword.PasswordResetTokensDO;
@@ -42,7 +45,7 @@ import org.junit.rules.TestRule;
 
 import java.io.PrintStream;
 
-import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.*;
 
 public class HibernateTest {
 
@@ -96,7 +99,7 @@ public class HibernateTest {
     }
 
     @Test
-    public void shouldSelectFromDbTwice()
+    public void shouldSelectFromDbOnlyForTheGet()
             throws InterruptedException, StorageQueryException, StorageTransactionLogicException {
         String[] args = { "../" };
         enableSQLLogging();
@@ -118,8 +121,10 @@ public class HibernateTest {
             return null;
         });
 
+        // setKeyValue is an upsert, so it doesn't select the row first
         // We do -1 cause if there is one occurrence of this, it will split the string into 2 parts
-        assert (printInterceptor.s.split("Hibernate: select").length - 1 == 2);
+        assert (printInterceptor.s.split("Hibernate: select").length - 1 == 1);
+        assert (sqlStorage.getKeyValue("Key").value.equals("Value2"));
 
         process.kill();
         assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
@@ -274,8 +279,9 @@ public class HibernateTest {
                 return null;
             });
 
+            // the upsert leaves the row in the session, so the delete doesn't need to select it
             // We do -1 cause if there is one occurrence of this, it will split the string into 2 parts
-            assert (printInterceptor.s.split("Hibernate: select").length - 1 == 1);
+            assert (printInterceptor.s.split("Hibernate: select").length - 1 == 0);
             assert (sqlStorage.getKeyValue("access_token_signing_key") == null);
 
             process.kill();
@@ -440,6 +446,100 @@ public class HibernateTest {
         assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
     }
 
+    @Test
+    public void upsertsDoNotSelectFirst() throws Exception {
+        String[] args = { "../" };
+        enableSQLLogging();
+        Interceptor printInterceptor = new Interceptor();
+        System.setOut(printInterceptor);
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+        JsonObject metadata = new JsonObject();
+        metadata.addProperty("key", "value");
+
+        printInterceptor.start = true;
+        for (int i = 0; i < 2; i++) {
+            boolean isFirstTime = i == 0;
+            start.startTransaction(con -> {
+                assertEquals(isFirstTime, start.createNewRoleOrDoNothingIfExists_Transaction(con, "role"));
+                try {
+                    start.addPermissionToRoleOrDoNothingIfExists_Transaction(con, "role", "permission");
+                } catch (UnknownRoleException e) {
+                    throw new StorageTransactionLogicException(e);
+                }
+                start.updateIsEmailVerified_Transaction(con, "userId", "user@example.com", true);
+                start.setUserMetadata_Transaction(con, "userId", metadata);
+                start.commitTransaction(con);
+                return null;
+            });
+        }
+
+        // We do -1 cause if there is one occurrence of this, it will split the string into 2 parts
+        assert (printInterceptor.s.split("Hibernate: select").length - 1 == 0);
+        printInterceptor.start = false;
+
+        assertArrayEquals(new String[] { "permission" }, start.getPermissionsForRole("role"));
+        assertTrue(start.isEmailVerified("userId", "user@example.com"));
+        assertEquals(metadata, start.getUserMetadata("userId"));
+
+        try {
+            start.startTransaction(con -> {
+                try {
+                    start.addPermissionToRoleOrDoNothingIfExists_Transaction(con, "unknownRole", "permission");
+                } catch (UnknownRoleException e) {
+                    throw new StorageTransactionLogicException(e);
+                }
+                return null;
+            });
+            fail();
+        } catch (StorageTransactionLogicException e) {
+            assertTrue(e.actualException instanceof UnknownRoleException);
+        }
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void deviceUpdatesDoNotSelectFirst() throws Exception {
+        String[] args = { "../" };
+        enableSQLLogging();
+        Interceptor printInterceptor = new Interceptor();
+        System.setOut(printInterceptor);
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+        String deviceIdHash = "deviceIdHash";
+        String codeId = "codeId";
+        start.createDeviceWithCode("test@example.com", null, "linkCodeSalt",
+                new PasswordlessCode(codeId, deviceIdHash, "linkCodeHash", System.currentTimeMillis()));
+
+        printInterceptor.start = true;
+        int failedAttempts = start.startTransaction(con -> {
+            start.incrementDeviceFailedAttemptCount_Transaction(con, deviceIdHash);
+            start.incrementDeviceFailedAttemptCount_Transaction(con, deviceIdHash);
+            int result = start.getDevice_Transaction(con, deviceIdHash).failedAttempts;
+            start.deleteDevice_Transaction(con, deviceIdHash);
+            start.commitTransaction(con);
+            return result;
+        });
+
+        // only getDevice_Transaction selects
+        // We do -1 cause if there is one occurrence of this, it will split the string into 2 parts
+        assert (printInterceptor.s.split("Hibernate: select").length - 1 == 1);
+        printInterceptor.start = false;
+
+        assertEquals(2, failedAttempts);
+        assertNull(start.getDevice(deviceIdHash));
+        assertNull(start.getCode(codeId));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
     private static void enableSQLLogging() {
         Start.printSQL = true;
         StorageLayer.close();
@@ -0,0 +1,203 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.test;
+
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.sql.ConnectionPool;
+import io.supertokens.storage.sql.PreparedStatementValueSetter;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.config.Config;
+import io.supertokens.storage.sql.queries.GeneralQueries;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.sql.SQLException;
+
+import static io.supertokens.storage.sql.PreparedStatementValueSetter.NO_OP_SETTER;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.execute;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.update;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Seeds the tables and checks with EXPLAIN that secondary lookups are served by an index and not by a sequential
+ * scan.
+ */
+public class IndexUsageTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void thirdPartyUsersByEmailUsesIndex() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        String table = Config.getConfig(start).getThirdPartyUsersTable();
+        update(start, "INSERT INTO " + table
+                + "(third_party_id, third_party_user_id, user_id, email, time_joined) SELECT 'google', 'tp' || i,"
+                + " md5(i::text)::uuid::text, 'user' || i || '@example.com', i FROM generate_series(1, 10000) i",
+                NO_OP_SETTER);
+        vacuumAnalyze(start, table);
+
+        String plan = explain(start, "SELECT * FROM " + table + " WHERE email = 'user42@example.com'");
+        assertFalse(plan, plan.contains("Seq Scan"));
+        assertTrue(plan, plan.contains("thirdparty_users_email_index"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void usersForRoleIsAnIndexOnlyScan() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        String rolesTable = Config.getConfig(start).getRolesTable();
+        String userRolesTable = Config.getConfig(start).getUserRolesTable();
+        update(start, "INSERT INTO " + rolesTable + "(role) SELECT 'role' || i FROM generate_series(0, 99) i",
+                NO_OP_SETTER);
+        update(start, "INSERT INTO " + userRolesTable
+                + "(user_id, role) SELECT 'user' || i, 'role' || (i % 100) FROM generate_series(1, 10000) i",
+                NO_OP_SETTER);
+        vacuumAnalyze(start, userRolesTable);
+
+        String plan = explain(start, "SELECT user_id FROM " + userRolesTable + " WHERE role = 'role42'");
+        assertFalse(plan, plan.contains("Seq Scan"));
+        assertTrue(plan, plan.contains("Index Only Scan using user_roles_role_user_id_index"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void passwordlessDevicesByEmailAndPhoneNumberUseIndex() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        String table = Config.getConfig(start).getPasswordlessDevicesTable();
+        update(start, "INSERT INTO " + table
+                + "(device_id_hash, email, phone_number, link_code_salt, failed_attempts) SELECT md5(i::text),"
+                + " CASE WHEN i % 2 = 0 THEN 'user' || i || '@example.com' END,"
+                + " CASE WHEN i % 2 = 1 THEN '+1' || (5550000000 + i) END, md5(i::text), 0"
+                + " FROM generate_series(1, 10000) i", NO_OP_SETTER);
+        vacuumAnalyze(start, table);
+
+        String plan = explain(start, "SELECT * FROM " + table + " WHERE email = 'user42@example.com'");
+        assertFalse(plan, plan.contains("Seq Scan"));
+        assertTrue(plan, plan.contains("passwordless_devices_email_hash_index"));
+
+        plan = explain(start, "SELECT * FROM " + table + " WHERE phone_number = '+15550000043'");
+        assertFalse(plan, plan.contains("Seq Scan"));
+        assertTrue(plan, plan.contains("passwordless_devices_phone_number_hash_index"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void usersFilteredByRecipeAreIndexRangeScans() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        String table = Config.getConfig(start).getUsersTable();
+        update(start, "INSERT INTO " + table + "(user_id, recipe_id, time_joined) SELECT md5(i::text)::uuid::text,"
+                + " CASE i % 10 WHEN 0 THEN 'emailpassword' WHEN 1 THEN 'thirdparty' ELSE 'passwordless' END, i"
+                + " FROM generate_series(1, 10000) i", NO_OP_SETTER);
+        vacuumAnalyze(start, table);
+
+        // the same shape of query that GeneralQueries.getUsers uses when filtering by recipe
+        String plan = explainPageOfRecipes(start, table, "DESC");
+        assertFalse(plan, plan.contains("Seq Scan"));
+        // the pages of each recipe are merged in index order, without sorting (Merge Append still prints a Sort Key)
+        assertFalse(plan, plan.contains("Sort  ("));
+        assertTrue(plan, plan.contains("all_auth_recipe_users_recipe_id_pagination_index"));
+
+        // in ascending order, user_id still goes down, so the users who joined at the same time are sorted, but each
+        // page is still a range scan of the index
+        plan = explainPageOfRecipes(start, table, "ASC");
+        assertFalse(plan, plan.contains("Seq Scan"));
+        assertTrue(plan, plan.contains("all_auth_recipe_users_recipe_id_pagination_index"));
+
+        plan = explain(start,
+                "SELECT COUNT(*) FROM " + table + " WHERE recipe_id IN ('emailpassword', 'thirdparty')");
+        assertFalse(plan, plan.contains("Seq Scan"));
+        assertTrue(plan, plan.contains("Index Only Scan using all_auth_recipe_users_recipe_id_pagination_index"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    private static String explainPageOfRecipes(Start start, String table, String timeJoinedOrder)
+            throws SQLException, StorageQueryException {
+        String orderBy = " ORDER BY time_joined " + timeJoinedOrder + ", user_id DESC LIMIT 10";
+        String branch = "(SELECT user_id, recipe_id, time_joined FROM " + table + " WHERE recipe_id = ? AND ("
+                + GeneralQueries.getPaginationCondition(timeJoinedOrder) + ")" + orderBy + ")";
+        return explain(start, "SELECT * FROM (" + branch + " UNION ALL " + branch + ") AS pages" + orderBy, pst -> {
+            int index = 1;
+            for (String recipeId : new String[] { "emailpassword", "thirdparty" }) {
+                pst.setString(index++, recipeId);
+                index = GeneralQueries.setPaginationParameters(start, pst, index, timeJoinedOrder, 5000, "x");
+            }
+        });
+    }
+
+    private static void vacuumAnalyze(Start start, String table) throws SQLException, StorageQueryException {
+        // VACUUM can't run inside a transaction, and it sets the visibility map needed for index only scans
+        ConnectionPool.withSession(start, (session, con) -> update(con, "VACUUM ANALYZE " + table, NO_OP_SETTER),
+                false);
+    }
+
+    private static String explain(Start start, String query) throws SQLException, StorageQueryException {
+        return explain(start, query, NO_OP_SETTER);
+    }
+
+    private static String explain(Start start, String query, PreparedStatementValueSetter setter)
+            throws SQLException, StorageQueryException {
+        return execute(start, "EXPLAIN " + query, setter, result -> {
+            StringBuilder plan = new StringBuilder();
+            while (result.next()) {
+                plan.append(result.getString(1)).append("\n");
+            }
+            return plan.toString();
+        });
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.test;
+
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.config.Config;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static io.supertokens.storage.sql.QueryExecutorTemplate.execute;
+import static org.junit.Assert.*;
+
+public class JsonbUserMetadataTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void mergeAndPartialReadsWithJsonb() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_jsonb_user_metadata", "true");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        assertEquals("jsonb", getColumnType(start));
+        checkMergeAndPartialReads(start);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void mergeAndPartialReadsWithText() throws Exception {
+        String[] args = { "../" };
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        assertEquals("text", getColumnType(start));
+        checkMergeAndPartialReads(start);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void existingColumnIsConvertedWhenEnabled() throws Exception {
+        String[] args = { "../" };
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        JsonObject metadata = new JsonObject();
+        metadata.addProperty("a", 1);
+        start.mergeUserMetadata("user", metadata);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+        StorageLayer.close();
+
+        Utils.setValueInConfig("postgresql_jsonb_user_metadata", "true");
+        process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        assertEquals("jsonb", getColumnType(start));
+        assertEquals(metadata, start.getUserMetadata("user"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    private static void checkMergeAndPartialReads(Start start) throws Exception {
+        assertNull(start.getUserMetadataKeys("user", "a"));
+
+        JsonObject update = new JsonObject();
+        update.addProperty("a", 1);
+        update.addProperty("b", "two");
+        JsonObject nested = new JsonObject();
+        nested.addProperty("c", true);
+        update.add("nested", nested);
+        assertEquals(update, start.mergeUserMetadata("user", update));
+
+        // top level keys are replaced, and keys set to null are removed
+        JsonObject secondUpdate = new JsonObject();
+        secondUpdate.addProperty("a", 3);
+        secondUpdate.add("b", JsonNull.INSTANCE);
+        secondUpdate.add("nested", new JsonObject());
+        JsonObject expected = new JsonObject();
+        expected.addProperty("a", 3);
+        expected.add("nested", new JsonObject());
+        assertEquals(expected, start.mergeUserMetadata("user", secondUpdate));
+        assertEquals(expected, start.getUserMetadata("user"));
+
+        JsonObject onlyA = new JsonObject();
+        onlyA.addProperty("a", 3);
+        assertEquals(onlyA, start.getUserMetadataKeys("user", "a", "b"));
+        assertEquals(new JsonObject(), start.getUserMetadataKeys("user", "missing"));
+
+        // the regular plugin interface still works on the same rows
+        start.startTransaction(con -> {
+            start.setUserMetadata_Transaction(con, "user", update);
+            start.commitTransaction(con);
+            return null;
+        });
+        assertEquals(update, start.getUserMetadata("user"));
+    }
+
+    private static String getColumnType(Start start) throws Exception {
+        String QUERY = "SELECT format_type(atttypid, atttypmod) FROM pg_attribute WHERE attrelid = to_regclass(?)"
+                + " AND attname = 'user_metadata'";
+        return execute(start, QUERY, pst -> pst.setString(1, Config.getConfig(start).getUserMetadataTable()),
+                result -> result.next() ? result.getString(1) : null);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.emailpassword.UserInfo;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.queries.BulkImportQueries.ImportedUser;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LargeInListTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void listsLongerThanOneQueryAreChunked() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        int numberOfUsers = io.supertokens.storage.sql.utils.Utils.MAX_IN_LIST_SIZE * 2 + 3;
+        List<ImportedUser> users = new ArrayList<>();
+        ArrayList<String> userIds = new ArrayList<>();
+        for (int i = 0; i < numberOfUsers; i++) {
+            users.add(new ImportedUser(new UserInfo("user" + i, "user" + i + "@example.com", "hash", i),
+                    "external" + i, null));
+            userIds.add("user" + i);
+        }
+        start.importUsers(users);
+
+        HashMap<String, String> mappings = start.getUserIdMappingForSuperTokensIds(userIds);
+        assertEquals(numberOfUsers, mappings.size());
+        assertEquals("external" + (numberOfUsers - 1), mappings.get("user" + (numberOfUsers - 1)));
+
+        start.createNewSession("first", "user0", "hash", new JsonObject(), System.currentTimeMillis() + 10000,
+                new JsonObject(), System.currentTimeMillis());
+        start.createNewSession("last", "user0", "hash", new JsonObject(), System.currentTimeMillis() + 10000,
+                new JsonObject(), System.currentTimeMillis());
+        String[] sessionHandles = new String[numberOfUsers];
+        for (int i = 0; i < numberOfUsers; i++) {
+            sessionHandles[i] = "missing" + i;
+        }
+        sessionHandles[0] = "first";
+        sessionHandles[numberOfUsers - 1] = "last";
+        assertEquals(2, start.deleteSession(sessionHandles));
+        assertNull(start.getSession("first"));
+        assertNull(start.getSession("last"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.emailverification.EmailVerificationStorage;
+import io.supertokens.pluginInterface.emailverification.EmailVerificationTokenInfo;
+import io.supertokens.pluginInterface.jwt.JWTRecipeStorage;
+import io.supertokens.pluginInterface.session.SessionStorage;
+import io.supertokens.pluginInterface.usermetadata.UserMetadataStorage;
+import io.supertokens.pluginInterface.userroles.UserRolesStorage;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class NonAuthRecipeUsageTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void usageOfEveryRecipeIsFoundWithOneQuery() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        assertEquals(Collections.emptyList(), start.getNonAuthRecipesUsingUserId("user"));
+
+        // expired sessions don't count
+        start.createNewSession("expired", "user", "hash", new JsonObject(), System.currentTimeMillis() - 1000,
+                new JsonObject(), System.currentTimeMillis());
+        assertFalse(start.isUserIdBeingUsedInNonAuthRecipe(SessionStorage.class.getName(), "user"));
+        start.createNewSession("handle", "user", "hash", new JsonObject(), System.currentTimeMillis() + 3600000,
+                new JsonObject(), System.currentTimeMillis());
+        assertTrue(start.isUserIdBeingUsedInNonAuthRecipe(SessionStorage.class.getName(), "user"));
+        assertEquals(Collections.singletonList(SessionStorage.class.getName()),
+                start.getNonAuthRecipesUsingUserId("user"));
+
+        start.startTransaction(con -> {
+            start.createNewRoleOrDoNothingIfExists_Transaction(con, "role");
+            start.setUserMetadata_Transaction(con, "user", new JsonObject());
+            start.commitTransaction(con);
+            return null;
+        });
+        start.addRoleToUser("user", "role");
+        start.addEmailVerificationToken(new EmailVerificationTokenInfo("user", "token",
+                System.currentTimeMillis() + 3600000, "user@example.com"));
+
+        assertEquals(Arrays.asList(SessionStorage.class.getName(), UserRolesStorage.class.getName(),
+                UserMetadataStorage.class.getName(), EmailVerificationStorage.class.getName()),
+                start.getNonAuthRecipesUsingUserId("user"));
+        assertTrue(start.isUserIdBeingUsedInNonAuthRecipe(UserRolesStorage.class.getName(), "user"));
+        assertTrue(start.isUserIdBeingUsedInNonAuthRecipe(UserMetadataStorage.class.getName(), "user"));
+        assertTrue(start.isUserIdBeingUsedInNonAuthRecipe(EmailVerificationStorage.class.getName(), "user"));
+        assertFalse(start.isUserIdBeingUsedInNonAuthRecipe(JWTRecipeStorage.class.getName(), "user"));
+        assertEquals(Collections.emptyList(), start.getNonAuthRecipesUsingUserId("other"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.config.Config;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static io.supertokens.storage.sql.PreparedStatementValueSetter.NO_OP_SETTER;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.execute;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.update;
+import static org.junit.Assert.*;
+
+public class SessionCacheTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void sessionsAreCachedUntilAnyCoreChangesThem() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_session_cache_ttl_ms", "60000");
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        assertNotNull(process.checkOrWaitForEventInPlugin(
+                io.supertokens.storage.sql.ProcessState.PROCESS_STATE.LISTENING_FOR_DATABASE_CHANGES));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        long expiry = System.currentTimeMillis() + 3600000;
+        start.createNewSession("handle1", "user", "hash", new JsonObject(), expiry, new JsonObject(),
+                System.currentTimeMillis());
+        start.createNewSession("handle2", "user", "hash", new JsonObject(), expiry, new JsonObject(),
+                System.currentTimeMillis());
+        assertEquals("hash", start.getSession("handle1").refreshTokenHash2);
+
+        // a change that doesn't notify anyone is not seen
+        setRefreshTokenHash(start, "handle1", "hash2", false);
+        assertEquals("hash", start.getSession("handle1").refreshTokenHash2);
+
+        // what another core changes is seen once it is committed
+        setRefreshTokenHash(start, "handle1", "hash3", true);
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (!start.getSession("handle1").refreshTokenHash2.equals("hash3")
+                && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(50);
+        }
+        assertEquals("hash3", start.getSession("handle1").refreshTokenHash2);
+
+        // changes made through this core are seen right away
+        JsonObject sessionData = new JsonObject();
+        sessionData.addProperty("key", "value");
+        start.updateSession("handle1", sessionData, null);
+        assertEquals(sessionData, start.getSession("handle1").userDataInDatabase);
+
+        assertNotNull(start.getSession("handle2"));
+        start.deleteSessionsOfUser("user");
+        assertNull(start.getSession("handle1"));
+        assertNull(start.getSession("handle2"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void sessionsAreNotServedAfterTheTtl() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_session_cache_ttl_ms", "500");
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        start.createNewSession("handle", "user", "hash", new JsonObject(), System.currentTimeMillis() + 3600000,
+                new JsonObject(), System.currentTimeMillis());
+        assertEquals("hash", start.getSession("handle").refreshTokenHash2);
+        setRefreshTokenHash(start, "handle", "hash2", false);
+        Thread.sleep(600);
+        assertEquals("hash2", start.getSession("handle").refreshTokenHash2);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void cacheIsDisabledByDefault() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        start.createNewSession("handle", "user", "hash", new JsonObject(), System.currentTimeMillis() + 3600000,
+                new JsonObject(), System.currentTimeMillis());
+        assertEquals("hash", start.getSession("handle").refreshTokenHash2);
+        setRefreshTokenHash(start, "handle", "hash2", false);
+        assertEquals("hash2", start.getSession("handle").refreshTokenHash2);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void notificationsAreOnlySentWhenTheCacheIsOn() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+        assertFalse(isNotifyTriggerEnabled(start));
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+        StorageLayer.close();
+
+        Utils.setValueInConfig("postgresql_session_cache_ttl_ms", "60000");
+        process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        start = (Start) StorageLayer.getStorage(process.getProcess());
+        assertTrue(isNotifyTriggerEnabled(start));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    private static boolean isNotifyTriggerEnabled(Start start) throws Exception {
+        String QUERY = "SELECT tgenabled FROM pg_trigger WHERE tgrelid = to_regclass(?)"
+                + " AND tgname LIKE '%_notify_trigger'";
+        return execute(start, QUERY, pst -> pst.setString(1, Config.getConfig(start).getSessionInfoTable()),
+                result -> {
+                    assertTrue(result.next());
+                    return !result.getString("tgenabled").equals("D");
+                });
+    }
+
+    // changes a session the way another core would, or, without notify, in a way that the cache doesn't hear of
+    private static void setRefreshTokenHash(Start start, String sessionHandle, String refreshTokenHash2,
+            boolean notify) throws Exception {
+        String table = Config.getConfig(start).getSessionInfoTable();
+        String QUERY = "UPDATE " + table + " SET refresh_token_hash_2 = '" + refreshTokenHash2
+                + "' WHERE session_handle = '" + sessionHandle + "'";
+        if (!notify) {
+            QUERY = "ALTER TABLE " + table + " DISABLE TRIGGER USER; " + QUERY + "; ALTER TABLE " + table
+                    + " ENABLE TRIGGER USER";
+        }
+        update(start, QUERY, NO_OP_SETTER);
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.config.Config;
+import io.supertokens.storage.sql.queries.SessionQueries;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static io.supertokens.storage.sql.PreparedStatementValueSetter.NO_OP_SETTER;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.execute;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.update;
+import static org.junit.Assert.*;
+
+public class SessionPartitioningTest {
+
+    private static final long WEEK = 7L * 24 * 60 * 60 * 1000;
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void expiredPartitionsAreDroppedAndSessionsStillWork() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_session_info_partitioned", "true");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+        String sessionInfoTable = Config.getConfig(start).getSessionInfoTable();
+
+        assertTrue(SessionQueries.isSessionInfoTablePartitioned(start));
+        // default partition + current window + the 15 windows that cover the default lifetime of 100 days
+        assertEquals(17, countPartitions(start, sessionInfoTable));
+
+        long now = System.currentTimeMillis();
+        // an old window that has fully expired
+        long oldPartitionStart = now - (now % WEEK) - 3 * WEEK;
+        update(start, "CREATE TABLE " + sessionInfoTable + "_p" + oldPartitionStart + " PARTITION OF "
+                + sessionInfoTable + " FOR VALUES FROM (" + oldPartitionStart + ") TO (" + (oldPartitionStart + WEEK)
+                + ")", NO_OP_SETTER);
+
+        start.createNewSession("expired", "user", "hash", new JsonObject(), oldPartitionStart + 1000,
+                new JsonObject(), now);
+        start.createNewSession("live", "user", "hash", new JsonObject(), now + 60 * 60 * 1000, new JsonObject(),
+                now);
+        // goes to the default partition
+        start.createNewSession("farFuture", "user", "hash", new JsonObject(), now + 52 * WEEK, new JsonObject(),
+                now);
+
+        assertNotNull(start.getSession("expired"));
+        assertEquals(3, start.getNumberOfSessions());
+
+        start.deleteAllExpiredSessions();
+
+        assertEquals(17, countPartitions(start, sessionInfoTable));
+        assertNull(start.getSession("expired"));
+        assertNotNull(start.getSession("live"));
+        assertNotNull(start.getSession("farFuture"));
+        assertEquals(2, start.getNumberOfSessions());
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void partitionsAreCreatedForTheMaxSessionLifetime() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_session_info_partitioned", "true");
+        Utils.setValueInConfig("postgresql_session_info_max_session_lifetime_ms", String.valueOf(2 * WEEK + 1));
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        // default partition + current window + 3 windows ahead
+        assertEquals(5, countPartitions(start, Config.getConfig(start).getSessionInfoTable()));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void sessionsInTheDefaultPartitionAreMovedToNewPartitions() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_session_info_partitioned", "true");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+        String sessionInfoTable = Config.getConfig(start).getSessionInfoTable();
+
+        // without the partition of next week, its sessions go to the default partition
+        long now = System.currentTimeMillis();
+        long nextPartitionStart = now - (now % WEEK) + WEEK;
+        String nextPartition = sessionInfoTable + "_p" + nextPartitionStart;
+        update(start, "ALTER TABLE " + sessionInfoTable + " DETACH PARTITION " + nextPartition + "; DROP TABLE "
+                + nextPartition, NO_OP_SETTER);
+        for (int i = 0; i < 10; i++) {
+            start.createNewSession("handle" + i, "user", "hash" + i, new JsonObject(), nextPartitionStart + i,
+                    new JsonObject(), now);
+        }
+        assertEquals(10, countRows(start, sessionInfoTable + "_default"));
+
+        SessionQueries.maintainSessionInfoPartitions(start);
+
+        assertEquals(0, countRows(start, sessionInfoTable + "_default"));
+        assertEquals(10, countRows(start, nextPartition));
+        for (int i = 0; i < 10; i++) {
+            assertEquals("hash" + i, start.getSession("handle" + i).refreshTokenHash2);
+        }
+        assertEquals(10, start.getNumberOfSessions());
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void sessionsCanBeUsedWhileMaintenanceRuns() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_session_info_partitioned", "true");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+        String sessionInfoTable = Config.getConfig(start).getSessionInfoTable();
+
+        // an expired partition to drop, and many sessions in the default partition to move
+        long now = System.currentTimeMillis();
+        long oldPartitionStart = now - (now % WEEK) - 3 * WEEK;
+        update(start, "CREATE TABLE " + sessionInfoTable + "_p" + oldPartitionStart + " PARTITION OF "
+                + sessionInfoTable + " FOR VALUES FROM (" + oldPartitionStart + ") TO (" + (oldPartitionStart + WEEK)
+                + ")", NO_OP_SETTER);
+        start.createNewSession("expired", "user", "hash", new JsonObject(), oldPartitionStart + 1000,
+                new JsonObject(), now);
+        long nextPartitionStart = now - (now % WEEK) + WEEK;
+        String nextPartition = sessionInfoTable + "_p" + nextPartitionStart;
+        update(start, "ALTER TABLE " + sessionInfoTable + " DETACH PARTITION " + nextPartition + "; DROP TABLE "
+                + nextPartition, NO_OP_SETTER);
+        update(start, "INSERT INTO " + sessionInfoTable + "(session_handle, user_id, refresh_token_hash_2,"
+                + " session_data, expires_at, created_at_time, jwt_user_payload) SELECT 'bulk' || i, 'user', 'hash',"
+                + " '{}', ? + i, ?, '{}' FROM generate_series(1, 20000) i", pst -> {
+                    pst.setLong(1, nextPartitionStart);
+                    pst.setLong(2, now);
+                });
+
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        Future<?> maintenance = es.submit(() -> {
+            SessionQueries.maintainSessionInfoPartitions(start);
+            return null;
+        });
+        int created = 0;
+        do {
+            long expiry = System.currentTimeMillis() + 60 * 60 * 1000;
+            start.createNewSession("live" + created, "user", "hash", new JsonObject(), expiry, new JsonObject(), now);
+            assertNotNull(start.getSession("live" + created));
+            assertNotNull(start.refreshSession("live" + created, "hash", "newHash", expiry));
+            created++;
+        } while (!maintenance.isDone());
+        maintenance.get();
+        es.shutdown();
+
+        assertNull(start.getSession("expired"));
+        assertEquals(0, countRows(start, sessionInfoTable + "_default"));
+        assertEquals(20000, countRows(start, nextPartition));
+        for (int i = 0; i < created; i++) {
+            assertEquals("newHash", start.getSession("live" + i).refreshTokenHash2);
+        }
+        assertEquals(20000 + created, start.getNumberOfSessions());
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void partitionsLeftDetachedAreDropped() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_session_info_partitioned", "true");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+        String sessionInfoTable = Config.getConfig(start).getSessionInfoTable();
+
+        long now = System.currentTimeMillis();
+        long oldPartitionStart = now - (now % WEEK) - 3 * WEEK;
+        String oldPartition = sessionInfoTable + "_p" + oldPartitionStart;
+        update(start, "CREATE TABLE " + oldPartition + " PARTITION OF " + sessionInfoTable + " FOR VALUES FROM ("
+                + oldPartitionStart + ") TO (" + (oldPartitionStart + WEEK) + ")", NO_OP_SETTER);
+        start.createNewSession("expired", "user", "hash", new JsonObject(), oldPartitionStart + 1000,
+                new JsonObject(), now);
+        start.createNewSession("live", "user", "hash", new JsonObject(), now + 60 * 60 * 1000, new JsonObject(),
+                now);
+        // as if the core stopped between detaching the partition and dropping it
+        update(start, "ALTER TABLE " + sessionInfoTable + " DETACH PARTITION " + oldPartition, NO_OP_SETTER);
+        assertEquals(2, start.getNumberOfSessions());
+
+        SessionQueries.maintainSessionInfoPartitions(start);
+
+        assertFalse(tableExists(start, oldPartition));
+        assertNotNull(start.getSession("live"));
+        assertEquals(1, start.getNumberOfSessions());
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    private static boolean tableExists(Start start, String table) throws Exception {
+        return execute(start, "SELECT to_regclass(?) IS NOT NULL", pst -> pst.setString(1, table), result -> {
+            result.next();
+            return result.getBoolean(1);
+        });
+    }
+
+    private static long countRows(Start start, String table) throws Exception {
+        return execute(start, "SELECT COUNT(*) FROM " + table, NO_OP_SETTER, result -> {
+            result.next();
+            return result.getLong(1);
+        });
+    }
+
+    private static int countPartitions(Start start, String table) throws Exception {
+        String QUERY = "SELECT COUNT(*) FROM pg_inherits WHERE inhparent = to_regclass(?)";
+        return execute(start, QUERY, pst -> pst.setString(1, table), result -> {
+            result.next();
+            return result.getInt(1);
+        });
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.session.SessionInfo;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class SessionRefreshTest {
+
+    // hex, like the hashes the core generates
+    private static final String FIRST_HASH = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+    private static final String SECOND_HASH = "60303ae22b998861bce3b28f33eec1be758a213c86c93c076dbe9f558c11c752";
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void refreshSwapsTheTokenOnlyIfItMatches() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        checkRefresh((Start) StorageLayer.getStorage(process.getProcess()));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void refreshWorksWithBinaryHashes() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_binary_hashes", "true");
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        checkRefresh((Start) StorageLayer.getStorage(process.getProcess()));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void onlyOneOfConcurrentRefreshesSucceeds() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        checkConcurrentRefreshes((Start) StorageLayer.getStorage(process.getProcess()));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void onlyOneOfConcurrentRefreshesSucceedsWhenPartitioned() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_session_info_partitioned", "true");
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        checkConcurrentRefreshes((Start) StorageLayer.getStorage(process.getProcess()));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    private static void checkConcurrentRefreshes(Start start) throws Exception {
+        long now = System.currentTimeMillis();
+        start.createNewSession("handle", "userId", FIRST_HASH, new JsonObject(), now + 100000, new JsonObject(), now);
+
+        // two weeks later, so that with partitioning the refresh moves the session to another partition
+        long expiry = now + 14L * 24 * 60 * 60 * 1000;
+        ExecutorService es = Executors.newFixedThreadPool(10);
+        List<Future<SessionInfo>> results = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            String newHash = "newHash" + i;
+            results.add(es.submit(() -> start.refreshSession("handle", FIRST_HASH, newHash, expiry)));
+        }
+        String winner = null;
+        for (Future<SessionInfo> result : results) {
+            SessionInfo info = result.get();
+            if (info != null) {
+                assertNull(winner);
+                winner = info.refreshTokenHash2;
+            }
+        }
+        es.shutdown();
+
+        assertNotNull(winner);
+        SessionInfo stored = start.getSession("handle");
+        assertEquals(winner, stored.refreshTokenHash2);
+        assertEquals(expiry, stored.expiry);
+    }
+
+    private static void checkRefresh(Start start) throws Exception {
+        long now = System.currentTimeMillis();
+        JsonObject sessionData = new JsonObject();
+        sessionData.addProperty("inDb", true);
+        JsonObject jwtPayload = new JsonObject();
+        jwtPayload.addProperty("inJwt", true);
+        start.createNewSession("handle", "userId", FIRST_HASH, sessionData, now + 10000, jwtPayload, now);
+        start.createNewSession("expired", "userId", FIRST_HASH, sessionData, now - 1, jwtPayload, now);
+
+        assertNull(start.refreshSession("unknown", FIRST_HASH, SECOND_HASH, now + 20000));
+        assertNull(start.refreshSession("expired", FIRST_HASH, SECOND_HASH, now + 20000));
+        assertNull(start.refreshSession("handle", SECOND_HASH, SECOND_HASH, now + 20000));
+
+        SessionInfo refreshed = start.refreshSession("handle", FIRST_HASH, SECOND_HASH, now + 20000);
+        assertNotNull(refreshed);
+        assertEquals("userId", refreshed.userId);
+        assertEquals(SECOND_HASH, refreshed.refreshTokenHash2);
+        assertEquals(sessionData, refreshed.userDataInDatabase);
+        assertEquals(jwtPayload, refreshed.userDataInJWT);
+        assertEquals(now + 20000, refreshed.expiry);
+        assertEquals(now, refreshed.timeCreated);
+
+        SessionInfo stored = start.getSession("handle");
+        assertEquals(SECOND_HASH, stored.refreshTokenHash2);
+        assertEquals(now + 20000, stored.expiry);
+
+        // the old token can't be used again
+        assertNull(start.refreshSession("handle", FIRST_HASH, "thirdHash", now + 30000));
+        assertEquals(SECOND_HASH, start.getSession("handle").refreshTokenHash2);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+
+package io.supertokens.storage.sql.test;
+
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.KeyValueInfo;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.config.Config;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static io.supertokens.storage.sql.PreparedStatementValueSetter.NO_OP_SETTER;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.update;
+import static org.junit.Assert.*;
+
+public class SigningKeyCacheTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void keysAreCachedUntilAnyCoreChangesThem() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        assertNotNull(process.checkOrWaitForEventInPlugin(
+                io.supertokens.storage.sql.ProcessState.PROCESS_STATE.LISTENING_FOR_DATABASE_CHANGES));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        assertEquals(0, getAccessTokenSigningKeys(start).length);
+        start.startTransaction(con -> {
+            start.addAccessTokenSigningKey_Transaction(con, new KeyValueInfo("key1", 1));
+            start.commitTransaction(con);
+            return null;
+        });
+        assertEquals(1, getAccessTokenSigningKeys(start).length);
+
+        // a change that doesn't notify anyone is not seen
+        insertAccessTokenSigningKey(start, "key2", 2, false);
+        assertEquals(1, getAccessTokenSigningKeys(start).length);
+
+        // what another core adds is seen once it is committed
+        insertAccessTokenSigningKey(start, "key3", 3, true);
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (getAccessTokenSigningKeys(start).length != 3 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(50);
+        }
+        assertEquals(3, getAccessTokenSigningKeys(start).length);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void keysThatAreMissingAreNotCached() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        assertNotNull(process.checkOrWaitForEventInPlugin(
+                io.supertokens.storage.sql.ProcessState.PROCESS_STATE.LISTENING_FOR_DATABASE_CHANGES));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        assertNull(getRefreshTokenSigningKey(start));
+        String QUERY = "ALTER TABLE " + Config.getConfig(start).getKeyValueTable() + " DISABLE TRIGGER USER; "
+                + "INSERT INTO " + Config.getConfig(start).getKeyValueTable()
+                + "(name, value, created_at_time) VALUES('refresh_token_key', 'key', 1); ALTER TABLE "
+                + Config.getConfig(start).getKeyValueTable() + " ENABLE TRIGGER USER";
+        update(start, QUERY, NO_OP_SETTER);
+        assertEquals("key", getRefreshTokenSigningKey(start).value);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void cacheCanBeDisabled() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_signing_keys_cache_ttl_ms", "0");
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        insertAccessTokenSigningKey(start, "key1", 1, false);
+        assertEquals(1, getAccessTokenSigningKeys(start).length);
+        insertAccessTokenSigningKey(start, "key2", 2, false);
+        assertEquals(2, getAccessTokenSigningKeys(start).length);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    private static KeyValueInfo[] getAccessTokenSigningKeys(Start start) throws Exception {
+        return start.startTransaction(con -> {
+            KeyValueInfo[] keys = start.getAccessTokenSigningKeys_Transaction(con);
+            start.commitTransaction(con);
+            return keys;
+        });
+    }
+
+    private static KeyValueInfo getRefreshTokenSigningKey(Start start) throws Exception {
+        return start.startTransaction(con -> {
+            KeyValueInfo key = start.getRefreshTokenSigningKey_Transaction(con);
+            start.commitTransaction(con);
+            return key;
+        });
+    }
+
+    // inserts a key the way another core would, or, without notify, in a way that the cache doesn't hear of
+    private static void insertAccessTokenSigningKey(Start start, String value, long createdAtTime, boolean notify)
+            throws Exception {
+        String table = Config.getConfig(start).getAccessTokenSigningKeysTable();
+        String QUERY = "INSERT INTO " + table + "(created_at_time, value) VALUES(" + createdAtTime + ", '" + value
+                + "')";
+        if (!notify) {
+            QUERY = "ALTER TABLE " + table + " DISABLE TRIGGER USER; " + QUERY + "; ALTER TABLE " + table
+                    + " ENABLE TRIGGER USER";
+        }
+        update(start, QUERY, NO_OP_SETTER);
+    }
+}
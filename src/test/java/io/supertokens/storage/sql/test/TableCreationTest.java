@@ -68,4 +68,29 @@ public class TableCreationTest {
         assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
     }
 
+    @Test
+    public void migrationsAreAppliedOnlyOnce() throws InterruptedException {
+        String[] args = { "../" };
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        assertNotNull(process.checkOrWaitForEventInPlugin(
+                io.supertokens.storage.sql.ProcessState.PROCESS_STATE.APPLYING_SCHEMA_MIGRATION));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+
+        StorageLayer.close();
+
+        process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        assertNull(process.checkOrWaitForEventInPlugin(
+                io.supertokens.storage.sql.ProcessState.PROCESS_STATE.APPLYING_SCHEMA_MIGRATION, 2000));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
 }
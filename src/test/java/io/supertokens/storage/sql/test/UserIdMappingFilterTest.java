@@ -0,0 +1,214 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.test;
+
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.emailpassword.UserInfo;
+import io.supertokens.storage.sql.ConnectionPool;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.UserIdMappingFilter;
+import io.supertokens.storage.sql.config.Config;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.util.UUID;
+
+import static io.supertokens.storage.sql.PreparedStatementValueSetter.NO_OP_SETTER;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.update;
+import static org.junit.Assert.*;
+
+public class UserIdMappingFilterTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void mappingsMadeByAnyCoreAreFound() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        assertNotNull(process.checkOrWaitForEventInPlugin(
+                io.supertokens.storage.sql.ProcessState.PROCESS_STATE.LISTENING_FOR_DATABASE_CHANGES));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        String userId1 = createUser(start, "user1@example.com");
+        start.createUserIdMapping(userId1, "external1", null);
+        assertEquals("external1", start.getUserIdMapping(userId1, true).externalUserId);
+        assertEquals(userId1, start.getUserIdMapping("external1", false).superTokensUserId);
+
+        // a mapping that another core creates is seen once the notification arrives
+        String userId2 = createUser(start, "user2@example.com");
+        insertUserIdMapping(start, userId2, "external2", true);
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (start.getUserIdMapping("external2").length == 0 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, start.getUserIdMapping("external2").length);
+
+        assertTrue(start.deleteUserIdMapping(userId1, true));
+        assertNull(start.getUserIdMapping(userId1, true));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void mappingsTheFilterHasNotSeenAreNotLookedUp() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        assertNotNull(process.checkOrWaitForEventInPlugin(
+                io.supertokens.storage.sql.ProcessState.PROCESS_STATE.LISTENING_FOR_DATABASE_CHANGES));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+        // as the listener does once it has handled what was sent while the filter was built
+        UserIdMappingFilter.getInstance(start).poll();
+
+        String userId = createUser(start, "user@example.com");
+        insertUserIdMapping(start, userId, "external", false);
+        assertNull(start.getUserIdMapping(userId, true));
+        assertNull(start.getUserIdMapping("external", false));
+        assertEquals(0, start.getUserIdMapping("external").length);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void mappingsWrittenWhileTheFilterIsRebuiltAreFound() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        assertNotNull(process.checkOrWaitForEventInPlugin(
+                io.supertokens.storage.sql.ProcessState.PROCESS_STATE.LISTENING_FOR_DATABASE_CHANGES));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+        UserIdMappingFilter filter = UserIdMappingFilter.getInstance(start);
+        filter.poll();
+
+        // added just before the filter is rebuilt, and written after the rebuild has read every mapping
+        String userId = createUser(start, "user@example.com");
+        filter.added(userId, "external");
+        // added, but never written
+        filter.added("neverWritten", "neverWrittenExternal");
+        filter.listening();
+        assertTrue(filter.mightHaveMapping("external"));
+        assertTrue(filter.mightHaveMapping("neverWrittenExternal"));
+        insertUserIdMapping(start, userId, "external", true);
+        assertEquals(userId, start.getUserIdMapping("external", false).superTokensUserId);
+
+        // the old filter is only asked until the listener has handled the notification of the write
+        long waitUntil = System.currentTimeMillis() + 15000;
+        while (filter.mightHaveMapping("neverWrittenExternal") && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(50);
+        }
+        assertFalse(filter.mightHaveMapping("neverWrittenExternal"));
+        assertTrue(filter.mightHaveMapping("external"));
+        assertEquals(userId, start.getUserIdMapping("external", false).superTokensUserId);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void filterCanBeDisabled() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_user_id_mapping_filter_rebuild_interval_ms", "0");
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        String userId = createUser(start, "user@example.com");
+        insertUserIdMapping(start, userId, "external", false);
+        assertEquals("external", start.getUserIdMapping(userId, true).externalUserId);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void listenerKeepsGoingWhenARebuildFails() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_connection_pool_size", "1");
+        Utils.setValueInConfig("postgresql_user_id_mapping_filter_rebuild_interval_ms", "1000");
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        assertNotNull(process.checkOrWaitForEventInPlugin(
+                io.supertokens.storage.sql.ProcessState.PROCESS_STATE.LISTENING_FOR_DATABASE_CHANGES));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        // With the only connection of the pool taken for longer than the pool waits for one, the next rebuild in
+        // poll fails with a PersistenceException
+        Thread holder = new Thread(() -> {
+            try {
+                ConnectionPool.withSession(start, (session, con) -> {
+                    try {
+                        Thread.sleep(20000);
+                    } catch (InterruptedException ignored) {
+                    }
+                    return null;
+                }, false);
+            } catch (Exception ignored) {
+            }
+        });
+        holder.start();
+        holder.join();
+
+        // a mapping that another core creates is still seen, so the listener is still running
+        String userId = createUser(start, "user@example.com");
+        insertUserIdMapping(start, userId, "external", true);
+        long waitUntil = System.currentTimeMillis() + 15000;
+        while (start.getUserIdMapping("external").length == 0 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, start.getUserIdMapping("external").length);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    private static String createUser(Start start, String email) throws Exception {
+        String userId = UUID.randomUUID().toString();
+        start.signUp(new UserInfo(userId, email, "hash", System.currentTimeMillis()));
+        return userId;
+    }
+
+    // inserts a mapping the way another core would, or, without notify, in a way that the filter doesn't hear of
+    private static void insertUserIdMapping(Start start, String superTokensUserId, String externalUserId,
+            boolean notify) throws Exception {
+        String table = Config.getConfig(start).getUserIdMappingTable();
+        String QUERY = "INSERT INTO " + table + "(supertokens_user_id, external_user_id) VALUES('" + superTokensUserId
+                + "', '" + externalUserId + "')";
+        if (!notify) {
+            QUERY = "ALTER TABLE " + table + " DISABLE TRIGGER USER; " + QUERY + "; ALTER TABLE " + table
+                    + " ENABLE TRIGGER USER";
+        }
+        update(start, QUERY, NO_OP_SETTER);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.test;
+
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.RECIPE_ID;
+import io.supertokens.pluginInterface.authRecipe.AuthRecipeUserInfo;
+import io.supertokens.pluginInterface.emailpassword.UserInfo;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Walks through all the users page by page, the way the core does (it asks for one extra user and uses that as the
+ * start of the next page), and checks that no user is skipped or repeated, including users that joined at the same
+ * time.
+ */
+public class UserPaginationTest {
+
+    private static final long[] TIME_JOINED = { 1, 2, 2, 2, 3, 3, 4, 5, 5 };
+
+    private static final int PAGE_SIZE = 2;
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void paginationReturnsEveryUserOnce() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        List<UserInfo> users = new ArrayList<>();
+        for (int i = 0; i < TIME_JOINED.length; i++) {
+            UserInfo user = new UserInfo(UUID.randomUUID().toString(), "user" + i + "@example.com", "hash",
+                    TIME_JOINED[i]);
+            start.signUp(user);
+            users.add(user);
+        }
+
+        for (String order : new String[] { "ASC", "DESC" }) {
+            Comparator<UserInfo> timeJoined = Comparator.comparingLong(u -> u.timeJoined);
+            List<UserInfo> expected = new ArrayList<>(users);
+            expected.sort((order.equals("ASC") ? timeJoined : timeJoined.reversed())
+                    .thenComparing((UserInfo u) -> u.id, Comparator.reverseOrder()));
+
+            for (RECIPE_ID[] recipeIds : new RECIPE_ID[][] { null, { RECIPE_ID.EMAIL_PASSWORD } }) {
+                List<String> actual = new ArrayList<>();
+                String userId = null;
+                Long timeJoinedCursor = null;
+                while (true) {
+                    AuthRecipeUserInfo[] page = start.getUsers(PAGE_SIZE + 1, order, recipeIds, userId,
+                            timeJoinedCursor);
+                    for (int i = 0; i < Math.min(PAGE_SIZE, page.length); i++) {
+                        actual.add(page[i].id);
+                    }
+                    if (page.length <= PAGE_SIZE) {
+                        break;
+                    }
+                    userId = page[PAGE_SIZE].id;
+                    timeJoinedCursor = page[PAGE_SIZE].timeJoined;
+                }
+                assertEquals(getIds(expected), actual);
+            }
+
+            // the deprecated emailpassword listing
+            List<String> actual = new ArrayList<>();
+            UserInfo[] page = start.getUsers(PAGE_SIZE + 1, order);
+            while (true) {
+                for (int i = 0; i < Math.min(PAGE_SIZE, page.length); i++) {
+                    actual.add(page[i].id);
+                }
+                if (page.length <= PAGE_SIZE) {
+                    break;
+                }
+                page = start.getUsers(page[PAGE_SIZE].id, page[PAGE_SIZE].timeJoined, PAGE_SIZE + 1, order);
+            }
+            assertEquals(getIds(expected), actual);
+        }
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void pagesHaveTheInfoOfEachRecipe() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        UserInfo emailPasswordUser = new UserInfo(UUID.randomUUID().toString(), "ep@example.com", "hash", 1);
+        start.signUp(emailPasswordUser);
+        io.supertokens.pluginInterface.thirdparty.UserInfo thirdPartyUser =
+                new io.supertokens.pluginInterface.thirdparty.UserInfo(UUID.randomUUID().toString(), "tp@example.com",
+                new io.supertokens.pluginInterface.thirdparty.UserInfo.ThirdParty("google", "googleId"), 2);
+        start.signUp(thirdPartyUser);
+        io.supertokens.pluginInterface.passwordless.UserInfo passwordlessUser =
+                new io.supertokens.pluginInterface.passwordless.UserInfo(UUID.randomUUID().toString(), null,
+                        "+1234567890", 3);
+        start.createUser(passwordlessUser);
+
+        for (RECIPE_ID[] recipeIds : new RECIPE_ID[][] { null,
+                { RECIPE_ID.EMAIL_PASSWORD, RECIPE_ID.THIRD_PARTY, RECIPE_ID.PASSWORDLESS } }) {
+            AuthRecipeUserInfo[] users = start.getUsers(10, "ASC", recipeIds, null, null);
+            assertEquals(3, users.length);
+
+            UserInfo first = (UserInfo) users[0];
+            assertEquals(emailPasswordUser.id, first.id);
+            assertEquals("ep@example.com", first.email);
+            assertEquals("hash", first.passwordHash);
+            assertEquals(1, first.timeJoined);
+
+            io.supertokens.pluginInterface.thirdparty.UserInfo second =
+                    (io.supertokens.pluginInterface.thirdparty.UserInfo) users[1];
+            assertEquals(thirdPartyUser.id, second.id);
+            assertEquals("tp@example.com", second.email);
+            assertEquals("google", second.thirdParty.id);
+            assertEquals("googleId", second.thirdParty.userId);
+
+            io.supertokens.pluginInterface.passwordless.UserInfo third =
+                    (io.supertokens.pluginInterface.passwordless.UserInfo) users[2];
+            assertEquals(passwordlessUser.id, third.id);
+            assertNull(third.email);
+            assertEquals("+1234567890", third.phoneNumber);
+        }
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    private static List<String> getIds(List<UserInfo> users) {
+        List<String> ids = new ArrayList<>();
+        for (UserInfo user : users) {
+            ids.add(user.id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+
+package io.supertokens.storage.sql.test;
+
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.exceptions.StorageTransactionLogicException;
+import io.supertokens.pluginInterface.userroles.exception.UnknownRoleException;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.UserRolesCache;
+import io.supertokens.storage.sql.config.Config;
+import io.supertokens.storage.sql.queries.UserRolesQueries;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static io.supertokens.storage.sql.PreparedStatementValueSetter.NO_OP_SETTER;
+import static io.supertokens.storage.sql.QueryExecutorTemplate.update;
+import static org.junit.Assert.*;
+
+public class UserRolesCacheTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void rolesAndPermissionsAreCachedUntilThisCoreChangesThem() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+        UserRolesCache cache = UserRolesCache.getInstance(start);
+
+        createRole(start, "role1", "permission1");
+        start.addRoleToUser("user", "role1");
+
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        assertArrayEquals(new String[] { "role1" }, start.getRolesForUser("user"));
+        assertArrayEquals(new String[] { "role1" }, start.getRolesForUser("user"));
+        assertArrayEquals(new String[] { "permission1" }, start.getPermissionsForRole("role1"));
+        assertArrayEquals(new String[] { "permission1" }, start.getPermissionsForRole("role1"));
+        assertEquals(hits + 2, cache.getHitCount());
+        assertEquals(misses + 2, cache.getMissCount());
+
+        createRole(start, "role2", "permission2");
+        start.addRoleToUser("user", "role2");
+        assertEquals(2, start.getRolesForUser("user").length);
+
+        start.startTransaction(con -> {
+            start.deletePermissionForRole_Transaction(con, "role1", "permission1");
+            start.commitTransaction(con);
+            return null;
+        });
+        assertEquals(0, start.getPermissionsForRole("role1").length);
+
+        start.deleteRole("role2");
+        assertArrayEquals(new String[] { "role1" }, start.getRolesForUser("user"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void changesByOtherCoresAreSeenThroughTheVersion() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_user_roles_cache_version_check_interval_ms", "0");
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+        String userRolesTable = Config.getConfig(start).getUserRolesTable();
+
+        createRole(start, "role1", "permission1");
+        createRole(start, "role2", "permission2");
+        createRole(start, "role3", "permission3");
+        start.addRoleToUser("user", "role1");
+        assertEquals(1, start.getRolesForUser("user").length);
+
+        // a change that doesn't bump the version is not seen
+        update(start, "ALTER TABLE " + userRolesTable + " DISABLE TRIGGER USER; INSERT INTO " + userRolesTable
+                + "(user_id, role) VALUES('user', 'role2'); ALTER TABLE " + userRolesTable + " ENABLE TRIGGER USER",
+                NO_OP_SETTER);
+        assertEquals(1, start.getRolesForUser("user").length);
+
+        // what another core changes is
+        update(start, "INSERT INTO " + userRolesTable + "(user_id, role) VALUES('user', 'role3')", NO_OP_SETTER);
+        assertEquals(3, start.getRolesForUser("user").length);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void onlyStatementsThatChangeRowsBumpTheVersion() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        long version = UserRolesQueries.getVersion(start);
+        createRole(start, "role", "permission");
+        assertTrue(UserRolesQueries.getVersion(start) > version);
+
+        version = UserRolesQueries.getVersion(start);
+        createRole(start, "role", "permission");
+        assertFalse(start.deleteRole("unknown"));
+        assertEquals(version, UserRolesQueries.getVersion(start));
+
+        // deleting a role also deletes its rows in the other tables
+        start.addRoleToUser("user", "role");
+        version = UserRolesQueries.getVersion(start);
+        assertTrue(start.deleteRole("role"));
+        assertTrue(UserRolesQueries.getVersion(start) > version);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    private static void createRole(Start start, String role, String permission) throws Exception {
+        start.startTransaction(con -> {
+            start.createNewRoleOrDoNothingIfExists_Transaction(con, role);
+            try {
+                start.addPermissionToRoleOrDoNothingIfExists_Transaction(con, role, permission);
+            } catch (UnknownRoleException e) {
+                throw new StorageTransactionLogicException(e);
+            }
+            start.commitTransaction(con);
+            return null;
+        });
+    }
+}
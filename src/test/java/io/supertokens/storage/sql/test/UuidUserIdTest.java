@@ -0,0 +1,132 @@
+/*
+ *    Copyright (c) 2022, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.sql.test;
+
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.emailpassword.UserInfo;
+import io.supertokens.pluginInterface.useridmapping.exception.UnknownSuperTokensUserIdException;
+import io.supertokens.storage.sql.Start;
+import io.supertokens.storage.sql.config.Config;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.util.UUID;
+
+import static io.supertokens.storage.sql.QueryExecutorTemplate.execute;
+import static org.junit.Assert.*;
+
+public class UuidUserIdTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void uuidUserIdsWorkTransparently() throws Exception {
+        String[] args = { "../" };
+        Utils.setValueInConfig("postgresql_uuid_user_ids", "true");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        assertEquals("uuid", getColumnType(start, Config.getConfig(start).getUsersTable(), "user_id"));
+        assertEquals("uuid",
+                getColumnType(start, Config.getConfig(start).getUserIdMappingTable(), "supertokens_user_id"));
+
+        UserInfo user = new UserInfo(UUID.randomUUID().toString(), "test@example.com", "hash", 1);
+        start.signUp(user);
+        assertEquals(user.email, start.getUserInfoUsingId(user.id).email);
+        assertTrue(start.doesUserIdExist(user.id));
+
+        // ids that aren't UUIDs just don't match
+        assertNull(start.getUserInfoUsingId("notAUuid"));
+        assertFalse(start.doesUserIdExist("notAUuid"));
+
+        start.createUserIdMapping(user.id, "externalId", null);
+        assertEquals(user.id, start.getUserIdMapping("externalId", false).superTokensUserId);
+        assertEquals(1, start.getUserIdMapping("externalId").length);
+        assertEquals(1, start.getUserIdMapping(user.id).length);
+
+        try {
+            start.createUserIdMapping("notAUuid", "otherExternalId", null);
+            fail();
+        } catch (UnknownSuperTokensUserIdException ignored) {
+        }
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void existingColumnsAreConvertedWhenEnabled() throws Exception {
+        String[] args = { "../" };
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        UserInfo user = new UserInfo(UUID.randomUUID().toString(), "test@example.com", "hash", 1);
+        start.signUp(user);
+        start.createUserIdMapping(user.id, "externalId", null);
+        assertEquals("character(36)", getColumnType(start, Config.getConfig(start).getUsersTable(), "user_id"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+        StorageLayer.close();
+
+        Utils.setValueInConfig("postgresql_uuid_user_ids", "true");
+        process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        for (String table : new String[] { Config.getConfig(start).getUsersTable(),
+                Config.getConfig(start).getEmailPasswordUsersTable(),
+                Config.getConfig(start).getPasswordResetTokensTable(),
+                Config.getConfig(start).getThirdPartyUsersTable(),
+                Config.getConfig(start).getPasswordlessUsersTable() }) {
+            assertEquals(table, "uuid", getColumnType(start, table, "user_id"));
+        }
+        assertEquals(user.email, start.getUserInfoUsingId(user.id).email);
+        assertEquals(user.id, start.getUserIdMapping("externalId", false).superTokensUserId);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    private static String getColumnType(Start start, String table, String column) throws Exception {
+        String QUERY = "SELECT format_type(atttypid, atttypmod) FROM pg_attribute WHERE attrelid = to_regclass(?)"
+                + " AND attname = ?";
+        return execute(start, QUERY, pst -> {
+            pst.setString(1, table);
+            pst.setString(2, column);
+        }, result -> result.next() ? result.getString(1) : null);
+    }
+}